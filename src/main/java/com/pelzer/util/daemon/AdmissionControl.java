@@ -0,0 +1,264 @@
+package com.pelzer.util.daemon;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.pelzer.util.Logging;
+import com.pelzer.util.daemon.beans.DaemonBean;
+
+/**
+ * Limits how many daemon starts are in flight at once: per host, across the
+ * whole cluster, and per daemon group. A start that would go over a limit
+ * waits in a single queue, oldest first, and is let through as soon as a
+ * completion frees up room for it. Entries further back are only let past one
+ * that's stuck on its own host's or group's limit, so one busy host can't hold
+ * up the rest of the cluster. A limit of zero or less means no limit. Each
+ * DaemonServer shard has its own, and only sees the starts for its own hosts,
+ * so the cluster and group limits hold per shard.
+ * <p>
+ * A start let through for a host that isn't currently polling is held for it,
+ * and the listener is told so the host can be woken up to collect it. Starts
+ * that are never completed, and queued starts their host stops asking for,
+ * are given up on after a timeout, so a host that dies can't keep room
+ * forever.
+ */
+public class AdmissionControl {
+  private static Logging.Logger      log         = Logging.getLogger(AdmissionControl.class);
+  private final int                  maxPerHost;
+  private final int                  maxCluster;
+  private final int                  maxPerGroup;
+  private final long                 timeoutMillis;
+  /** Stores <hostname/daemonName, start> for starts waiting their turn, oldest first. */
+  private final Map<String, Start>   queued      = new LinkedHashMap<String, Start>();
+  /** Stores <hostname/daemonName, start> for starts let through that haven't finished yet. */
+  private final Map<String, Start>   admitted    = new HashMap<String, Start>();
+  /** Stores <hostname, admitted starts> */
+  private final Map<String, Integer> hostCounts  = new HashMap<String, Integer>();
+  /** Stores <group, admitted starts> */
+  private final Map<String, Integer> groupCounts = new HashMap<String, Integer>();
+  private volatile Listener          listener    = null;
+  
+  public AdmissionControl(final int maxPerHost, final int maxCluster, final int maxPerGroup, final long timeoutMillis) {
+    this.maxPerHost = maxPerHost;
+    this.maxCluster = maxCluster;
+    this.maxPerGroup = maxPerGroup;
+    this.timeoutMillis = timeoutMillis;
+  }
+  
+  /** Sets the listener told when a start is let through for a host. */
+  public void setListener(final Listener listener) {
+    this.listener = listener;
+  }
+  
+  /**
+   * Takes the starts a host needs right now, and works out which of them can
+   * go out. The rest are queued, or stay queued. Anything the host had queued
+   * or held for it that it no longer needs is dropped.
+   *
+   * @return the daemons whose start can be sent to the host now, in the order
+   *         given.
+   */
+  public List<DaemonBean> admit(final String hostname, final List<DaemonBean> starts) {
+    final List<DaemonBean> admittedStarts = new ArrayList<DaemonBean>(starts.size());
+    final Set<String> woken;
+    synchronized (this) {
+      final long now = System.currentTimeMillis();
+      expire(now);
+      final Set<String> keys = new HashSet<String>();
+      for (final DaemonBean daemon : starts) {
+        keys.add(key(hostname, daemon.getName()));
+      }
+      dropUnwanted(hostname, keys, queued.values().iterator(), false);
+      dropUnwanted(hostname, keys, admitted.values().iterator(), true);
+      for (final DaemonBean daemon : starts) {
+        final String key = key(hostname, daemon.getName());
+        Start start = admitted.get(key);
+        if (start == null) {
+          start = queued.get(key);
+          if (start == null) {
+            start = new Start(hostname, daemon.getName(), daemon.getGroup());
+            queued.put(key, start);
+          }
+        }
+        start.lastAskedMillis = now;
+      }
+      woken = admitQueued(now);
+      for (final DaemonBean daemon : starts) {
+        final Start start = admitted.get(key(hostname, daemon.getName()));
+        if (start != null) {
+          start.claimed = true;
+          admittedStarts.add(daemon);
+        }
+      }
+    }
+    woken.remove(hostname);
+    wake(woken);
+    return admittedStarts;
+  }
+  
+  /** Frees the room taken by a start, because it has finished one way or the other. */
+  public void release(final String hostname, final String daemonName) {
+    final Set<String> woken;
+    synchronized (this) {
+      final Start start = admitted.remove(key(hostname, daemonName));
+      if (start == null)
+        return;
+      uncount(start);
+      woken = admitQueued(System.currentTimeMillis());
+    }
+    wake(woken);
+  }
+  
+  /**
+   * Frees the room taken by the starts of any of the given daemons, which the
+   * host has reported running, in case their completions went missing.
+   */
+  public void releaseRunning(final String hostname, final Collection<String> runningDaemonNames) {
+    final Set<String> woken;
+    synchronized (this) {
+      if (admitted.isEmpty() || hostCounts.get(hostname) == null)
+        return;
+      boolean released = false;
+      for (final String daemonName : runningDaemonNames) {
+        final Start start = admitted.remove(key(hostname, daemonName));
+        if (start != null) {
+          uncount(start);
+          released = true;
+        }
+      }
+      if (!released)
+        return;
+      woken = admitQueued(System.currentTimeMillis());
+    }
+    wake(woken);
+  }
+  
+  public synchronized int getAdmittedCount() {
+    return admitted.size();
+  }
+  
+  public synchronized int getQueuedCount() {
+    return queued.size();
+  }
+  
+  /** Lets queued starts through, oldest first, while there's room. @return the hosts that got one. */
+  private Set<String> admitQueued(final long now) {
+    final Set<String> hosts = new HashSet<String>();
+    for (final Iterator<Map.Entry<String, Start>> i = queued.entrySet().iterator(); i.hasNext();) {
+      if (maxCluster > 0 && admitted.size() >= maxCluster) {
+        break;
+      }
+      final Map.Entry<String, Start> entry = i.next();
+      final Start start = entry.getValue();
+      if (isFull(hostCounts, start.hostname, maxPerHost) || start.group != null && isFull(groupCounts, start.group, maxPerGroup)) {
+        continue;
+      }
+      i.remove();
+      start.admittedMillis = now;
+      admitted.put(entry.getKey(), start);
+      increment(hostCounts, start.hostname, 1);
+      if (start.group != null) {
+        increment(groupCounts, start.group, 1);
+      }
+      hosts.add(start.hostname);
+    }
+    return hosts;
+  }
+  
+  /**
+   * Drops the host's entries that aren't in the given keys. Admitted starts are
+   * only dropped if they haven't been sent to the host yet.
+   */
+  private void dropUnwanted(final String hostname, final Set<String> keys, final Iterator<Start> starts, final boolean isAdmitted) {
+    while (starts.hasNext()) {
+      final Start start = starts.next();
+      if (start.hostname.equals(hostname) && !keys.contains(key(hostname, start.daemonName)) && !(isAdmitted && start.claimed)) {
+        starts.remove();
+        if (isAdmitted) {
+          uncount(start);
+        }
+      }
+    }
+  }
+  
+  /** Gives up on starts that never completed, and queued starts nobody has asked about. */
+  private void expire(final long now) {
+    for (final Iterator<Start> i = admitted.values().iterator(); i.hasNext();) {
+      final Start start = i.next();
+      if (now - start.admittedMillis > timeoutMillis) {
+        log.warn("Start of '" + start.daemonName + "' on '" + start.hostname + "' never completed, no longer counting it.");
+        i.remove();
+        uncount(start);
+      }
+    }
+    for (final Iterator<Start> i = queued.values().iterator(); i.hasNext();) {
+      if (now - i.next().lastAskedMillis > timeoutMillis) {
+        i.remove();
+      }
+    }
+  }
+  
+  private void uncount(final Start start) {
+    increment(hostCounts, start.hostname, -1);
+    if (start.group != null) {
+      increment(groupCounts, start.group, -1);
+    }
+  }
+  
+  private void wake(final Set<String> hostnames) {
+    final Listener listener = this.listener;
+    if (listener != null) {
+      for (final String hostname : hostnames) {
+        listener.startAdmitted(hostname);
+      }
+    }
+  }
+  
+  private static boolean isFull(final Map<String, Integer> counts, final String key, final int max) {
+    final Integer count = counts.get(key);
+    return max > 0 && count != null && count >= max;
+  }
+  
+  /** Adds to the count, dropping it from the map when it gets back to zero. */
+  private static void increment(final Map<String, Integer> counts, final String key, final int delta) {
+    final Integer count = counts.get(key);
+    final int next = (count == null ? 0 : count) + delta;
+    if (next <= 0) {
+      counts.remove(key);
+    } else {
+      counts.put(key, next);
+    }
+  }
+  
+  private static String key(final String hostname, final String daemonName) {
+    return hostname + "/" + daemonName;
+  }
+  
+  /** Told when a start is let through, so its host can come and collect it. */
+  public interface Listener {
+    void startAdmitted(String hostname);
+  }
+  
+  private static class Start {
+    private final String hostname;
+    private final String daemonName;
+    private final String group;
+    private long         lastAskedMillis;
+    private long         admittedMillis;
+    /** Set once the start has been handed to the host. */
+    private boolean      claimed = false;
+    
+    public Start(final String hostname, final String daemonName, final String group) {
+      this.hostname = hostname;
+      this.daemonName = daemonName;
+      this.group = group;
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package com.pelzer.util.daemon;
 
+import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -71,7 +72,7 @@ public class Controller {
       daemonNames = new ArrayList<String>();
       final List<DaemonBean> daemons = daemonDAO.getAllKnownDaemons();
       for (final DaemonBean daemon : daemons) {
-        daemonDAO.setTargetDaemonStatus(daemon, DaemonStatus.STOPPED);
+        setTargetDaemonStatus(daemon, DaemonStatus.STOPPED);
         daemonNames.add(daemon.getName());
       }
       // Now block if we need to...
@@ -84,10 +85,10 @@ public class Controller {
       for (final DaemonBean daemon : daemons) {
         switch (action) {
           case START:
-            daemonDAO.setTargetDaemonStatus(daemon, DaemonStatus.RUNNING);
+            setTargetDaemonStatus(daemon, DaemonStatus.RUNNING);
             break;
           case STOP:
-            daemonDAO.setTargetDaemonStatus(daemon, DaemonStatus.STOPPED);
+            setTargetDaemonStatus(daemon, DaemonStatus.STOPPED);
             break;
           default:
             throw new RuntimeException("Don't know how to handle action: " + action);
@@ -101,6 +102,41 @@ public class Controller {
     println("Action complete. Took: " + watch.getElapsed().toMMSS());
   }
   
+  /**
+   * Sets the target status through the DaemonServer, which wakes the host
+   * running the daemon immediately. Falls back to writing straight to the
+   * database if the server can't be reached, in which case the server picks
+   * the change up on its next registry refresh.
+   */
+  private static void setTargetDaemonStatus(final DaemonBean daemon, final DaemonStatus status) {
+    final DaemonServerRemoteInt daemonServer = getDaemonServer();
+    if (daemonServer != null) {
+      try {
+        daemonServer.setTargetDaemonStatus(daemon.getName(), status);
+        return;
+      } catch (final RemoteException ex) {
+        debug.error("RemoteException while setting target status through the DaemonServer, writing to the database instead.", ex);
+      }
+    }
+    daemonDAO.setTargetDaemonStatus(daemon, status);
+  }
+  
+  private static DaemonServerRemoteInt daemonServer         = null;
+  private static boolean               daemonServerLookedUp = false;
+  
+  /** @return the DaemonServer, or null if it couldn't be reached. Only tries once. */
+  private static DaemonServerRemoteInt getDaemonServer() {
+    if (!daemonServerLookedUp) {
+      daemonServerLookedUp = true;
+      try {
+        daemonServer = DaemonServerLocator.lookup();
+      } catch (final Exception ex) {
+        debug.warn("Couldn't reach the DaemonServer at '" + DaemonServerLocator.getAddress() + "', writing to the database directly.");
+      }
+    }
+    return daemonServer;
+  }
+  
   /**
    * Continuously reloads the daemon list, and checks to see if every daemon's
    * target status matches its current status. When all daemons match, this
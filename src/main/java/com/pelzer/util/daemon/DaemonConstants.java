@@ -4,17 +4,255 @@ import com.pelzer.util.OverridableFields;
 
 public class DaemonConstants extends OverridableFields {
   public static String RMI_URL;
+  
+  /**
+   * How clients reach the DaemonServer: 'rmi' (the default) through
+   * {@link #RMI_URL}, or 'nio' through {@link #NIO_HOST}:{@link #NIO_PORT}.
+   */
+  public static String DAEMON_SERVER_TRANSPORT         = "rmi";
+  
+  /** Host of the DaemonServer's NIO transport, defaults to the host in the RMI url. */
+  public static String NIO_HOST                        = null;
+  
+  /**
+   * Port of the DaemonServer's NIO transport. The server only listens on it if
+   * it's set; defaults to 0, off.
+   */
+  public static int    NIO_PORT                        = 0;
+  
+  /**
+   * Comma separated addresses of every DaemonServer shard, each either an RMI
+   * url or 'nio://host:port'. Hostnames and singleton names are spread across
+   * them by consistent hashing, and every client and server has to be given
+   * the same list. A shard with standbys lists every member's address,
+   * separated by '|', and clients try them in turn. Defaults to null, a single
+   * server found through {@link #DAEMON_SERVER_TRANSPORT}.
+   */
+  public static String DAEMON_SERVER_SHARDS            = null;
+  
+  /**
+   * Which of {@link #DAEMON_SERVER_SHARDS} this DaemonServer is, exactly as
+   * written there. With it set, the server refuses work for hostnames and
+   * singletons that belong to another shard. Defaults to null, no checks.
+   */
+  public static String DAEMON_SERVER_SHARD             = null;
+  
+  /** How many points each shard gets on the hash ring, defaults to 128. */
+  public static int    SHARD_RING_POINTS               = 128;
+  
+  /**
+   * This DaemonServer's own address, exactly as written among the members of
+   * its shard in {@link #DAEMON_SERVER_SHARDS}. With it set, and more than one
+   * member in the shard, the members elect a leader through the database and
+   * the rest stand by, following its state. Defaults to null, no standbys.
+   */
+  public static String DAEMON_SERVER_ADDRESS           = null;
+  
+  /**
+   * How long a leader lease lasts without renewal, which is about how long a
+   * shard goes without a leader when one dies. The members' clocks need to
+   * agree to well within {@link #LEADER_HEARTBEAT_MILLIS}. Defaults to 5
+   * seconds.
+   */
+  public static long   LEADER_LEASE_MILLIS             = 5000;
+  
+  /**
+   * How often the leader renews its lease, and a standby tries for it,
+   * defaults to 1 second.
+   */
+  public static long   LEADER_HEARTBEAT_MILLIS         = 1000;
+  
+  /**
+   * How much of the replication log a leader keeps for its standbys. One that
+   * falls further behind takes a new snapshot. Defaults to 4MB.
+   */
+  public static int    REPLICATION_LOG_BYTES           = 4 * 1024 * 1024;
+  
+  /**
+   * How much of each output stream of a remote process session the
+   * DaemonServer keeps for readers, defaults to 256KB.
+   */
+  public static int    PROCESS_BUFFER_BYTES            = 256 * 1024;
+  
+  /** How many remote process sessions can run at once, defaults to 32. */
+  public static int    PROCESS_SESSION_LIMIT           = 32;
+  
+  /**
+   * How long a remote process session can go untouched before its process is
+   * destroyed, defaults to 10 minutes.
+   */
+  public static long   PROCESS_SESSION_IDLE_MILLIS     = 1000 * 60 * 10;
+  
+  /**
+   * Port the DaemonServer serves Prometheus metrics on, at /metrics. Defaults
+   * to 0, off.
+   */
+  public static int    SERVER_METRICS_PORT             = 0;
+  
+  /**
+   * Port each DaemonManager serves Prometheus metrics on, at /metrics.
+   * Defaults to 0, off.
+   */
+  public static int    MANAGER_METRICS_PORT            = 0;
+  
   public static String MONGO_DB_NAME = "daemon";
   
-  /** How long between refreshes of 'known-daemons', defaults to 5 minutes */
+  /**
+   * How long between full reloads of 'known-daemons' by the DaemonServer, which
+   * is how daemons deleted from the database are noticed. Defaults to 5
+   * minutes.
+   */
   public static long   KNOWN_DAEMONS_CACHE_TIME_MILLIS = 1000 * 60 * 5;
   
+  /**
+   * How often a DaemonManager pulls the changes to 'known-daemons' since it
+   * last asked, defaults to 5 seconds.
+   */
+  public static long   KNOWN_DAEMONS_SYNC_MILLIS       = 5000;
+  
   /**
    * How long an acquired singleton name lease is valid, before the daemonserver
    * discards the registration.
    */
   public static long   SINGLETON_LEASE_TIME_SECONDS    = 60;
   
+  /**
+   * How much earlier than the server says a singleton lease runs out that
+   * SingletonUtility.isHeld(String) starts answering false, to cover clock
+   * drift and the one-way network delay. Defaults to 2 seconds.
+   */
+  public static long   SINGLETON_SAFETY_MARGIN_MILLIS  = 2000;
+  
+  /**
+   * How often the DaemonServer pulls changed daemon definitions from the
+   * database into its in-memory registry, defaults to 2 seconds.
+   */
+  public static long   DAEMON_REGISTRY_REFRESH_MILLIS  = 2000;
+  
+  /**
+   * How far behind its high water mark the registry re-reads on each refresh,
+   * to cover clock skew between the hosts writing to the database. Defaults to
+   * 1 minute.
+   */
+  public static long   DAEMON_REGISTRY_OVERLAP_MILLIS  = 1000 * 60;
+  
+  /**
+   * How long a DaemonManager long-poll for actions is parked on the server
+   * when there is nothing to do, defaults to 1 minute.
+   */
+  public static long   ACTION_POLL_WAIT_MILLIS         = 1000 * 60;
+  
+  /**
+   * How long a DaemonManager long-poll is parked instead while the manager
+   * still has actions running, which bounds how late their results are
+   * reported. Defaults to 1 second.
+   */
+  public static long   ACTION_RESULT_POLL_MILLIS       = 1000;
+  
+  /**
+   * How many actions a DaemonManager runs at once. Actions for the same daemon
+   * always run one after the other. Defaults to 8.
+   */
+  public static int    MANAGER_ACTION_THREADS          = 8;
+  
+  /**
+   * How often a DaemonManager checks its daemons' pid files between polls, so
+   * a daemon dying or coming up is reported without waiting for the next poll.
+   * A check normally costs a stat of each pid file and /proc entry, and only
+   * lists /proc when one of them has changed. Defaults to 500 milliseconds.
+   */
+  public static long   LIVENESS_CHECK_MILLIS           = 500;
+  
+  /**
+   * How long the DaemonServer waits for the result of an action it handed to a
+   * host before giving up on it and planning that daemon afresh. Needs to
+   * cover the slowest stop. Defaults to 10 minutes.
+   */
+  public static long   ACTION_TIMEOUT_MILLIS           = 1000 * 60 * 10;
+  
+  /**
+   * Where the DaemonServer journals its leases, start times and outstanding
+   * plans, so that a restart picks up where it left off. Empty to turn
+   * journaling off. Defaults to 'DaemonServer.journal' in the working directory.
+   */
+  public static String STATE_JOURNAL_FILE              = "DaemonServer.journal";
+  
+  /**
+   * How often the state journal is flushed to disk, which is also the most
+   * state a crash can lose. Defaults to 1 second.
+   */
+  public static long   STATE_JOURNAL_FLUSH_MILLIS      = 1000;
+  
+  /**
+   * How many records can be appended to the state journal before it is
+   * compacted down to a snapshot of the live state. Defaults to 50000.
+   */
+  public static long   STATE_JOURNAL_COMPACT_RECORDS   = 50000;
+  
+  /**
+   * How often the DaemonServer works out where daemons that aren't pinned to a
+   * server should run, which is also how often each host's last seen time is
+   * written. Defaults to 30 seconds.
+   */
+  public static long   PLACEMENT_INTERVAL_MILLIS       = 1000 * 30;
+  
+  /**
+   * How long since a host was last seen before placement moves its daemons
+   * elsewhere. Needs to cover a whole action long poll as well as
+   * PLACEMENT_INTERVAL_MILLIS. Defaults to 3 minutes.
+   */
+  public static long   PLACEMENT_HOST_TIMEOUT_MILLIS   = 1000 * 60 * 3;
+  
+  /**
+   * The most running daemons placement moves off the busiest servers onto
+   * emptier ones each PLACEMENT_INTERVAL_MILLIS, so a server that joins is
+   * filled gradually rather than all at once. 0 only moves daemons whose
+   * server has gone away or is over capacity. Defaults to 1.
+   */
+  public static int    PLACEMENT_REBALANCE_MOVES       = 1;
+  
+  /**
+   * How far back the DaemonServer keeps the resource use hosts report with
+   * their polls, defaults to 15 minutes.
+   */
+  public static long   TELEMETRY_WINDOW_MILLIS         = 1000 * 60 * 15;
+  
+  /**
+   * The most samples kept per host and per daemon, however often they poll.
+   * Defaults to 120.
+   */
+  public static int    TELEMETRY_WINDOW_SAMPLES        = 120;
+  
+  /**
+   * The most daemon starts the DaemonServer will have in flight on any one
+   * host. Starts over any of the limits wait their turn. Zero or less means no
+   * limit. Defaults to 0.
+   */
+  public static int    MAX_STARTS_PER_HOST             = 0;
+  
+  /**
+   * The most daemon starts the DaemonServer will have in flight across the
+   * whole cluster. With {@link #DAEMON_SERVER_SHARDS} set, each shard counts
+   * only the starts for its own hosts, so the cluster as a whole can have this
+   * many in flight per shard. Zero or less means no limit. Defaults to 0.
+   */
+  public static int    MAX_STARTS_CLUSTER              = 0;
+  
+  /**
+   * The most starts of daemons in the same group the DaemonServer will have in
+   * flight. Like {@link #MAX_STARTS_CLUSTER}, this is counted per shard, so a
+   * group spread over the hosts of several shards can have this many in flight
+   * on each. Zero or less means no limit. Defaults to 0.
+   */
+  public static int    MAX_STARTS_PER_GROUP            = 0;
+  
+  /**
+   * How long a start counts against the limits without its completion coming
+   * back, and how long a waiting start is kept without its host asking for it
+   * again. Defaults to 5 minutes.
+   */
+  public static long   START_ADMISSION_TIMEOUT_MILLIS  = 1000 * 60 * 5;
+  
   static {
     new DaemonConstants().init();
   }
@@ -7,6 +7,7 @@ import org.springframework.stereotype.Service;
 
 import com.pelzer.util.Logging;
 import com.pelzer.util.daemon.beans.DaemonBean;
+import com.pelzer.util.daemon.beans.ServerBean;
 import com.pelzer.util.daemon.dao.DaemonDAO;
 import com.pelzer.util.daemon.dao.ServerDAO;
 import com.pelzer.util.spring.SpringUtil;
@@ -39,7 +40,10 @@ public class DaemonEdit {
   private void printUsageAndExit() {
     log.info("USAGE: DaemonEdit <COMMAND> {argument1 argument2 ...}");
     log.info("            CREATE <name>");
-    log.info("            DAEMON <name> SET <START, STOP, PID, SERVER, MAXRUNSECS> <value>");
+    log.info("            DAEMON <name> SET <START, STOP, PID, SERVER, MAXRUNSECS, CPU, MEMORY, GROUP> <value>");
+    log.info("            DAEMON <name> SET SERVER AUTO : lets the DaemonServer place the daemon");
+    log.info("            DAEMON <name> SET GROUP NONE : takes the daemon out of its start group");
+    log.info("            SERVER <name> SET <CPU, MEMORY> <value> : capacity offered to placed daemons");
     log.info("            LIST : Shows a list of all daemons");
     log.info("            LIST {RUNNING,STOPPED} : filters list of daemons");
     
@@ -55,6 +59,8 @@ public class DaemonEdit {
       handleDaemon(args);
     if ("CREATE".equalsIgnoreCase(args[0]))
       handleCreate(args);
+    if ("SERVER".equalsIgnoreCase(args[0]))
+      handleServer(args);
   }
   
   /** Creates a new daemon. */
@@ -80,8 +86,17 @@ public class DaemonEdit {
     final String daemonName = args[1];
     final DaemonBean daemon = daemonDAO.getDaemonBean(daemonName);
     final String key = args[3];
-    if ("SERVER".equalsIgnoreCase(key))
+    if ("SERVER".equalsIgnoreCase(key) && "AUTO".equalsIgnoreCase(args[4]))
+      daemon.setPinned(false);
+    else if ("SERVER".equalsIgnoreCase(key)) {
       daemon.setServer(serverDAO.getOrCreateServer(args[4]));
+      daemon.setPinned(true);
+    } else if ("CPU".equalsIgnoreCase(key))
+      daemon.setCpuSlots(Integer.parseInt(args[4]));
+    else if ("MEMORY".equalsIgnoreCase(key))
+      daemon.setMemoryMegabytes(Long.parseLong(args[4]));
+    else if ("GROUP".equalsIgnoreCase(key))
+      daemon.setGroup("NONE".equalsIgnoreCase(args[4]) ? null : args[4]);
     else if ("PID".equalsIgnoreCase(key))
       daemon.setPidFile(args[4]);
     else if ("MAXRUNSECS".equalsIgnoreCase(key))
@@ -99,6 +114,23 @@ public class DaemonEdit {
     handleList(args);
   }
   
+  /** Sets the capacity a server offers to daemons that aren't pinned. */
+  private void handleServer(final String[] args) {
+    if (args.length < 5)
+      printUsageAndExit();
+    final ServerBean server = serverDAO.getOrCreateServer(args[1]);
+    final String key = args[3];
+    if ("CPU".equalsIgnoreCase(key))
+      server.setCpuSlots(Integer.parseInt(args[4]));
+    else if ("MEMORY".equalsIgnoreCase(key))
+      server.setMemoryMegabytes(Long.parseLong(args[4]));
+    else
+      printUsageAndExit();
+    serverDAO.save(server);
+    log.debug("   Server: {}", server.getName());
+    log.debug("      cpu: {} memory: {} MB", server.getCpuSlots(), server.getMemoryMegabytes());
+  }
+  
   /** Shows a list of daemons */
   private void handleList(final String[] args) {
     boolean showRunning = true;
@@ -120,9 +152,12 @@ public class DaemonEdit {
     log.debug(" pid file: {}", daemon.getPidFile());
     log.debug("   status: {} target: {}", daemon.getStatus(), daemon.getTargetStatus());
     if (daemon.getServer() != null)
-      log.debug("   server: {}", daemon.getServer().getName());
+      log.debug("   server: {} ({})", daemon.getServer().getName(), daemon.isPinned() ? "pinned" : "placed");
     else
-      log.debug("   server: null");
+      log.debug("   server: null ({})", daemon.isPinned() ? "pinned" : "placed");
+    log.debug("    needs: {} cpu, {} MB", daemon.getCpuSlots(), daemon.getMemoryMegabytes());
+    if (daemon.getGroup() != null)
+      log.debug("    group: {}", daemon.getGroup());
     log.debug("timestamp: {}", daemon.getLastUpdate());
     log.debug("  max run: {} ({} min)", daemon.getMaxContinuousRuntimeMillis(), daemon.getMaxContinuousRuntimeMillis() / (1000 * 60));
     log.debug("-------------------------------------");
@@ -2,33 +2,62 @@ package com.pelzer.util.daemon;
 
 import java.io.File;
 import java.io.IOException;
-import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.pelzer.util.Absorb;
 import com.pelzer.util.KillableThread;
 import com.pelzer.util.Logging;
 import com.pelzer.util.PID;
 import com.pelzer.util.PropertyManager;
 import com.pelzer.util.StringMan;
+import com.pelzer.util.daemon.actions.ActionResult;
 import com.pelzer.util.daemon.actions.IAction;
 import com.pelzer.util.daemon.actions.StartDaemon;
 import com.pelzer.util.daemon.actions.StopDaemon;
 import com.pelzer.util.daemon.beans.DaemonBean;
+import com.pelzer.util.daemon.beans.HostTelemetry;
+import com.pelzer.util.daemon.beans.KnownDaemonsDelta;
+import com.pelzer.util.daemon.metrics.MetricsHttpServer;
+import com.pelzer.util.daemon.metrics.PrometheusWriter;
+import com.pelzer.util.daemon.telemetry.ProcSampler;
+import com.pelzer.util.daemon.telemetry.ProcessTable;
 
 /**
  * An instance should run on each daemon box, and this manager will handle
  * bringing up and shutting down other daemons.
  */
 public class DaemonManager {
-  private static Logging.Logger debug = Logging.getLogger(DaemonManager.class);
+  private static Logging.Logger    debug           = Logging.getLogger(DaemonManager.class);
+  /** Shared by every ManagerThread, so the numbers survive a restart. */
+  static final Stats               stats           = new Stats();
+  /**
+   * Runs the actions from the server, one at a time per daemon. Shared by
+   * every ManagerThread, so actions still running when one dies are reported
+   * by the next.
+   */
+  static final KeyedExecutor       actions         = new KeyedExecutor("ActionWorker", DaemonConstants.MANAGER_ACTION_THREADS);
+  /** Results of actions that have finished but haven't been reported to the server yet. */
+  static final Queue<ActionResult> finishedActions = new ConcurrentLinkedQueue<ActionResult>();
   
   public static void main(final String[] args) {
     debug.info("Registering as a per-server singleton...");
     SingletonUtility.registerPerServer("DaemonManager", true);
+    if (DaemonConstants.MANAGER_METRICS_PORT > 0) {
+      try {
+        new MetricsHttpServer(DaemonConstants.MANAGER_METRICS_PORT, stats);
+      } catch (final IOException ex) {
+        debug.error("Couldn't serve metrics on port " + DaemonConstants.MANAGER_METRICS_PORT + ". Carrying on without them.", ex);
+      }
+    }
     ManagerThread thread = new ManagerThread();
     thread.start();
     while (true) {
@@ -52,42 +81,52 @@ public class DaemonManager {
    * stopping daemons.
    */
   static class ManagerThread extends KillableThread {
-    private final Logging.Logger debug                 = Logging.getLogger(this);
-    private long                 lastKnownDaemonsCheck = 0;
-    private List<DaemonBean>     knownDaemons          = null;
+    private final Logging.Logger          debug                 = Logging.getLogger(this);
+    private long                          lastKnownDaemonsCheck = 0;
+    /** Stores <daemonName, daemon>, kept in step with the server by epoch and version. */
+    private final Map<String, DaemonBean> knownDaemons          = new LinkedHashMap<String, DaemonBean>();
+    private long                          knownDaemonsEpoch     = 0;
+    private long                          knownDaemonsVersion   = 0;
+    /** Stores <daemonName, pid> for the daemons found running on the last check. */
+    private final Map<String, Integer>    runningPids           = new HashMap<String, Integer>();
+    private final ProcSampler             procSampler           = new ProcSampler();
+    private final LivenessWatcher         liveness              = new LivenessWatcher();
     
     @Override
     public void run() {
       setName("ManagerThread");
+      liveness.start();
       try {
         while (!die) {
+          long loopStartNanos = System.nanoTime();
           final DaemonServerRemoteInt daemonServer = getDaemonServer();
+          liveness.setDaemonServer(daemonServer);
+          reportFinishedActions(daemonServer);
           final List<DaemonBean> runningDaemons = getRunningDaemons(daemonServer);
           final String runningDaemonNames[] = new String[runningDaemons.size()];
           for (int i = 0; i < runningDaemons.size(); i++) {
             runningDaemonNames[i] = runningDaemons.get(i).getName();
           }
-          final IAction action = daemonServer.getNextAction(PropertyManager.getHostname(), runningDaemonNames);
-          if (action != null) {
-            // Handle the action and return it as successful if it goes ok
-            expandTokens(action.getDaemonBean());
-            if (handleAction(action)) {
-              daemonServer.returnCompletedAction(PropertyManager.getHostname(), action);
-            }
-          }
-          
-          try {
-            if (action == null) {
-              TimeUnit.SECONDS.sleep(60);
-            } else {
-              TimeUnit.SECONDS.sleep(1);
-            }
-          } catch (final InterruptedException ignored) {
+          // Parks on the server until there's something to do, so there's no
+          // need to sleep between empty polls. While actions are running it
+          // only parks briefly, so their results go back soon after they
+          // finish. The park doesn't count towards the loop's duration.
+          final long parkStartNanos = System.nanoTime();
+          final HostTelemetry telemetry = procSampler.sample(runningPids);
+          final long maxWaitMillis = actions.getPendingCount() > 0 ? DaemonConstants.ACTION_RESULT_POLL_MILLIS : DaemonConstants.ACTION_POLL_WAIT_MILLIS;
+          final IAction plan[] = daemonServer.awaitActionPlan(PropertyManager.getHostname(), runningDaemonNames, telemetry, maxWaitMillis);
+          stats.serverContacted();
+          loopStartNanos += System.nanoTime() - parkStartNanos;
+          for (final IAction action : plan) {
+            submitAction(action);
           }
+          stats.loopFinished(System.nanoTime() - loopStartNanos);
         }
       } catch (final Exception ex) {
         debug.error("Unexpected Exception while running... Shutting this thread down.", ex);
         // TODO: Panic
+      } finally {
+        liveness.die = true;
       }
     }
     
@@ -130,6 +169,48 @@ public class DaemonManager {
       return outTokens;
     }
     
+    /**
+     * Hands an action from the server to {@link DaemonManager#actions}, which
+     * runs it after any earlier action for the same daemon, so a daemon's stop
+     * always finishes before its next start. Actions for different daemons
+     * don't wait on each other, even within one plan. Its result is queued for
+     * the next pass through the loop to report, however the action ends.
+     */
+    private void submitAction(final IAction action) {
+      expandTokens(action.getDaemonBean());
+      actions.execute(action.getDaemonBean().getName(), new Runnable() {
+        public void run() {
+          boolean success = false;
+          try {
+            success = handleAction(action);
+          } finally {
+            finishedActions.add(new ActionResult(action.getId(), success));
+          }
+        }
+      });
+    }
+    
+    /**
+     * Sends the results of every action that has finished since the last call
+     * back to the server in one go. If that fails they're kept for next time.
+     */
+    private void reportFinishedActions(final DaemonServerRemoteInt daemonServer) throws RemoteException {
+      final List<ActionResult> results = new ArrayList<ActionResult>();
+      ActionResult result;
+      while ((result = finishedActions.poll()) != null) {
+        results.add(result);
+      }
+      if (results.isEmpty())
+        return;
+      try {
+        daemonServer.returnCompletedActions(PropertyManager.getHostname(), results.toArray(new ActionResult[results.size()]));
+      } catch (final RemoteException ex) {
+        finishedActions.addAll(results);
+        throw ex;
+      }
+      stats.serverContacted();
+    }
+    
     /**
      * Switches out to handle the action, returns true on success, false if the
      * action fails for any reason
@@ -152,6 +233,7 @@ public class DaemonManager {
       } else {
         debug.error("Action failed.");
       }
+      stats.actionFinished(action instanceof StartDaemon, success);
       return success;
     }
     
@@ -174,7 +256,7 @@ public class DaemonManager {
         debug.error("Expected pid file '" + action.getDaemonBean().getPidFile() + "' does not exist!");
         return false;
       }
-      return PID.isPIDAlive(PID.readPID(pidFile));
+      return isPIDAlive(PID.readPID(pidFile));
     }
     
     /**
@@ -202,30 +284,33 @@ public class DaemonManager {
       // We have the PID, now let's shut down the daemon...
       Runtime.getRuntime().exec(action.getDaemonBean().getStopCommandLine());
       int timeout = action.getTimeoutSeconds();
-      while (timeout > 0 && PID.isPIDAlive(pid)) {
+      while (timeout > 0 && isPIDAlive(pid)) {
         try {
           TimeUnit.SECONDS.sleep(5);
         } catch (final InterruptedException ignored) {
         }
         timeout -= 5;
       }
-      return !PID.isPIDAlive(pid);
+      return !isPIDAlive(pid);
     }
     
     /**
-     * Iterates through the list of known daemons and determines which ones are
-     * running on this box.
-     * 
-     * @throws IOException
-     *           If the PID system has problems reading pid files.
+     * Works out which of the known daemons are running on this box, through
+     * the {@link LivenessWatcher}, which only reads pid files that have
+     * changed since it last looked.
      */
-    private List<DaemonBean> getRunningDaemons(final DaemonServerRemoteInt daemonServer) throws IOException {
+    private List<DaemonBean> getRunningDaemons(final DaemonServerRemoteInt daemonServer) {
       final List<DaemonBean> runningDaemons = new ArrayList<DaemonBean>();
       final List<DaemonBean> knownDaemons = getKnownDaemons(daemonServer);
       
       for (final DaemonBean daemon : knownDaemons) {
         expandTokens(daemon);
-        if (isDaemonAlive(daemon)) {
+      }
+      liveness.watch(knownDaemons);
+      runningPids.clear();
+      runningPids.putAll(liveness.check(true));
+      for (final DaemonBean daemon : knownDaemons) {
+        if (runningPids.containsKey(daemon.getName())) {
           debug.debug("Daemon '" + daemon.getName() + "' is alive");
           runningDaemons.add(daemon);
         }
@@ -234,38 +319,47 @@ public class DaemonManager {
       return runningDaemons;
     }
     
-    /**
-     * Looks at the pid file defined by the bean, reads the pid if it exists,
-     * and returns true if that pid is alive.
-     * 
-     * @throws IOException
-     */
-    private boolean isDaemonAlive(final DaemonBean daemon) throws IOException {
-      debug.debug("Checking '" + daemon.getName() + "' pid file '" + daemon.getPidFile() + "'");
-      final File pidFile = new File(daemon.getPidFile());
-      if (pidFile.exists()) {
-        final int pid = PID.readPID(pidFile);
-        return PID.isPIDAlive(pid);
-      } else
-        return false;
+    /** Counts the check for {@link Stats}. */
+    private boolean isPIDAlive(final int pid) {
+      stats.pidChecked();
+      return PID.isPIDAlive(pid);
     }
     
     /**
-     * @return a list of known daemons, possibly a cached version. If you need
-     *         to immediately refresh, set {@link #lastKnownDaemonsCheck} to 0
-     *         and call this method.
+     * @return a list of known daemons, possibly a cached version. The cache is
+     *         brought up to date every
+     *         {@link DaemonConstants#KNOWN_DAEMONS_SYNC_MILLIS} by pulling just
+     *         the changes since the last sync. If you need to immediately
+     *         refresh, set {@link #lastKnownDaemonsCheck} to 0 and call this
+     *         method.
      */
     private List<DaemonBean> getKnownDaemons(final DaemonServerRemoteInt daemonServer) {
-      if (knownDaemons == null || System.currentTimeMillis() - lastKnownDaemonsCheck > DaemonConstants.KNOWN_DAEMONS_CACHE_TIME_MILLIS) {
-        // Cache has expired or we've never loaded the daemon list
+      if (System.currentTimeMillis() - lastKnownDaemonsCheck > DaemonConstants.KNOWN_DAEMONS_SYNC_MILLIS) {
         try {
-          knownDaemons = Arrays.asList(daemonServer.getAllKnownDaemons());
+          applyKnownDaemonsDelta(daemonServer.getKnownDaemonsSince(knownDaemonsEpoch, knownDaemonsVersion));
           lastKnownDaemonsCheck = System.currentTimeMillis();
         } catch (final RemoteException ex) {
           debug.error("RemoteException while getting known daemons... May crash hard realsoonnow.", ex);
         }
       }
-      return knownDaemons;
+      return new ArrayList<DaemonBean>(knownDaemons.values());
+    }
+    
+    void applyKnownDaemonsDelta(final KnownDaemonsDelta delta) {
+      if (delta.isFull()) {
+        knownDaemons.clear();
+      }
+      for (final DaemonBean daemon : delta.getChanged()) {
+        knownDaemons.put(daemon.getName(), daemon);
+      }
+      for (final String daemonName : delta.getRemoved()) {
+        knownDaemons.remove(daemonName);
+      }
+      knownDaemonsEpoch = delta.getEpoch();
+      knownDaemonsVersion = delta.getVersion();
+      if (delta.isFull() || delta.getChanged().length > 0 || delta.getRemoved().length > 0) {
+        debug.debug("Known daemons now at version " + knownDaemonsVersion + ": " + delta.getChanged().length + " changed, " + delta.getRemoved().length + " removed" + (delta.isFull() ? " (full refresh)" : ""));
+      }
     }
     
     /** Blocks indefinitely trying to get connection to the daemon server... */
@@ -273,15 +367,16 @@ public class DaemonManager {
       int tries = 0;
       while (true) {
         try {
-          final DaemonServerRemoteInt daemonServer = (DaemonServerRemoteInt) Naming.lookup(DaemonConstants.RMI_URL);
+          final DaemonServerRemoteInt daemonServer = DaemonServerLocator.lookup();
           daemonServer.noop();
+          stats.serverContacted();
           // If we're here, we got a connection...
-          debug.debug("Got connection to DaemonServer at '" + DaemonConstants.RMI_URL + "'");
+          debug.debug("Got connection to DaemonServer at '" + DaemonServerLocator.getAddress() + "'");
           return daemonServer;
         } catch (final Exception ex2) {
           if (tries++ > 12) {
             tries = 0;
-            debug.debug("Still trying to get connection to DaemonServer at '" + DaemonConstants.RMI_URL + "'");
+            debug.debug("Still trying to get connection to DaemonServer at '" + DaemonServerLocator.getAddress() + "'");
           }
           // Still having trouble getting the connection... Sleep for a while,
           // then we'll try again.
@@ -293,4 +388,254 @@ public class DaemonManager {
       }
     }
   }
+  
+  /**
+   * Keeps an eye on the manager's daemons between polls, so one that dies or
+   * comes up outside of an action is reported to the server within
+   * {@link DaemonConstants#LIVENESS_CHECK_MILLIS} instead of on the next poll.
+   * Pid files are only read again when their modification time changes, and
+   * every pid is looked up in one {@link ProcessTable} per check. Between polls
+   * the watcher first just stats each pid file and each live pid's /proc entry,
+   * and only lists /proc for a full check when one of those has changed, so
+   * watching a quiet host costs a stat or two per daemon per check.
+   */
+  static class LivenessWatcher extends KillableThread {
+    private static final File              PROC         = new File("/proc");
+    private final Logging.Logger           debug        = Logging.getLogger(this);
+    /** Stores <daemonName, pidFile> of every daemon being watched. */
+    private final Map<String, PidFile>     pidFiles     = new LinkedHashMap<String, PidFile>();
+    /** Stores <daemonName, pid> as of the last check, whether that was reported by a poll or by this thread. */
+    private Map<String, Integer>           lastLive     = new HashMap<String, Integer>();
+    /** Set when the daemons being watched change, so the next pass does a full check. */
+    private boolean                        watchChanged = true;
+    private volatile DaemonServerRemoteInt daemonServer = null;
+    
+    public LivenessWatcher() {
+      setName("LivenessWatcher");
+      setDaemon(true);
+    }
+    
+    /** Watches the given daemons from now on, and stops watching any others. */
+    public synchronized void watch(final List<DaemonBean> daemons) {
+      final Map<String, PidFile> previous = new HashMap<String, PidFile>(pidFiles);
+      pidFiles.clear();
+      for (final DaemonBean daemon : daemons) {
+        final PidFile pidFile = previous.get(daemon.getName());
+        if (pidFile != null && pidFile.file.getPath().equals(daemon.getPidFile())) {
+          pidFiles.put(daemon.getName(), pidFile);
+        } else if (daemon.getPidFile() != null) {
+          pidFiles.put(daemon.getName(), new PidFile(daemon.getPidFile()));
+        }
+      }
+      if (!pidFiles.keySet().equals(previous.keySet())) {
+        watchChanged = true;
+      }
+    }
+    
+    /** Sets the server that changes are reported to. */
+    public void setDaemonServer(final DaemonServerRemoteInt daemonServer) {
+      this.daemonServer = daemonServer;
+    }
+    
+    /**
+     * Checks every watched daemon, and takes the result as what the server
+     * now knows about.
+     * 
+     * @param verifyStartTimes
+     *          whether to read each live daemon's start time again, which
+     *          catches a daemon that died and had its pid handed out again in
+     *          between two checks. Otherwise only the first sighting of a pid
+     *          reads its start time.
+     * @return <daemonName, pid> of the daemons that are alive.
+     */
+    public synchronized Map<String, Integer> check(final boolean verifyStartTimes) {
+      return check(ProcessTable.scan(), verifyStartTimes);
+    }
+    
+    /** Checks every watched daemon against the given listing, which is null if there's no /proc. */
+    synchronized Map<String, Integer> check(final ProcessTable processes, final boolean verifyStartTimes) {
+      final Map<String, Integer> live = new LinkedHashMap<String, Integer>();
+      for (final Map.Entry<String, PidFile> entry : pidFiles.entrySet()) {
+        stats.pidChecked();
+        final PidFile pidFile = entry.getValue();
+        if (pidFile.isAlive(processes, verifyStartTimes)) {
+          live.put(entry.getKey(), pidFile.pid);
+        }
+      }
+      lastLive = live;
+      watchChanged = false;
+      return live;
+    }
+    
+    /**
+     * @return true if the last check still holds as far as a stat of each pid
+     *         file and of each live pid's /proc entry can tell, so a full check
+     *         can be skipped. Always false without a /proc to stat.
+     */
+    private boolean looksUnchanged() {
+      if (watchChanged || !PROC.isDirectory())
+        return false;
+      for (final PidFile pidFile : pidFiles.values()) {
+        if (!pidFile.looksUnchanged())
+          return false;
+      }
+      return true;
+    }
+    
+    @Override
+    public void run() {
+      while (!die) {
+        Absorb.sleep(DaemonConstants.LIVENESS_CHECK_MILLIS);
+        final DaemonServerRemoteInt daemonServer = this.daemonServer;
+        final String runningDaemonNames[];
+        synchronized (this) {
+          if (looksUnchanged()) {
+            continue;
+          }
+          final Map<String, Integer> previous = lastLive;
+          final Map<String, Integer> live = check(false);
+          if (daemonServer == null || live.equals(previous)) {
+            continue;
+          }
+          debug.info("Running daemons changed from " + previous.keySet() + " to " + live.keySet() + ", telling the server.");
+          runningDaemonNames = live.keySet().toArray(new String[live.size()]);
+        }
+        try {
+          daemonServer.reportRunningDaemons(PropertyManager.getHostname(), runningDaemonNames);
+          stats.serverContacted();
+        } catch (final RemoteException ex) {
+          debug.debug("Couldn't report running daemons, leaving it to the next poll.", ex);
+        }
+      }
+    }
+    
+    /** A pid file, and what's known of the process it named when it was last read. */
+    private static class PidFile {
+      private final File file;
+      private long       lastModified = -1;
+      private int        pid          = 0;
+      /** Start time of the pid's process once it's been seen, -1 if it couldn't be read. */
+      private long       startTicks   = 0;
+      /**
+       * Set once the pid has been seen dead, so a process that's given the
+       * same pid later isn't taken for the daemon. Cleared when the file
+       * changes.
+       */
+      private boolean    dead         = false;
+      
+      public PidFile(final String path) {
+        file = new File(path);
+      }
+      
+      /**
+       * @param processes
+       *          what's alive, or null if there's no /proc to tell, in which
+       *          case the pid is checked on its own. The file may have been
+       *          written after the listing was taken, so a pid missing from it
+       *          is checked again on its own before it's taken for dead.
+       */
+      public boolean isAlive(final ProcessTable processes, final boolean verifyStartTime) {
+        readIfChanged();
+        if (pid <= 0 || dead)
+          return false;
+        if (processes == null) {
+          dead = !PID.isPIDAlive(pid);
+        } else if (!processes.isAliveNow(pid)) {
+          dead = true;
+        } else if (startTicks == 0) {
+          // First sighting, so the only thing to go on is the file's age
+          dead = !processes.isAlive(pid, lastModified);
+          startTicks = processes.getStartTicks(pid);
+        } else if (verifyStartTime && startTicks > 0) {
+          final long ticks = processes.getStartTicks(pid);
+          dead = ticks > 0 && ticks != startTicks;
+        }
+        return !dead;
+      }
+      
+      /**
+       * @return true if the file hasn't changed since it was last read, and a
+       *         pid that was alive then still has its /proc entry.
+       */
+      public boolean looksUnchanged() {
+        if (file.lastModified() != lastModified)
+          return false;
+        return pid <= 0 || dead || new File(PROC, Integer.toString(pid)).exists();
+      }
+      
+      /** Reads the pid again if the file has changed, or sets it to 0 if there's no file or it can't be read. */
+      private void readIfChanged() {
+        final long modified = file.lastModified();
+        if (modified != lastModified) {
+          lastModified = modified;
+          startTicks = 0;
+          dead = false;
+          try {
+            pid = modified == 0 ? 0 : PID.readPID(file);
+          } catch (final Exception ex) {
+            // Caught part way through being written, try again next time
+            lastModified = -1;
+            pid = 0;
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * What the ManagerThread has been up to, served as Prometheus metrics when
+   * {@link DaemonConstants#MANAGER_METRICS_PORT} is set. Everything is an
+   * atomic counter or a volatile, so the control loop never waits on a scrape.
+   */
+  static class Stats implements MetricsHttpServer.Source {
+    private final AtomicLong loops                   = new AtomicLong();
+    private final AtomicLong loopNanos               = new AtomicLong();
+    private volatile long    lastLoopNanos           = 0;
+    private final AtomicLong pidChecks               = new AtomicLong();
+    private final AtomicLong startSuccesses          = new AtomicLong();
+    private final AtomicLong startFailures           = new AtomicLong();
+    private final AtomicLong stopSuccesses           = new AtomicLong();
+    private final AtomicLong stopFailures            = new AtomicLong();
+    /** Zero until the server has been reached for the first time. */
+    private volatile long    lastServerContactMillis = 0;
+    
+    void loopFinished(final long nanos) {
+      loops.incrementAndGet();
+      loopNanos.addAndGet(nanos);
+      lastLoopNanos = nanos;
+    }
+    
+    void pidChecked() {
+      pidChecks.incrementAndGet();
+    }
+    
+    void actionFinished(final boolean start, final boolean success) {
+      if (start) {
+        (success ? startSuccesses : startFailures).incrementAndGet();
+      } else {
+        (success ? stopSuccesses : stopFailures).incrementAndGet();
+      }
+    }
+    
+    void serverContacted() {
+      lastServerContactMillis = System.currentTimeMillis();
+    }
+    
+    public void writeMetrics(final PrometheusWriter out) {
+      out.counter("daemon_manager_loops_total", "Passes through the control loop.", loops.get());
+      out.counter("daemon_manager_loop_seconds_total", "Time spent in the control loop, not counting time parked on the server.", loopNanos.get() / 1e9);
+      out.gauge("daemon_manager_last_loop_seconds", "How long the last pass through the control loop took, not counting time parked on the server.", lastLoopNanos / 1e9);
+      out.counter("daemon_manager_pid_checks_total", "Checks of whether a pid is alive.", pidChecks.get());
+      out.gauge("daemon_manager_actions_pending", "Actions from the server that are running or waiting to.", actions.getPendingCount());
+      out.header("daemon_manager_actions_total", "counter", "Actions run, by kind and result.");
+      out.sample("daemon_manager_actions_total", "action", "start", "result", "success", startSuccesses.get());
+      out.sample("daemon_manager_actions_total", "action", "start", "result", "failure", startFailures.get());
+      out.sample("daemon_manager_actions_total", "action", "stop", "result", "success", stopSuccesses.get());
+      out.sample("daemon_manager_actions_total", "action", "stop", "result", "failure", stopFailures.get());
+      final long lastContact = lastServerContactMillis;
+      if (lastContact > 0) {
+        out.gauge("daemon_manager_seconds_since_server_contact", "Time since the last successful call to the DaemonServer.", (System.currentTimeMillis() - lastContact) / 1000d);
+      }
+    }
+  }
 }
@@ -0,0 +1,345 @@
+package com.pelzer.util.daemon;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.pelzer.util.Logging;
+import com.pelzer.util.daemon.beans.DaemonBean;
+import com.pelzer.util.daemon.beans.KnownDaemonsDelta;
+import com.pelzer.util.daemon.dao.DaemonDAO;
+
+/**
+ * In-memory copy of every {@link DaemonBean} the system knows about, indexed by
+ * daemon name and by server name, so that the {@link DaemonServer} can answer
+ * polls without going to the database. The registry pulls changes
+ * incrementally using {@link DaemonBean#getLastUpdate()}, which every DAO write
+ * bumps, as a high water mark. If the database is unavailable, the last known
+ * state keeps being served.
+ * <p>
+ * Every change to a daemon's definition is also given a version, so that
+ * DaemonManagers can pull just what changed since they last asked with
+ * {@link #getKnownDaemonsSince(long, long)}. Each registry picks a random
+ * epoch when it's created, and versions are only compared within an epoch, so
+ * a version from before a restart, or from another server, is never mistaken
+ * for a current one even if the clock has gone backwards in between.
+ */
+public class DaemonRegistry {
+  private static Logging.Logger                      log             = Logging.getLogger(DaemonRegistry.class);
+  private final DaemonDAO                            daemonDAO;
+  
+  /** Stores <daemonName, daemon> */
+  private final Map<String, DaemonBean>              daemonsByName   = new ConcurrentHashMap<String, DaemonBean>();
+  /** Stores <hostname, <daemonName, daemon>> */
+  private final Map<String, Map<String, DaemonBean>> daemonsByServer = new ConcurrentHashMap<String, Map<String, DaemonBean>>();
+  /** Highest lastUpdate seen in the database so far. */
+  private long                                       highWaterMark   = 0;
+  private volatile long                              lastRefresh     = 0;
+  private volatile Listener                          listener        = null;
+  private volatile long                              lastFullRefresh = 0;
+  
+  /** Random id for this registry, that versions are only good within. */
+  private final long                                 epoch           = new SecureRandom().nextLong();
+  /** Version of the very first change this registry knows about. */
+  private final long                                 baseVersion     = System.currentTimeMillis() * 1000;
+  /** Version of the latest change, published after the change is logged. */
+  private volatile long                              version         = baseVersion;
+  /** Stores <version, daemonName> for the latest change to each daemon, removals included. */
+  private final NavigableMap<Long, String>           changeLog       = new ConcurrentSkipListMap<Long, String>();
+  /** Stores <daemonName, version> of the latest change to each daemon. */
+  private final Map<String, Long>                    versionsByName  = new ConcurrentHashMap<String, Long>();
+  
+  public DaemonRegistry(final DaemonDAO daemonDAO) {
+    this.daemonDAO = daemonDAO;
+  }
+  
+  /**
+   * Sets the listener told whenever the set of daemons that should be running
+   * on a host changes, whether the change came from this JVM or was picked up
+   * from the database on a refresh.
+   */
+  public void setListener(final Listener listener) {
+    this.listener = listener;
+  }
+  
+  /**
+   * Pulls every daemon changed since the last refresh, but only if
+   * {@link DaemonConstants#DAEMON_REGISTRY_REFRESH_MILLIS} has passed since the
+   * last one. Cheap to call on every request.
+   */
+  public void refreshIfStale() {
+    if (System.currentTimeMillis() - lastRefresh > DaemonConstants.DAEMON_REGISTRY_REFRESH_MILLIS) {
+      refresh();
+    }
+  }
+  
+  /**
+   * Pulls every daemon changed since the high water mark. Re-reads a window of
+   * {@link DaemonConstants#DAEMON_REGISTRY_OVERLAP_MILLIS} behind it so that
+   * writers with slightly lagging clocks aren't missed.
+   */
+  public synchronized void refresh() {
+    if (lastRefresh != 0 && System.currentTimeMillis() - lastRefresh <= DaemonConstants.DAEMON_REGISTRY_REFRESH_MILLIS) {
+      // Someone else refreshed while we were waiting for the lock
+      return;
+    }
+    if (System.currentTimeMillis() - lastFullRefresh > DaemonConstants.KNOWN_DAEMONS_CACHE_TIME_MILLIS) {
+      fullRefresh();
+      return;
+    }
+    final long since = highWaterMark == 0 ? 0 : highWaterMark - DaemonConstants.DAEMON_REGISTRY_OVERLAP_MILLIS;
+    try {
+      final List<DaemonBean> changed = daemonDAO.getDaemonsUpdatedSince(new Date(since));
+      for (final DaemonBean daemon : changed) {
+        put(daemon);
+        if (daemon.getLastUpdate() != null && daemon.getLastUpdate().getTime() > highWaterMark) {
+          highWaterMark = daemon.getLastUpdate().getTime();
+        }
+      }
+      lastRefresh = System.currentTimeMillis();
+    } catch (final RuntimeException ex) {
+      log.error("Exception while refreshing daemon registry. Serving last known state.", ex);
+    }
+  }
+  
+  /**
+   * Reloads every daemon, and drops the ones that are no longer in the
+   * database. Deletes don't bump anything, so this is the only way they're
+   * noticed.
+   */
+  private void fullRefresh() {
+    try {
+      final List<DaemonBean> daemons = daemonDAO.getAllKnownDaemons();
+      final Set<String> names = new HashSet<String>();
+      for (final DaemonBean daemon : daemons) {
+        names.add(daemon.getName());
+        put(daemon);
+        if (daemon.getLastUpdate() != null && daemon.getLastUpdate().getTime() > highWaterMark) {
+          highWaterMark = daemon.getLastUpdate().getTime();
+        }
+      }
+      for (final String daemonName : daemonsByName.keySet()) {
+        if (!names.contains(daemonName)) {
+          remove(daemonName);
+        }
+      }
+      lastFullRefresh = lastRefresh = System.currentTimeMillis();
+    } catch (final RuntimeException ex) {
+      log.error("Exception while reloading daemon registry. Serving last known state.", ex);
+    }
+  }
+  
+  /**
+   * @return every daemon added or changed since the given version, and the
+   *         names of those removed since then. A version this registry didn't
+   *         hand out (0, one from another epoch, or one out of range) gets
+   *         every known daemon instead, flagged as a full refresh.
+   */
+  public KnownDaemonsDelta getKnownDaemonsSince(final long sinceEpoch, final long since) {
+    // Changes are logged before the version is published, so everything up to
+    // this version is already in the log
+    final long current = version;
+    if (sinceEpoch != epoch || since < baseVersion || since > current) {
+      final List<DaemonBean> daemons = getAllKnownDaemons();
+      return new KnownDaemonsDelta(epoch, current, true, daemons.toArray(new DaemonBean[daemons.size()]), new String[0]);
+    }
+    final List<DaemonBean> changed = new ArrayList<DaemonBean>();
+    final List<String> removed = new ArrayList<String>();
+    for (final String daemonName : changeLog.subMap(since, false, current, true).values()) {
+      final DaemonBean daemon = daemonsByName.get(daemonName);
+      if (daemon == null) {
+        removed.add(daemonName);
+      } else {
+        changed.add(daemon);
+      }
+    }
+    return new KnownDaemonsDelta(epoch, current, false, changed.toArray(new DaemonBean[changed.size()]), removed.toArray(new String[removed.size()]));
+  }
+  
+  /**
+   * @return the daemon with the given name. Falls back to the database (and
+   *         caches the result) if the daemon hasn't been seen yet, returns null
+   *         if it doesn't exist at all.
+   */
+  public DaemonBean getDaemonBean(final String daemonName) {
+    DaemonBean daemon = daemonsByName.get(daemonName);
+    if (daemon == null) {
+      daemon = daemonDAO.getDaemonBean(daemonName);
+      if (daemon != null) {
+        put(daemon);
+      }
+    }
+    return daemon;
+  }
+  
+  /**
+   * Reads the daemon back from the database after the server has changed it,
+   * so reads don't have to wait for the next refresh to see the change.
+   */
+  public void reload(final String daemonName) {
+    final DaemonBean daemon = daemonDAO.getDaemonBean(daemonName);
+    if (daemon != null) {
+      put(daemon);
+    }
+  }
+  
+  /** @return every known daemon. */
+  public List<DaemonBean> getAllKnownDaemons() {
+    return new ArrayList<DaemonBean>(daemonsByName.values());
+  }
+  
+  /**
+   * Adds up the known daemons by status into the given arrays, indexed by
+   * {@link DaemonStatus#ordinal()}, without copying the registry. Daemons with
+   * no status aren't counted.
+   */
+  public void countStatuses(final int statuses[], final int targetStatuses[]) {
+    Arrays.fill(statuses, 0);
+    Arrays.fill(targetStatuses, 0);
+    for (final DaemonBean daemon : daemonsByName.values()) {
+      if (daemon.getStatus() != null) {
+        statuses[daemon.getStatus().ordinal()]++;
+      }
+      if (daemon.getTargetStatus() != null) {
+        targetStatuses[daemon.getTargetStatus().ordinal()]++;
+      }
+    }
+  }
+  
+  /**
+   * @return the names of the daemons that should be running on the given host,
+   *         same as {@link com.pelzer.util.daemon.dao.ServerDAO#getExpectedServiceNames(String)}
+   */
+  public List<String> getExpectedServiceNames(final String hostname) {
+    final List<String> serviceNames = new ArrayList<String>();
+    final Map<String, DaemonBean> daemons = daemonsByServer.get(hostname);
+    if (daemons != null) {
+      for (final DaemonBean daemon : daemons.values()) {
+        if (daemon.getTargetStatus() == DaemonStatus.RUNNING) {
+          serviceNames.add(daemon.getName());
+        }
+      }
+    }
+    return serviceNames;
+  }
+  
+  /**
+   * Records a status the server has just written to the database, so reads
+   * don't have to wait for the next refresh to see it.
+   */
+  public void setDaemonStatuses(final Collection<String> daemonNames, final DaemonStatus status) {
+    for (final String daemonName : daemonNames) {
+      final DaemonBean daemon = daemonsByName.get(daemonName);
+      if (daemon != null) {
+        daemon.setStatus(status);
+      }
+    }
+  }
+  
+  /**
+   * Records a target status the server has just written to the database, and
+   * tells the listener if it changed.
+   */
+  public void setTargetDaemonStatus(final String daemonName, final DaemonStatus status) {
+    final DaemonBean daemon = daemonsByName.get(daemonName);
+    if (daemon != null && daemon.getTargetStatus() != status) {
+      daemon.setTargetStatus(status);
+      changed(daemonName);
+      if (daemon.getServer() != null) {
+        fireDesiredStateChanged(daemon.getServer().getName());
+      }
+    }
+  }
+  
+  private void fireDesiredStateChanged(final String hostname) {
+    final Listener listener = this.listener;
+    if (listener != null) {
+      listener.desiredStateChanged(hostname);
+    }
+  }
+  
+  private synchronized void put(final DaemonBean daemon) {
+    final DaemonBean previous = daemonsByName.put(daemon.getName(), daemon);
+    if (previous == null || !isSameDefinition(previous, daemon)) {
+      changed(daemon.getName());
+    }
+    final String previousHostname = previous == null || previous.getServer() == null ? null : previous.getServer().getName();
+    final String hostname = daemon.getServer() == null ? null : daemon.getServer().getName();
+    if (previousHostname != null) {
+      final Map<String, DaemonBean> daemons = daemonsByServer.get(previousHostname);
+      if (daemons != null) {
+        daemons.remove(previous.getName());
+      }
+    }
+    if (hostname != null) {
+      Map<String, DaemonBean> daemons = daemonsByServer.get(hostname);
+      if (daemons == null) {
+        daemons = new ConcurrentHashMap<String, DaemonBean>();
+        daemonsByServer.put(hostname, daemons);
+      }
+      daemons.put(daemon.getName(), daemon);
+    }
+    // Indexes are up to date, now tell anyone waiting on the affected hosts
+    if (previousHostname != null && !previousHostname.equals(hostname)) {
+      fireDesiredStateChanged(previousHostname);
+    }
+    if (hostname != null && (previous == null || !hostname.equals(previousHostname) || previous.getTargetStatus() != daemon.getTargetStatus())) {
+      fireDesiredStateChanged(hostname);
+    }
+  }
+  
+  private synchronized void remove(final String daemonName) {
+    final DaemonBean previous = daemonsByName.remove(daemonName);
+    if (previous == null)
+      return;
+    changed(daemonName);
+    if (previous.getServer() != null) {
+      final Map<String, DaemonBean> daemons = daemonsByServer.get(previous.getServer().getName());
+      if (daemons != null) {
+        daemons.remove(daemonName);
+      }
+      fireDesiredStateChanged(previous.getServer().getName());
+    }
+  }
+  
+  /** Gives the daemon's latest change a new version, replacing its previous one in the log. */
+  private synchronized void changed(final String daemonName) {
+    final long next = version + 1;
+    final Long previous = versionsByName.put(daemonName, next);
+    if (previous != null) {
+      changeLog.remove(previous);
+    }
+    changeLog.put(next, daemonName);
+    version = next;
+  }
+  
+  /**
+   * @return true if the two beans describe the same daemon the same way.
+   *         Ignores the current status and lastUpdate, which change on every
+   *         poll and aren't part of the definition, and the server's capacity,
+   *         which isn't the daemon's.
+   */
+  private static boolean isSameDefinition(final DaemonBean a, final DaemonBean b) {
+    final String serverA = a.getServer() == null ? null : a.getServer().getName();
+    final String serverB = b.getServer() == null ? null : b.getServer().getName();
+    return equal(a.getName(), b.getName()) && equal(serverA, serverB) && equal(a.getPidFile(), b.getPidFile()) && Arrays.equals(a.getStartCommandLine(), b.getStartCommandLine()) && Arrays.equals(a.getStopCommandLine(), b.getStopCommandLine()) && a.getMaxContinuousRuntimeMillis() == b.getMaxContinuousRuntimeMillis() && a.getTargetStatus() == b.getTargetStatus() && a.isPinned() == b.isPinned() && a.getCpuSlots() == b.getCpuSlots() && a.getMemoryMegabytes() == b.getMemoryMegabytes() && equal(a.getGroup(), b.getGroup());
+  }
+  
+  private static boolean equal(final Object a, final Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+  
+  /** Told about changes to what should be running where. */
+  public interface Listener {
+    void desiredStateChanged(String hostname);
+  }
+}
@@ -1,46 +1,103 @@
 package com.pelzer.util.daemon;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.rmi.Naming;
 import java.rmi.RMISecurityManager;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import com.pelzer.util.Absorb;
+import com.pelzer.util.KillableThread;
 import com.pelzer.util.Logging;
 import com.pelzer.util.PropertyManager;
+import com.pelzer.util.daemon.actions.ActionResult;
 import com.pelzer.util.daemon.actions.IAction;
 import com.pelzer.util.daemon.actions.StartDaemon;
 import com.pelzer.util.daemon.actions.StopDaemon;
 import com.pelzer.util.daemon.beans.DaemonBean;
+import com.pelzer.util.daemon.beans.HostTelemetry;
+import com.pelzer.util.daemon.beans.KnownDaemonsDelta;
+import com.pelzer.util.daemon.beans.LeaderBean;
+import com.pelzer.util.daemon.beans.ServerBean;
+import com.pelzer.util.daemon.cluster.HashRing;
+import com.pelzer.util.daemon.cluster.Placement;
+import com.pelzer.util.daemon.cluster.Replica;
 import com.pelzer.util.daemon.dao.DaemonDAO;
+import com.pelzer.util.daemon.dao.LeaderDAO;
 import com.pelzer.util.daemon.dao.ServerDAO;
+import com.pelzer.util.daemon.lease.Lease;
+import com.pelzer.util.daemon.lease.LeaseGrant;
+import com.pelzer.util.daemon.lease.LeaseTable;
+import com.pelzer.util.daemon.metrics.LatencyStats;
+import com.pelzer.util.daemon.metrics.Metrics;
+import com.pelzer.util.daemon.metrics.MetricsHttpServer;
+import com.pelzer.util.daemon.metrics.PrometheusWriter;
+import com.pelzer.util.daemon.process.ProcessChannel;
+import com.pelzer.util.daemon.process.ProcessOutput;
+import com.pelzer.util.daemon.process.ProcessSessions;
+import com.pelzer.util.daemon.telemetry.TelemetryStore;
+import com.pelzer.util.daemon.transport.NioServer;
 import com.pelzer.util.merge.MergeResult;
 import com.pelzer.util.merge.MergeUtil;
 import com.pelzer.util.spring.SpringUtil;
 
 @Service(DaemonServer.BEAN_NAME)
-public class DaemonServer extends UnicastRemoteObject implements DaemonServerRemoteInt {
-  public static final String    BEAN_NAME = "com.pelzer.util.daemon.DaemonServer";
-  private static Logging.Logger log       = Logging.getLogger(DaemonServer.class);
-  private final DaemonDAO       daemonDAO;
-  private final ServerDAO       serverDAO;
+public class DaemonServer extends UnicastRemoteObject implements DaemonServerRemoteInt, MetricsHttpServer.Source {
+  public static final String     BEAN_NAME = "com.pelzer.util.daemon.DaemonServer";
+  private static Logging.Logger  log       = Logging.getLogger(DaemonServer.class);
+  private final DaemonDAO        daemonDAO;
+  private final ServerDAO        serverDAO;
+  private final LeaderDAO        leaderDAO;
+  private final DaemonRegistry   daemonRegistry;
+  private final AdmissionControl admission;
+  private final StateJournal     stateJournal;
+  /** The shard this server leads or stands by for, or null if it has no standbys. */
+  private final String           failoverShard;
   
   @Autowired
-  public DaemonServer(final DaemonDAO daemonDAO, final ServerDAO serverDAO) throws RemoteException {
+  public DaemonServer(final DaemonDAO daemonDAO, final ServerDAO serverDAO, final LeaderDAO leaderDAO) throws RemoteException {
     log.debug("Starting up.");
-    this.daemonDAO = daemonDAO;
-    this.serverDAO = serverDAO;
+    this.daemonDAO = Metrics.timed(DaemonDAO.class, daemonDAO, "DaemonDAO");
+    this.serverDAO = Metrics.timed(ServerDAO.class, serverDAO, "ServerDAO");
+    this.leaderDAO = Metrics.timed(LeaderDAO.class, leaderDAO, "LeaderDAO");
+    daemonRegistry = new DaemonRegistry(this.daemonDAO);
+    daemonRegistry.setListener(new DaemonRegistry.Listener() {
+      public void desiredStateChanged(final String hostname) {
+        signalHost(hostname);
+      }
+    });
+    admission = new AdmissionControl(DaemonConstants.MAX_STARTS_PER_HOST, DaemonConstants.MAX_STARTS_CLUSTER, DaemonConstants.MAX_STARTS_PER_GROUP, DaemonConstants.START_ADMISSION_TIMEOUT_MILLIS);
+    admission.setListener(new AdmissionControl.Listener() {
+      public void startAdmitted(final String hostname) {
+        signalHost(hostname);
+      }
+    });
+    stateJournal = openStateJournal();
+    failoverShard = findFailoverShard();
+    if (failoverShard != null) {
+      stateJournal.startReplicating(DaemonConstants.REPLICATION_LOG_BYTES);
+    }
     log.debug("Startup complete.");
   }
   
@@ -56,9 +113,21 @@ public class DaemonServer extends UnicastRemoteObject implements DaemonServerRem
       if (System.getSecurityManager() == null) {
         System.setSecurityManager(new RMISecurityManager());
       }
+      // Clients are handed a timed view of the server, so every remote call
+      // shows up in the DaemonServer latency MBeans
+      final DaemonServerRemoteInt timedServer = Metrics.timed(DaemonServerRemoteInt.class, server, "DaemonServer");
+      // A standby stays unbound, so clients pass it by
+      server.awaitLeadership();
       log.debug("Binding the DaemonServer to '" + DaemonConstants.RMI_URL + "'");
-      Naming.rebind(DaemonConstants.RMI_URL, server);
+      Naming.rebind(DaemonConstants.RMI_URL, UnicastRemoteObject.exportObject(timedServer, 0));
       log.debug("DaemonServer succesfully bound to " + DaemonConstants.RMI_URL);
+      if (DaemonConstants.NIO_PORT > 0) {
+        new NioServer(DaemonServerRemoteInt.class, timedServer, DaemonConstants.NIO_PORT);
+        log.debug("DaemonServer listening for NIO clients on port " + DaemonConstants.NIO_PORT);
+      }
+      if (DaemonConstants.SERVER_METRICS_PORT > 0) {
+        new MetricsHttpServer(DaemonConstants.SERVER_METRICS_PORT, server);
+      }
     } catch (final Exception ex) {
       log.fatal("DaemonServer failed binding to " + DaemonConstants.RMI_URL);
       log.fatal("Error DaemonServer binding error: ", ex);
@@ -67,54 +136,147 @@ public class DaemonServer extends UnicastRemoteObject implements DaemonServerRem
   }
   
   public DaemonBean[] getAllKnownDaemons() throws RemoteException {
-    final List<DaemonBean> daemons = daemonDAO.getAllKnownDaemons();
+    daemonRegistry.refreshIfStale();
+    final List<DaemonBean> daemons = daemonRegistry.getAllKnownDaemons();
     return daemons.toArray(new DaemonBean[daemons.size()]);
   }
   
+  public KnownDaemonsDelta getKnownDaemonsSince(final long epoch, final long version) throws RemoteException {
+    daemonRegistry.refreshIfStale();
+    return daemonRegistry.getKnownDaemonsSince(epoch, version);
+  }
+  
   /** Stores <hostname, currentAction> for the system. */
-  private final Map<String, IAction> serverToActionMap    = new Hashtable<String, IAction>();
-  private final AtomicInteger        actionIndex          = new AtomicInteger();
-  private long                       lastExpirationUpdate = System.currentTimeMillis();
-  private final Map<String, Long>    serviceStartTimesMap = new Hashtable<String, Long>();
+  private final Map<String, IAction>               serverToActionMap    = new Hashtable<String, IAction>();
+  /** Stores <hostname, <actionId, action>> for plans that haven't been returned yet. */
+  private final Map<String, Map<Integer, IAction>> serverToPlanMap      = new Hashtable<String, Map<Integer, IAction>>();
+  /** Stores <actionId, issuedMillis> for the actions in serverToPlanMap. */
+  private final Map<Integer, Long>                 actionIssueTimes     = new ConcurrentHashMap<Integer, Long>();
+  private final AtomicInteger                      actionIndex          = new AtomicInteger();
+  private long                                     lastExpirationUpdate = System.currentTimeMillis();
+  private final Map<String, Long>                  serviceStartTimesMap = new Hashtable<String, Long>();
   
   public IAction getNextAction(final String hostname, final String runningDaemonNames[]) throws RemoteException {
+    checkOwner(hostname);
     final IAction currentAction = serverToActionMap.get(hostname);
     if (currentAction != null) {
       log.error("Server '" + hostname + "' asked for an action without returning the previous action. This is bad.");
     }
     
+    final List<IAction> plan = planActions(hostname, runningDaemonNames, Collections.<String> emptySet());
+    if (plan.isEmpty()) {
+      // No actions, return null
+      return null;
+    }
+    final IAction action = plan.get(0);
+    issueAction(hostname, action);
+    return action;
+  }
+  
+  public IAction[] getActionPlan(final String hostname, final String runningDaemonNames[]) throws RemoteException {
+    checkOwner(hostname);
+    // Managers run actions in the background and report them as they finish,
+    // so daemons with an action still out are left alone until it's back.
+    Map<Integer, IAction> outstanding = serverToPlanMap.get(hostname);
+    if (outstanding == null) {
+      outstanding = new Hashtable<Integer, IAction>();
+    }
+    final Set<String> busyDaemonNames = expireOutstandingActions(hostname, outstanding);
+    
+    final List<IAction> plan = planActions(hostname, runningDaemonNames, busyDaemonNames);
+    final Long now = System.currentTimeMillis();
+    for (final IAction action : plan) {
+      issueAction(hostname, action);
+      outstanding.put(action.getId(), action);
+      actionIssueTimes.put(action.getId(), now);
+      stateJournal.actionIssued(hostname, action.getId(), action instanceof StartDaemon ? StateJournal.START : StateJournal.STOP, action.getDaemonBean().getName());
+    }
+    if (outstanding.isEmpty()) {
+      serverToPlanMap.remove(hostname);
+    } else {
+      serverToPlanMap.put(hostname, outstanding);
+    }
+    return plan.toArray(new IAction[plan.size()]);
+  }
+  
+  /**
+   * Gives up on the host's outstanding actions that have been out longer than
+   * {@link DaemonConstants#ACTION_TIMEOUT_MILLIS}, such as those of a manager
+   * that restarted part way through. The journal is only written once the
+   * plan's lock is let go, as compaction takes the journal's lock first and
+   * the plan's after.
+   * 
+   * @return the daemons that still have an action out.
+   */
+  private Set<String> expireOutstandingActions(final String hostname, final Map<Integer, IAction> outstanding) {
+    final Set<String> busyDaemonNames = new HashSet<String>();
+    final List<IAction> expired = new ArrayList<IAction>();
+    final long now = System.currentTimeMillis();
+    synchronized (outstanding) {
+      for (final Iterator<IAction> i = outstanding.values().iterator(); i.hasNext();) {
+        final IAction action = i.next();
+        final Long issued = actionIssueTimes.get(action.getId());
+        if (issued == null) {
+          // Restored from the journal, so the clock starts now
+          actionIssueTimes.put(action.getId(), now);
+        } else if (now - issued > DaemonConstants.ACTION_TIMEOUT_MILLIS) {
+          log.warn("Server '" + hostname + "' never returned action " + action.getId() + " for service '" + action.getDaemonBean().getName() + "', giving up on it.");
+          i.remove();
+          actionIssueTimes.remove(action.getId());
+          expired.add(action);
+          continue;
+        }
+        busyDaemonNames.add(action.getDaemonBean().getName());
+      }
+    }
+    for (final IAction action : expired) {
+      stateJournal.actionRemoved(hostname, action.getId());
+      if (action instanceof StartDaemon) {
+        admission.release(hostname, action.getDaemonBean().getName());
+      }
+    }
+    return busyDaemonNames;
+  }
+  
+  /**
+   * Works out every action the given host needs to take to match the desired
+   * state, in the order they should be run: stops for daemons that shouldn't
+   * be running, stops for daemons that have been running too long, then
+   * starts. Also brings the database in line with what the host reported. The
+   * per-action bookkeeping is left to {@link #issueAction(String, IAction)}.
+   */
+  private List<IAction> planActions(final String hostname, final String runningDaemonNames[], final Set<String> busyDaemonNames) {
     if (System.currentTimeMillis() > lastExpirationUpdate + (1000 * 60)) {
       daemonDAO.expireMissingDaemons();
       lastExpirationUpdate = System.currentTimeMillis();
     }
+    daemonRegistry.refreshIfStale();
+    hostSeen(hostname);
+    placeIfDue();
     
-    final List<String> expectedServiceNames = serverDAO.getExpectedServiceNames(hostname);
+    final List<String> expectedServiceNames = daemonRegistry.getExpectedServiceNames(hostname);
     
     final List<String> runningServiceNames = Arrays.asList(runningDaemonNames);
     final MergeResult<String, String> merge = MergeUtil.merge(runningServiceNames, expectedServiceNames, null);
     final List<String> daemonsToStart = merge.getCreate();
     final List<String> daemonsToStop = merge.getDelete();
     // Make sure the database reflects the current state of things...
-    for (final String daemonName : daemonsToStart) {
-      daemonDAO.setDaemonStatus(daemonDAO.getDaemonBean(daemonName), DaemonStatus.STOPPED);
-    }
-    for (final String daemonName : runningServiceNames) {
-      daemonDAO.setDaemonStatus(daemonDAO.getDaemonBean(daemonName), DaemonStatus.RUNNING);
-    }
+    recordDaemonStatuses(runningServiceNames, daemonsToStart);
+    admission.releaseRunning(hostname, runningServiceNames);
     
+    final List<IAction> plan = new ArrayList<IAction>();
     // First see if there are any services running that need to be stopped...
-    if (daemonsToStop.size() > 0) {
-      final String serviceToStopName = daemonsToStop.get(0);
-      log.info("Telling '" + hostname + "' to stop service '" + serviceToStopName + "'");
-      final StopDaemon action = new StopDaemon();
-      action.setId(actionIndex.getAndIncrement());
-      action.setDaemonBean(daemonDAO.getDaemonBean(serviceToStopName));
-      serviceStartTimesMap.remove(serviceToStopName);
-      return action;
+    for (final String serviceToStopName : daemonsToStop) {
+      if (!busyDaemonNames.contains(serviceToStopName)) {
+        plan.add(newStopDaemon(serviceToStopName));
+      }
     }
     
     // Check to see if any running daemons have been running too long...
     for (final String runningDaemonName : runningDaemonNames) {
+      if (daemonsToStop.contains(runningDaemonName) || busyDaemonNames.contains(runningDaemonName)) {
+        continue;
+      }
       Long lastStartTimeMillis = serviceStartTimesMap.get(runningDaemonName);
       if (lastStartTimeMillis == null) {
         // This would only be null if the daemon server has been restarted
@@ -122,40 +284,154 @@ public class DaemonServer extends UnicastRemoteObject implements DaemonServerRem
         // the daemon, so we'll set the time to now and that's as good as we
         // can do.
         lastStartTimeMillis = System.currentTimeMillis();
-        serviceStartTimesMap.put(runningDaemonName, lastStartTimeMillis);
+        setServiceStartTime(runningDaemonName, lastStartTimeMillis);
       }
-      final DaemonBean daemon = daemonDAO.getDaemonBean(runningDaemonName);
+      final DaemonBean daemon = daemonRegistry.getDaemonBean(runningDaemonName);
       if (System.currentTimeMillis() - lastStartTimeMillis.longValue() > daemon.getMaxContinuousRuntimeMillis()) {
-        log.info("Telling '" + hostname + "' to stop service '" + runningDaemonName + "' because it's been running too long.");
-        final StopDaemon action = new StopDaemon();
-        action.setId(actionIndex.getAndIncrement());
-        action.setDaemonBean(daemonDAO.getDaemonBean(runningDaemonName));
-        serviceStartTimesMap.remove(runningDaemonName);
-        return action;
+        log.info("Service '" + runningDaemonName + "' on '" + hostname + "' has been running too long.");
+        plan.add(newStopDaemon(runningDaemonName));
       }
     }
     
-    // Finally see if there are any daemons that we think should be started...
-    if (daemonsToStart.size() > 0) {
-      final String serviceToStartName = daemonsToStart.get(0);
-      log.info("Telling '" + hostname + "' to start service '" + serviceToStartName + "'");
+    // Finally see if there are any daemons that we think should be started,
+    // as many as the start limits will let through right now...
+    final List<DaemonBean> starts = new ArrayList<DaemonBean>(daemonsToStart.size());
+    for (final String serviceToStartName : daemonsToStart) {
+      if (!busyDaemonNames.contains(serviceToStartName)) {
+        starts.add(daemonRegistry.getDaemonBean(serviceToStartName));
+      }
+    }
+    for (final DaemonBean daemon : admission.admit(hostname, starts)) {
       final StartDaemon action = new StartDaemon();
       action.setId(actionIndex.getAndIncrement());
-      action.setDaemonBean(daemonDAO.getDaemonBean(serviceToStartName));
-      serviceStartTimesMap.put(serviceToStartName, System.currentTimeMillis());
-      return action;
+      action.setDaemonBean(daemon);
+      plan.add(action);
+    }
+    return plan;
+  }
+  
+  private StopDaemon newStopDaemon(final String daemonName) {
+    final StopDaemon action = new StopDaemon();
+    action.setId(actionIndex.getAndIncrement());
+    action.setDaemonBean(daemonRegistry.getDaemonBean(daemonName));
+    return action;
+  }
+  
+  /** Logs the action and updates the start-time bookkeeping as it goes out. */
+  private void issueAction(final String hostname, final IAction action) {
+    final String daemonName = action.getDaemonBean().getName();
+    if (action instanceof StopDaemon) {
+      log.info("Telling '" + hostname + "' to stop service '" + daemonName + "'");
+      serviceStartTimesMap.remove(daemonName);
+      stateJournal.startTimeRemoved(daemonName);
+    } else if (action instanceof StartDaemon) {
+      log.info("Telling '" + hostname + "' to start service '" + daemonName + "'");
+      setServiceStartTime(daemonName, System.currentTimeMillis());
+    }
+  }
+  
+  private void setServiceStartTime(final String daemonName, final long startTimeMillis) {
+    serviceStartTimesMap.put(daemonName, startTimeMillis);
+    stateJournal.startTimeSet(daemonName, startTimeMillis);
+  }
+  
+  /** Writes the given statuses to the database and the registry. */
+  private void recordDaemonStatuses(final Collection<String> runningDaemonNames, final Collection<String> stoppedDaemonNames) {
+    daemonDAO.reconcileDaemonStatuses(runningDaemonNames, stoppedDaemonNames);
+    daemonRegistry.setDaemonStatuses(runningDaemonNames, DaemonStatus.RUNNING);
+    daemonRegistry.setDaemonStatuses(stoppedDaemonNames, DaemonStatus.STOPPED);
+  }
+  
+  /** Stores <hostname, lastSeenWrittenMillis> for every host that has polled this server. */
+  private final ConcurrentMap<String, Long> hostsSeen       = new ConcurrentHashMap<String, Long>();
+  private final AtomicBoolean               placing         = new AtomicBoolean();
+  private volatile long                     lastPlacement   = 0;
+  private volatile int                      unplacedDaemons = 0;
+  
+  /**
+   * Writes down that the host is up, at most once every
+   * {@link DaemonConstants#PLACEMENT_INTERVAL_MILLIS}. A host this server
+   * hasn't heard from before may have just joined, so it brings the next
+   * placement forward.
+   */
+  private void hostSeen(final String hostname) {
+    final long now = System.currentTimeMillis();
+    final Long written = hostsSeen.get(hostname);
+    if (written != null && now - written < DaemonConstants.PLACEMENT_INTERVAL_MILLIS)
+      return;
+    if (written == null) {
+      lastPlacement = 0;
+    }
+    hostsSeen.put(hostname, now);
+    try {
+      serverDAO.setLastSeen(hostname, new Date(now));
+    } catch (final RuntimeException ex) {
+      log.error("Couldn't record that '" + hostname + "' was seen.", ex);
     }
-    
-    // No actions, return null
-    return null;
+  }
+  
+  /**
+   * Places daemons if {@link DaemonConstants#PLACEMENT_INTERVAL_MILLIS} has
+   * passed since last time, and this server is the one that does it. When
+   * sharded, that's whichever shard owns the name 'placement'. Runs on the
+   * calling poll, like {@link DaemonDAO#expireMissingDaemons()}, and only one
+   * poll at a time does it.
+   */
+  private void placeIfDue() {
+    if (System.currentTimeMillis() - lastPlacement < DaemonConstants.PLACEMENT_INTERVAL_MILLIS)
+      return;
+    if (shard != null && !shard.equals(shardRing.getOwner("placement")))
+      return;
+    if (!placing.compareAndSet(false, true))
+      return;
+    try {
+      lastPlacement = System.currentTimeMillis();
+      placeDaemons();
+    } catch (final RuntimeException ex) {
+      log.error("Exception while placing daemons, will try again.", ex);
+    } finally {
+      placing.set(false);
+    }
+  }
+  
+  /**
+   * Moves the daemons that aren't pinned onto the servers seen in the last
+   * {@link DaemonConstants#PLACEMENT_HOST_TIMEOUT_MILLIS}, see
+   * {@link Placement}. Reloading a moved daemon into the registry wakes up
+   * both hosts, the old one to stop it and the new one to start it.
+   */
+  private void placeDaemons() {
+    final long cutoff = System.currentTimeMillis() - DaemonConstants.PLACEMENT_HOST_TIMEOUT_MILLIS;
+    final List<ServerBean> liveServers = new ArrayList<ServerBean>();
+    for (final ServerBean server : serverDAO.getKnownServers()) {
+      if (server.getLastSeen() != null && server.getLastSeen().getTime() > cutoff) {
+        liveServers.add(server);
+      }
+    }
+    final Placement placement = new Placement(liveServers, DaemonConstants.PLACEMENT_REBALANCE_MOVES);
+    final Map<String, ServerBean> moves = placement.place(daemonRegistry.getAllKnownDaemons());
+    for (final Map.Entry<String, ServerBean> move : moves.entrySet()) {
+      final DaemonBean daemon = daemonRegistry.getDaemonBean(move.getKey());
+      final String from = daemon.getServer() == null ? "nowhere" : "'" + daemon.getServer().getName() + "'";
+      log.info("Moving service '" + move.getKey() + "' from " + from + " to '" + move.getValue().getName() + "'");
+      daemonDAO.setServer(daemon, move.getValue());
+      daemonRegistry.reload(move.getKey());
+    }
+    if (!placement.getUnplaced().isEmpty()) {
+      log.warn("No room on any live server for service(s) " + placement.getUnplaced());
+    }
+    unplacedDaemons = placement.getUnplaced().size();
   }
   
   public void returnCompletedAction(final String hostname, final IAction completedAction) throws RemoteException {
+    checkOwner(hostname);
     if (completedAction != null) {
+      final List<String> daemonNames = Collections.singletonList(completedAction.getDaemonBean().getName());
       if (completedAction instanceof StartDaemon) {
-        daemonDAO.setDaemonStatus(completedAction.getDaemonBean(), DaemonStatus.RUNNING);
+        admission.release(hostname, completedAction.getDaemonBean().getName());
+        recordDaemonStatuses(daemonNames, Collections.<String> emptyList());
       } else if (completedAction instanceof StopDaemon) {
-        daemonDAO.setDaemonStatus(completedAction.getDaemonBean(), DaemonStatus.STOPPED);
+        recordDaemonStatuses(Collections.<String> emptyList(), daemonNames);
       }
     }
     
@@ -167,201 +443,755 @@ public class DaemonServer extends UnicastRemoteObject implements DaemonServerRem
     }
   }
   
-  private final Map<String, SingletonLease> singletonMap = new Hashtable<String, SingletonLease>();
+  public void returnCompletedActions(final String hostname, final ActionResult results[]) throws RemoteException {
+    checkOwner(hostname);
+    final Map<Integer, IAction> outstanding = serverToPlanMap.get(hostname);
+    if (outstanding == null) {
+      log.error("Server '" + hostname + "' returned " + results.length + " result(s) without an outstanding plan.");
+      return;
+    }
+    final List<String> startedDaemonNames = new ArrayList<String>();
+    final List<String> stoppedDaemonNames = new ArrayList<String>();
+    for (final ActionResult result : results) {
+      final IAction action = outstanding.remove(result.getActionId());
+      actionIssueTimes.remove(result.getActionId());
+      if (action == null) {
+        log.warn("Server '" + hostname + "' returned a result for unknown action " + result.getActionId());
+        continue;
+      }
+      stateJournal.actionRemoved(hostname, result.getActionId());
+      final String daemonName = action.getDaemonBean().getName();
+      if (action instanceof StartDaemon) {
+        admission.release(hostname, daemonName);
+      }
+      if (!result.isSuccess()) {
+        log.error("Server '" + hostname + "' failed action " + result.getActionId() + " for service '" + daemonName + "'");
+      } else if (action instanceof StartDaemon) {
+        startedDaemonNames.add(daemonName);
+      } else if (action instanceof StopDaemon) {
+        stoppedDaemonNames.add(daemonName);
+      }
+    }
+    if (outstanding.isEmpty()) {
+      serverToPlanMap.remove(hostname);
+      stateJournal.planCleared(hostname);
+    }
+    recordDaemonStatuses(startedDaemonNames, stoppedDaemonNames);
+  }
+  
+  /** Stores <hostname, signal> for hosts that have long-polled for actions. */
+  private final ConcurrentMap<String, HostSignal> hostSignals = new ConcurrentHashMap<String, HostSignal>();
+  
+  /** Wakes the host if it's long-polling, so it asks for its plan again. */
+  private void signalHost(final String hostname) {
+    final HostSignal signal = hostSignals.get(hostname);
+    if (signal != null) {
+      signal.signal();
+    }
+  }
+  
+  private HostSignal getHostSignal(final String hostname) {
+    HostSignal signal = hostSignals.get(hostname);
+    if (signal == null) {
+      final HostSignal newSignal = new HostSignal();
+      signal = hostSignals.putIfAbsent(hostname, newSignal);
+      if (signal == null) {
+        signal = newSignal;
+      }
+    }
+    return signal;
+  }
+  
+  /** Stores <hostname, runningDaemonNames> reported since the host's poll parked. */
+  private final ConcurrentMap<String, String[]> reportedRunning = new ConcurrentHashMap<String, String[]>();
+  
+  public IAction awaitNextAction(final String hostname, final String runningDaemonNames[], final long maxWaitMillis) throws RemoteException {
+    final long generation = getHostSignal(hostname).getGeneration();
+    reportedRunning.remove(hostname);
+    final IAction action = getNextAction(hostname, runningDaemonNames);
+    if (action != null || !awaitDesiredStateChange(hostname, generation, maxWaitMillis))
+      return action;
+    return getNextAction(hostname, getLatestRunning(hostname, runningDaemonNames));
+  }
+  
+  public IAction[] awaitActionPlan(final String hostname, final String runningDaemonNames[], final long maxWaitMillis) throws RemoteException {
+    final long generation = getHostSignal(hostname).getGeneration();
+    reportedRunning.remove(hostname);
+    final IAction plan[] = getActionPlan(hostname, runningDaemonNames);
+    if (plan.length > 0 || !awaitDesiredStateChange(hostname, generation, maxWaitMillis))
+      return plan;
+    return getActionPlan(hostname, getLatestRunning(hostname, runningDaemonNames));
+  }
+  
+  public void reportRunningDaemons(final String hostname, final String runningDaemonNames[]) throws RemoteException {
+    checkOwner(hostname);
+    reportedRunning.put(hostname, runningDaemonNames);
+    signalHost(hostname);
+  }
+  
+  /** @return what the host reported running while its poll was parked, or what it polled with if nothing. */
+  private String[] getLatestRunning(final String hostname, final String polledRunningDaemonNames[]) {
+    final String reported[] = reportedRunning.remove(hostname);
+    return reported == null ? polledRunningDaemonNames : reported;
+  }
+  
+  /** Stores the rolling windows of what hosts report with their polls. */
+  private final TelemetryStore telemetryStore = new TelemetryStore(DaemonConstants.TELEMETRY_WINDOW_MILLIS, DaemonConstants.TELEMETRY_WINDOW_SAMPLES);
+  
+  public IAction[] awaitActionPlan(final String hostname, final String runningDaemonNames[], final HostTelemetry telemetry, final long maxWaitMillis) throws RemoteException {
+    checkOwner(hostname);
+    if (telemetry != null) {
+      telemetryStore.record(hostname, telemetry);
+    }
+    return awaitActionPlan(hostname, runningDaemonNames, maxWaitMillis);
+  }
+  
+  /** @return the rolling windows of the resource use hosts have reported. */
+  public TelemetryStore getTelemetryStore() {
+    return telemetryStore;
+  }
   
   /**
-   * @return the time since unix epoch that the least should expire. Uses
-   *         {@link DaemonConstants#SINGLETON_LEASE_TIME_SECONDS}
+   * Parks the caller until the desired state of the given host moves past the
+   * given generation, or until the timeout expires. While parked, the caller
+   * keeps the registry fresh so that changes written straight to the database
+   * (by {@link DaemonEdit}, for instance) wake it up too.
+   * 
+   * @return true if the desired state changed, false on timeout.
    */
-  private long getLeaseExpirationTimeMillis() {
-    return System.currentTimeMillis() + (DaemonConstants.SINGLETON_LEASE_TIME_SECONDS * 1100);
+  private boolean awaitDesiredStateChange(final String hostname, final long generation, final long maxWaitMillis) {
+    final HostSignal signal = getHostSignal(hostname);
+    final long deadline = System.currentTimeMillis() + maxWaitMillis;
+    long remaining = maxWaitMillis;
+    while (remaining > 0) {
+      if (signal.await(generation, Math.min(remaining, DaemonConstants.DAEMON_REGISTRY_REFRESH_MILLIS)))
+        return true;
+      daemonRegistry.refreshIfStale();
+      remaining = deadline - System.currentTimeMillis();
+    }
+    return signal.getGeneration() != generation;
+  }
+  
+  public void setTargetDaemonStatus(final String daemonName, final DaemonStatus status) throws RemoteException {
+    final DaemonBean daemon = daemonRegistry.getDaemonBean(daemonName);
+    if (daemon == null)
+      throw new RemoteException("Unknown daemon '" + daemonName + "'");
+    log.info("Setting target status of '" + daemonName + "' to " + status);
+    daemonDAO.setTargetDaemonStatus(daemon, status);
+    daemonRegistry.setTargetDaemonStatus(daemonName, status);
+  }
+  
+  /**
+   * Singleton leases last {@link DaemonConstants#SINGLETON_LEASE_TIME_SECONDS}
+   * plus a 10% grace period for renewals that arrive a little late.
+   */
+  private final LeaseTable singletonLeases       = new LeaseTable(DaemonConstants.SINGLETON_LEASE_TIME_SECONDS * 1100);
+  /** Which shard this server is, or null if it isn't sharded. */
+  private final String     shard                 = DaemonConstants.DAEMON_SERVER_SHARD;
+  private final HashRing   shardRing             = shard == null ? null : DaemonServerLocator.getRing();
+  /**
+   * A shard that has just started may own names that another shard handed out
+   * before the ring changed, so for one lease period nothing new is granted.
+   * Holders that have moved over can still renew their names here.
+   */
+  private final long       leaseGraceUntilMillis = shard == null ? 0 : System.currentTimeMillis() + DaemonConstants.SINGLETON_LEASE_TIME_SECONDS * 1100;
+  
+  /**
+   * Refuses hostnames and singleton names that belong to another shard, so a
+   * client with an out of date ring can't be granted a name that another shard
+   * thinks it owns too.
+   */
+  private void checkOwner(final String key) throws RemoteException {
+    if (shard == null)
+      return;
+    final String owner = shardRing.getOwner(DaemonServerLocator.getRoutingKey(key));
+    if (!owner.equals(shard))
+      throw new RemoteException("'" + key + "' belongs to shard '" + owner + "', not '" + shard + "'");
+  }
+  
+  /** @return how long is left before new leases can be granted, 0 once they can. */
+  private long getLeaseGraceMillis() {
+    return Math.max(0, leaseGraceUntilMillis - System.currentTimeMillis());
   }
   
   public boolean registerSingletonName(final String singletonName, final String hostname) throws RemoteException {
-    cullExpiredLeases();
-    final SingletonLease existingLease = singletonMap.get(singletonName);
-    if (existingLease == null) {
-      log.debug("Registering '" + singletonName + "' to host '" + hostname + "'");
-      singletonMap.put(singletonName, new SingletonLease(hostname, getLeaseExpirationTimeMillis()));
-      return true;
+    return registerSingletonLease(singletonName, hostname).isGranted();
+  }
+  
+  public LeaseGrant registerSingletonLease(final String singletonName, final String hostname) throws RemoteException {
+    checkOwner(singletonName);
+    if (getLeaseGraceMillis() > 0) {
+      log.warn("Denying '" + singletonName + "' to host '" + hostname + "' while the shard's lease grace period runs");
+      return LeaseGrant.DENIED;
+    }
+    final Lease lease = singletonLeases.acquire(singletonName, hostname);
+    if (lease != null) {
+      log.debug("Registering '" + singletonName + "' to host '" + hostname + "' with fence " + lease.getFence());
     } else {
-      log.warn("Duplicate singleton registration attempted for '" + singletonName + "' from host '" + hostname + ". Already existing entry: " + existingLease.toString());
-      return false;
+      log.warn("Duplicate singleton registration attempted for '" + singletonName + "' from host '" + hostname + ". Already existing entry: " + singletonLeases.getLease(singletonName));
     }
+    return LeaseGrant.forLease(lease);
   }
   
-  private synchronized void cullExpiredLeases() {
-    final Iterator<String> keys = singletonMap.keySet().iterator();
-    while (keys.hasNext()) {
-      final String singletonName = keys.next();
-      final SingletonLease lease = singletonMap.get(singletonName);
-      if (lease != null) {
-        if (lease.getLeaseExpirationTime() < System.currentTimeMillis()) {
-          log.info("Lease (" + singletonName + "|" + lease.toString() + ") has expired. Culling.");
-          keys.remove();
-        }
+  public LeaseGrant acquireSingletonName(final String singletonName, final String hostname, final long maxWaitMillis) throws RemoteException {
+    final long requestStartNanos = System.nanoTime();
+    checkOwner(singletonName);
+    final long graceMillis = getLeaseGraceMillis();
+    if (graceMillis > 0) {
+      // Waits in line like anybody else would for a name that's taken
+      if (graceMillis >= maxWaitMillis) {
+        Absorb.sleep(maxWaitMillis);
+        return LeaseGrant.DENIED;
       }
+      Absorb.sleep(graceMillis);
+    }
+    final Lease lease = singletonLeases.acquire(singletonName, hostname, maxWaitMillis - graceMillis);
+    if (lease != null) {
+      log.debug("Registering '" + singletonName + "' to waiting host '" + hostname + "' with fence " + lease.getFence());
+    }
+    return LeaseGrant.forLease(lease, -1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requestStartNanos));
+  }
+  
+  public LeaseGrant registerCountedLease(final String name, final int permits, final String hostname) throws RemoteException {
+    checkOwner(name);
+    if (getLeaseGraceMillis() > 0) {
+      log.warn("Denying a permit of '" + name + "' to host '" + hostname + "' while the shard's lease grace period runs");
+      return LeaseGrant.DENIED;
     }
+    final int slot = singletonLeases.acquireSlot(name, permits, hostname);
+    if (slot < 0) {
+      log.debug("All " + permits + " permits of '" + name + "' are taken, denying host '" + hostname + "'");
+      return LeaseGrant.DENIED;
+    }
+    log.debug("Registering permit " + slot + " of '" + name + "' to host '" + hostname + "'");
+    return LeaseGrant.forLease(singletonLeases.getLease(LeaseTable.slotName(name, slot)), slot);
   }
   
   public boolean assertSingletonName(final String singletonName, final String hostname) throws RemoteException {
-    cullExpiredLeases();
-    final SingletonLease existingLease = singletonMap.get(singletonName);
-    if (existingLease == null)
-      return registerSingletonName(singletonName, hostname);
-    if (existingLease.getHostname().equalsIgnoreCase(hostname)) {
-      existingLease.setLeaseExpirationTime(getLeaseExpirationTimeMillis());
-      return true;
+    checkOwner(singletonName);
+    return singletonLeases.renew(singletonName, hostname) != null;
+  }
+  
+  public boolean[] assertSingletonNames(final String singletonNames[], final String hostname) throws RemoteException {
+    final boolean results[] = new boolean[singletonNames.length];
+    for (int i = 0; i < singletonNames.length; i++) {
+      checkOwner(singletonNames[i]);
+      results[i] = singletonLeases.renew(singletonNames[i], hostname) != null;
     }
-    return false;
+    return results;
+  }
+  
+  public LeaseGrant[] assertSingletonLeases(final String singletonNames[], final String hostname) throws RemoteException {
+    final LeaseGrant results[] = new LeaseGrant[singletonNames.length];
+    for (int i = 0; i < singletonNames.length; i++) {
+      checkOwner(singletonNames[i]);
+      results[i] = LeaseGrant.forLease(singletonLeases.renew(singletonNames[i], hostname));
+    }
+    return results;
   }
   
   public void freeSingletonName(final String singletonName, final String hostname) throws RemoteException {
-    final SingletonLease existingLease = singletonMap.get(singletonName);
-    if (existingLease == null)
-      return;
-    if (existingLease.getHostname().equalsIgnoreCase(hostname)) {
+    checkOwner(singletonName);
+    if (singletonLeases.free(singletonName, hostname)) {
       log.debug("Freeing '" + singletonName + "' from host '" + hostname + "'");
-      singletonMap.remove(singletonName);
-    } else {
+    } else if (singletonLeases.getLease(singletonName) != null) {
       log.debug("Improper free request for '" + singletonName + "' from host '" + hostname + "'");
     }
   }
   
   /**
-   * Does nothing, used to verify that we have a valid RMI connection.
+   * Replays the state journal, if there is one, puts back the leases, start
+   * times and outstanding plans it remembers, then starts journaling to it.
+   * Runs from the constructor, so it's done before main binds the server to
+   * RMI and nobody can see it half restored. If the journal can't be read, the
+   * server starts out empty, the same as it always used to.
    */
-  public void noop() throws java.rmi.RemoteException {
+  private StateJournal openStateJournal() {
+    final String fileName = DaemonConstants.STATE_JOURNAL_FILE;
+    final StateJournal journal = new StateJournal(fileName == null || fileName.length() == 0 ? null : new File(fileName));
+    final RestoredState restored = new RestoredState();
+    try {
+      journal.replay(restored);
+      restored.apply();
+    } catch (final IOException ex) {
+      log.error("Couldn't replay state journal '" + fileName + "', starting without it.", ex);
+    }
+    singletonLeases.setListener(new LeaseTable.Listener() {
+      public void leaseGranted(final Lease lease) {
+        stateJournal.leaseGranted(lease);
+      }
+      
+      public void leaseRemoved(final Lease lease) {
+        stateJournal.leaseRemoved(lease.getName(), lease.getFence());
+      }
+    });
+    try {
+      // Starts the journal out clean, without any torn record at the end
+      journal.compact(journalSnapshot);
+    } catch (final IOException ex) {
+      log.error("Couldn't write state journal '" + fileName + "', will keep trying.", ex);
+    }
+    journal.startFlushing(journalSnapshot);
+    return journal;
   }
   
-  private ProcessWrapper procWrapper = null;
+  private final StateJournal.Snapshot journalSnapshot = new StateJournal.Snapshot() {
+    public void writeTo(final StateJournal journal) {
+      writeState(journal);
+    }
+  };
   
-  public void startProcess(final String command[]) throws RemoteException {
-    try {
-      final Process proc = (Runtime.getRuntime()).exec(command);
-      destroyProcess();
-      procWrapper = new ProcessWrapper(proc);
-      log.debug("Started new process...");
-    } catch (final Exception ex) {
-      throw new RemoteException("Exception while establishing connection:", ex);
+  /**
+   * Writes the full runtime state to the journal, for compaction. Called with
+   * the journal's lock held, so each map is copied under its own lock and only
+   * written out once that lock is let go, and nothing that journals while
+   * holding one of those locks can deadlock against it.
+   */
+  private void writeState(final StateJournal journal) {
+    for (final Lease lease : singletonLeases.getLeases()) {
+      journal.leaseGranted(lease);
+    }
+    final Map<String, Long> startTimes;
+    synchronized (serviceStartTimesMap) {
+      startTimes = new HashMap<String, Long>(serviceStartTimesMap);
+    }
+    for (final Map.Entry<String, Long> entry : startTimes.entrySet()) {
+      journal.startTimeSet(entry.getKey(), entry.getValue());
+    }
+    final Map<String, Map<Integer, IAction>> plans;
+    synchronized (serverToPlanMap) {
+      plans = new HashMap<String, Map<Integer, IAction>>(serverToPlanMap);
+    }
+    for (final Map.Entry<String, Map<Integer, IAction>> entry : plans.entrySet()) {
+      final List<IAction> actions;
+      synchronized (entry.getValue()) {
+        actions = new ArrayList<IAction>(entry.getValue().values());
+      }
+      for (final IAction action : actions) {
+        journal.actionIssued(entry.getKey(), action.getId(), action instanceof StartDaemon ? StateJournal.START : StateJournal.STOP, action.getDaemonBean().getName());
+      }
     }
   }
   
-  public byte[] readFromProcessIn() throws RemoteException {
-    try {
-      return procWrapper.readIn();
-    } catch (final Exception ex) {
-      throw new RemoteException("Exception during read.", ex);
+  /**
+   * Collects the state replayed from the journal, or followed from the leader
+   * by a standby, so that only the final state of each entry is put back.
+   */
+  private class RestoredState implements Replica.State {
+    /** Stores <singletonName, lease> */
+    private final Map<String, Lease>                leases     = new HashMap<String, Lease>();
+    /** Stores <daemonName, startTimeMillis> */
+    private final Map<String, Long>                 startTimes = new HashMap<String, Long>();
+    /** Stores <hostname, <actionId, daemonName>> */
+    private final Map<String, Map<Integer, String>> plans      = new HashMap<String, Map<Integer, String>>();
+    /** Stores <hostname, <actionId, kind>> */
+    private final Map<String, Map<Integer, Byte>>   kinds      = new HashMap<String, Map<Integer, Byte>>();
+    
+    public void leaseGranted(final Lease lease) {
+      leases.put(lease.getName(), lease);
+    }
+    
+    public void leaseRemoved(final String name, final long fence) {
+      final Lease lease = leases.get(name);
+      if (lease != null && lease.getFence() == fence) {
+        leases.remove(name);
+      }
+    }
+    
+    public void startTimeSet(final String daemonName, final long startTimeMillis) {
+      startTimes.put(daemonName, startTimeMillis);
+    }
+    
+    public void startTimeRemoved(final String daemonName) {
+      startTimes.remove(daemonName);
+    }
+    
+    public void actionIssued(final String hostname, final int actionId, final byte kind, final String daemonName) {
+      if (!plans.containsKey(hostname)) {
+        plans.put(hostname, new HashMap<Integer, String>());
+        kinds.put(hostname, new HashMap<Integer, Byte>());
+      }
+      plans.get(hostname).put(actionId, daemonName);
+      kinds.get(hostname).put(actionId, kind);
+    }
+    
+    public void actionRemoved(final String hostname, final int actionId) {
+      if (plans.containsKey(hostname)) {
+        plans.get(hostname).remove(actionId);
+        kinds.get(hostname).remove(actionId);
+      }
+    }
+    
+    public void planCleared(final String hostname) {
+      plans.remove(hostname);
+      kinds.remove(hostname);
+    }
+    
+    public void clear() {
+      leases.clear();
+      startTimes.clear();
+      plans.clear();
+      kinds.clear();
+    }
+    
+    public void apply() {
+      for (final Lease lease : leases.values()) {
+        singletonLeases.restore(lease);
+      }
+      serviceStartTimesMap.putAll(startTimes);
+      int maxActionId = -1;
+      int actions = 0;
+      for (final Map.Entry<String, Map<Integer, String>> entry : plans.entrySet()) {
+        final Map<Integer, IAction> outstanding = new Hashtable<Integer, IAction>();
+        for (final Map.Entry<Integer, String> action : entry.getValue().entrySet()) {
+          final DaemonBean daemon = daemonRegistry.getDaemonBean(action.getValue());
+          if (daemon == null) {
+            log.warn("Dropping outstanding action " + action.getKey() + " for unknown service '" + action.getValue() + "'");
+            continue;
+          }
+          if (kinds.get(entry.getKey()).get(action.getKey()) == StateJournal.START) {
+            final StartDaemon start = new StartDaemon();
+            start.setId(action.getKey());
+            start.setDaemonBean(daemon);
+            outstanding.put(action.getKey(), start);
+          } else {
+            final StopDaemon stop = new StopDaemon();
+            stop.setId(action.getKey());
+            stop.setDaemonBean(daemon);
+            outstanding.put(action.getKey(), stop);
+          }
+          maxActionId = Math.max(maxActionId, action.getKey());
+        }
+        if (!outstanding.isEmpty()) {
+          serverToPlanMap.put(entry.getKey(), outstanding);
+          actions += outstanding.size();
+        }
+      }
+      // Keeps new action ids from colliding with the ones still outstanding
+      actionIndex.set(maxActionId + 1);
+      log.info("Restored " + singletonLeases.size() + " lease(s), " + startTimes.size() + " start time(s) and " + actions + " outstanding action(s).");
     }
   }
   
-  public byte[] readFromProcessErr() throws RemoteException {
+  /**
+   * Every way a DaemonManager can ask for work, as timed by the proxy that
+   * {@link #main(String[])} binds, which together give the poll rate.
+   */
+  private final LatencyStats pollStats[]      = { Metrics.getLatencyStats("DaemonServer", "getNextAction"), Metrics.getLatencyStats("DaemonServer", "getActionPlan"), Metrics.getLatencyStats("DaemonServer", "awaitNextAction"), Metrics.getLatencyStats("DaemonServer", "awaitActionPlan/3"), Metrics.getLatencyStats("DaemonServer", "awaitActionPlan/4") };
+  /** Reused by every scrape, which are only ever run one at a time. */
+  private final int          daemonStatuses[] = new int[DaemonStatus.values().length];
+  private final int          targetStatuses[] = new int[DaemonStatus.values().length];
+  
+  public void writeMetrics(final PrometheusWriter out) {
+    out.gauge("daemon_server_leases", "Singleton and counted leases held, possibly including a few expired ones that haven't been culled yet.", singletonLeases.size());
+    
+    out.header("daemon_server_pending_actions", "gauge", "Actions handed to a host that it hasn't reported back on.");
+    synchronized (serverToPlanMap) {
+      for (final Map.Entry<String, Map<Integer, IAction>> entry : serverToPlanMap.entrySet()) {
+        out.sample("daemon_server_pending_actions", "host", entry.getKey(), entry.getValue().size());
+      }
+    }
+    synchronized (serverToActionMap) {
+      for (final String hostname : serverToActionMap.keySet()) {
+        if (!serverToPlanMap.containsKey(hostname)) {
+          out.sample("daemon_server_pending_actions", "host", hostname, 1);
+        }
+      }
+    }
+    
+    daemonRegistry.countStatuses(daemonStatuses, targetStatuses);
+    out.header("daemon_server_known_daemons", "gauge", "Known daemons by last reported status.");
+    for (final DaemonStatus status : DaemonStatus.values()) {
+      out.sample("daemon_server_known_daemons", "status", status.name(), daemonStatuses[status.ordinal()]);
+    }
+    out.header("daemon_server_target_daemons", "gauge", "Known daemons by target status.");
+    for (final DaemonStatus status : DaemonStatus.values()) {
+      out.sample("daemon_server_target_daemons", "status", status.name(), targetStatuses[status.ordinal()]);
+    }
+    
+    long polls = 0;
+    for (final LatencyStats stats : pollStats) {
+      polls += stats.getCount();
+    }
+    out.counter("daemon_server_polls_total", "Requests from DaemonManagers for their next action or plan.", polls);
+    out.gauge("daemon_server_process_sessions", "Remote process sessions open.", processSessions.size());
+    telemetryStore.writeMetrics(out);
+    out.gauge("daemon_server_unplaced_daemons", "Daemons that aren't pinned and didn't fit on any live server.", unplacedDaemons);
+    out.gauge("daemon_server_starts_in_flight", "Daemon starts let through that haven't completed yet.", admission.getAdmittedCount());
+    out.gauge("daemon_server_starts_queued", "Daemon starts waiting on the start limits.", admission.getQueuedCount());
+    Metrics.writeLatencies(out);
+  }
+  
+  /**
+   * @return the shard this server is a member of, if
+   *         {@link DaemonConstants#DAEMON_SERVER_ADDRESS} is set and the shard
+   *         has other members to fail over to, otherwise null.
+   */
+  private static String findFailoverShard() {
+    final String self = DaemonConstants.DAEMON_SERVER_ADDRESS;
+    if (self == null || self.length() == 0)
+      return null;
+    String shard = DaemonConstants.DAEMON_SERVER_SHARD;
+    if (shard == null && DaemonServerLocator.getRing().size() == 1) {
+      shard = DaemonServerLocator.getRing().getNodes().get(0);
+    }
+    if (shard == null || !Arrays.asList(DaemonServerLocator.getMembers(shard)).contains(self)) {
+      log.error("'" + self + "' isn't listed as a member of a shard, running without standbys.");
+      return null;
+    }
+    return DaemonServerLocator.getMembers(shard).length > 1 ? shard : null;
+  }
+  
+  /**
+   * Stands by, following the leader's state, until this server wins its
+   * shard's leader lease. Then takes over the state it followed, and keeps
+   * renewing the lease for as long as the process runs. Returns straight away
+   * if the server has no standbys.
+   */
+  public void awaitLeadership() {
+    if (failoverShard == null)
+      return;
+    final RestoredState replicated = new RestoredState();
+    final Replica replica = new Replica(replicated);
+    String leaderAddress = null;
+    DaemonServerRemoteInt leader = null;
+    while (true) {
+      final long requestStartNanos = System.nanoTime();
+      final LeaderBean lease = tryLeaderLease();
+      if (lease != null && DaemonConstants.DAEMON_SERVER_ADDRESS.equals(lease.getHolder())) {
+        log.info("Leading shard '" + failoverShard + "' in term " + lease.getTerm());
+        if (replica.hasState()) {
+          takeOver(replicated);
+        }
+        final LeaderHeartbeat heartbeat = new LeaderHeartbeat(requestStartNanos);
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+        final LeaderWatchdog watchdog = new LeaderWatchdog(heartbeat);
+        watchdog.setDaemon(true);
+        watchdog.start();
+        return;
+      }
+      if (lease == null || lease.getHolder() == null) {
+        Absorb.sleep(DaemonConstants.LEADER_HEARTBEAT_MILLIS);
+        continue;
+      }
+      try {
+        if (!lease.getHolder().equals(leaderAddress)) {
+          leader = DaemonServerLocator.lookupAddress(lease.getHolder());
+          leaderAddress = lease.getHolder();
+          log.info("Standing by for '" + leaderAddress + "'");
+        }
+        // Waits up to a heartbeat for changes, then it's time to try the lease again
+        replica.follow(leaderAddress, leader, DaemonConstants.LEADER_HEARTBEAT_MILLIS);
+      } catch (final Exception ex) {
+        log.debug("Couldn't follow '" + lease.getHolder() + "': " + ex.getMessage());
+        leaderAddress = null;
+        Absorb.sleep(DaemonConstants.LEADER_HEARTBEAT_MILLIS);
+      }
+    }
+  }
+  
+  /** @return the leader lease of the shard as it stands after trying for it, or null if it couldn't be reached. */
+  private LeaderBean tryLeaderLease() {
     try {
-      return procWrapper.readErr();
-    } catch (final Exception ex) {
-      throw new RemoteException("Exception during read.", ex);
+      return leaderDAO.tryAcquire(failoverShard, DaemonConstants.DAEMON_SERVER_ADDRESS, DaemonConstants.LEADER_LEASE_MILLIS);
+    } catch (final RuntimeException ex) {
+      log.error("Couldn't reach the leader lease of shard '" + failoverShard + "'", ex);
+      return null;
     }
   }
   
-  public void sendToProcess(final byte[] send) throws RemoteException {
+  /**
+   * Swaps whatever this server remembered from its own journal for the state
+   * it followed from the old leader, which is newer, and journals it.
+   */
+  private void takeOver(final RestoredState replicated) {
+    singletonLeases.clear();
+    serverToPlanMap.clear();
+    actionIssueTimes.clear();
+    serviceStartTimesMap.clear();
+    replicated.apply();
     try {
-      procWrapper.write(send);
-    } catch (final Exception ex) {
-      throw new RemoteException("Exception during write.", ex);
+      stateJournal.compact(journalSnapshot);
+    } catch (final IOException ex) {
+      log.error("Couldn't journal the state taken over from the old leader", ex);
     }
   }
   
-  public boolean isProcessAlive() throws RemoteException {
-    return procWrapper != null && procWrapper.isAlive();
+  public byte[] getReplicationSnapshot() throws RemoteException {
+    try {
+      return stateJournal.snapshot(journalSnapshot);
+    } catch (final IOException ex) {
+      throw new RemoteException("Exception during snapshot.", ex);
+    }
   }
   
-  public void destroyProcess() throws RemoteException {
-    if (procWrapper != null) {
-      log.debug("Destroying process");
-      procWrapper.close();
-      procWrapper = null;
+  public ProcessOutput readReplicationLog(final long logId, final long offset, final int maxBytes, final long waitMillis) throws RemoteException {
+    try {
+      return stateJournal.readReplicationLog(logId, offset, maxBytes, waitMillis);
+    } catch (final Exception ex) {
+      throw new RemoteException("Exception during read.", ex);
     }
   }
   
-  static class ProcessWrapper {
-    private Process proc;
-    InputStream     inStream;
-    InputStream     errStream;
-    OutputStream    outStream;
+  /**
+   * Renews the leader lease every
+   * {@link DaemonConstants#LEADER_HEARTBEAT_MILLIS}. If another member has
+   * taken the lease, or it can't be renewed in time, the process exits rather
+   * than serve alongside a new leader. Whatever restarts it brings it back as a
+   * standby. The deadline is enforced by a {@link LeaderWatchdog}, as the
+   * renewal itself can hang on the database.
+   */
+  private class LeaderHeartbeat extends KillableThread {
+    /**
+     * A heartbeat short of when the lease runs out, in case the members'
+     * clocks don't quite agree.
+     */
+    private volatile long validUntilNanos;
     
-    public ProcessWrapper(final Process proc) {
-      this.proc = proc;
-      inStream = proc.getInputStream();
-      errStream = proc.getErrorStream();
-      outStream = proc.getOutputStream();
+    public LeaderHeartbeat(final long requestStartNanos) {
+      setName("LeaderHeartbeat");
+      renewed(requestStartNanos);
     }
     
-    public byte[] readIn() throws IOException {
-      final byte buffer[] = new byte[inStream.available()];
-      inStream.read(buffer);
-      return buffer;
+    private void renewed(final long requestStartNanos) {
+      validUntilNanos = requestStartNanos + TimeUnit.MILLISECONDS.toNanos(DaemonConstants.LEADER_LEASE_MILLIS - DaemonConstants.LEADER_HEARTBEAT_MILLIS);
     }
     
-    public byte[] readErr() throws IOException {
-      final byte buffer[] = new byte[errStream.available()];
-      errStream.read(buffer);
-      return buffer;
+    @Override
+    public void run() {
+      while (!die) {
+        Absorb.sleep(DaemonConstants.LEADER_HEARTBEAT_MILLIS);
+        final long requestStartNanos = System.nanoTime();
+        final LeaderBean lease = tryLeaderLease();
+        if (lease != null && DaemonConstants.DAEMON_SERVER_ADDRESS.equals(lease.getHolder())) {
+          renewed(requestStartNanos);
+        } else if (lease != null) {
+          log.fatal("Lost the leader lease of shard '" + failoverShard + "' to '" + lease.getHolder() + "'. Shutting down!");
+          System.exit(-4);
+        }
+      }
     }
+  }
+  
+  /**
+   * Shuts the process down the moment the leader lease runs out without being
+   * renewed, checking a few times a heartbeat on a thread of its own, so a
+   * renewal stuck on the database can't keep a deposed leader serving.
+   */
+  private class LeaderWatchdog extends KillableThread {
+    private final LeaderHeartbeat heartbeat;
     
-    public void write(final byte write[]) throws IOException {
-      outStream.write(write);
+    public LeaderWatchdog(final LeaderHeartbeat heartbeat) {
+      setName("LeaderWatchdog");
+      this.heartbeat = heartbeat;
     }
     
-    public void close() {
-      proc.destroy();
-      try {
-        inStream.close();
-        outStream.close();
-        errStream.close();
-      } catch (final IOException ignored) {
+    @Override
+    public void run() {
+      while (!die) {
+        Absorb.sleep(Math.max(1, DaemonConstants.LEADER_HEARTBEAT_MILLIS / 4));
+        if (System.nanoTime() - heartbeat.validUntilNanos > 0) {
+          log.fatal("Couldn't renew the leader lease of shard '" + failoverShard + "' in time. Shutting down!");
+          System.exit(-4);
+        }
       }
-      inStream = null;
-      outStream = null;
-      errStream = null;
-      proc = null;
     }
-    
-    public boolean isAlive() {
-      if (proc == null)
-        return false;
-      try {
-        proc.exitValue();
-        return false; // If we got here, the process has exited
-      } catch (final IllegalThreadStateException ignored) {
-      }
-      return true;
+  }
+  
+  /**
+   * Does nothing, used to verify that we have a valid RMI connection.
+   */
+  public void noop() throws java.rmi.RemoteException {
+  }
+  
+  private final ProcessSessions processSessions = new ProcessSessions();
+  
+  public long startProcess(final String command[]) throws RemoteException {
+    try {
+      return processSessions.start(command);
+    } catch (final Exception ex) {
+      throw new RemoteException("Exception while establishing connection:", ex);
     }
   }
   
-  private class SingletonLease {
-    private final String hostname;
-    private long         leaseExpirationTime;
-    
-    public SingletonLease(final String hostname, final long leaseExpirationTime) {
-      this.hostname = hostname;
-      this.leaseExpirationTime = leaseExpirationTime;
+  public byte[] readFromProcessIn(final long sessionId) throws RemoteException {
+    try {
+      return processSessions.get(sessionId).readIn();
+    } catch (final Exception ex) {
+      throw new RemoteException("Exception during read.", ex);
     }
-    
-    public String getHostname() {
-      return hostname;
+  }
+  
+  public byte[] readFromProcessErr(final long sessionId) throws RemoteException {
+    try {
+      return processSessions.get(sessionId).readErr();
+    } catch (final Exception ex) {
+      throw new RemoteException("Exception during read.", ex);
+    }
+  }
+  
+  public ProcessOutput readFromProcess(final long sessionId, final ProcessChannel channel, final long offset, final int maxBytes, final long waitMillis) throws RemoteException {
+    try {
+      return processSessions.get(sessionId).read(channel, offset, maxBytes, waitMillis);
+    } catch (final Exception ex) {
+      throw new RemoteException("Exception during read.", ex);
+    }
+  }
+  
+  public void sendToProcess(final long sessionId, final byte[] send) throws RemoteException {
+    try {
+      processSessions.get(sessionId).write(send);
+    } catch (final Exception ex) {
+      throw new RemoteException("Exception during write.", ex);
+    }
+  }
+  
+  public boolean isProcessAlive(final long sessionId) throws RemoteException {
+    try {
+      return processSessions.get(sessionId).isAlive();
+    } catch (final IOException ex) {
+      return false;
     }
+  }
+  
+  public void destroyProcess(final long sessionId) throws RemoteException {
+    processSessions.destroy(sessionId);
+  }
+  
+  /**
+   * A generation counter per host, bumped every time the set of daemons that
+   * should be running on the host changes. Long-polling callers wait on it.
+   */
+  static class HostSignal {
+    private long generation = 0;
     
-    public long getLeaseExpirationTime() {
-      return leaseExpirationTime;
+    public synchronized long getGeneration() {
+      return generation;
     }
     
-    public void setLeaseExpirationTime(final long leaseExpirationTime) {
-      this.leaseExpirationTime = leaseExpirationTime;
+    public synchronized void signal() {
+      generation++;
+      notifyAll();
     }
     
-    @Override
-    public String toString() {
-      return "hostname:" + hostname + " expires in " + ((leaseExpirationTime - System.currentTimeMillis()) / 1000) + " seconds";
+    /**
+     * Waits up to maxWaitMillis for the generation to move past the given one.
+     * 
+     * @return true if it has moved.
+     */
+    public synchronized boolean await(final long since, final long maxWaitMillis) {
+      final long deadline = System.currentTimeMillis() + maxWaitMillis;
+      long remaining = maxWaitMillis;
+      while (generation == since && remaining > 0) {
+        try {
+          wait(remaining);
+        } catch (final InterruptedException ex) {
+          break;
+        }
+        remaining = deadline - System.currentTimeMillis();
+      }
+      return generation != since;
     }
   }
 }
@@ -0,0 +1,150 @@
+package com.pelzer.util.daemon;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.pelzer.util.PropertyManager;
+import com.pelzer.util.daemon.cluster.HashRing;
+import com.pelzer.util.daemon.lease.LeaseTable;
+import com.pelzer.util.daemon.transport.NioClient;
+
+/**
+ * Finds the DaemonServer that owns a given hostname or singleton name. With
+ * {@link DaemonConstants#DAEMON_SERVER_SHARDS} set, the owner is picked off a
+ * {@link HashRing} of the shards; otherwise there's only the one server, over
+ * whichever transport {@link DaemonConstants#DAEMON_SERVER_TRANSPORT} names.
+ * RMI is the default; with 'nio', every caller in the JVM shares one
+ * persistent, multiplexed socket per server. A shard with standbys lists each
+ * member, separated by '|', and the first one that answers is used.
+ */
+public class DaemonServerLocator {
+  private static final String                             NIO_SCHEME = "nio://";
+  private static HashRing                                 ring       = null;
+  /** Stores <address, client> */
+  private static final Map<String, DaemonServerRemoteInt> nioClients = new HashMap<String, DaemonServerRemoteInt>();
+  /** Stores <shard, index of the member that answered last> */
+  private static final Map<String, Integer>               answered   = new ConcurrentHashMap<String, Integer>();
+  
+  /**
+   * Drop-in replacement for a Naming.lookup of
+   * {@link DaemonConstants#RMI_URL}, finding the server that owns this host.
+   * Nothing is checked until the first call on the result, so callers should
+   * {@link DaemonServerRemoteInt#noop()} it.
+   */
+  public static DaemonServerRemoteInt lookup() throws RemoteException, NotBoundException, MalformedURLException {
+    return lookupAddress(getAddress());
+  }
+  
+  /**
+   * @return the server that owns the hostname or singleton name. Slots of a
+   *         counted lease all belong with the pool they come from.
+   * @see #lookup()
+   */
+  public static DaemonServerRemoteInt lookup(final String key) throws RemoteException, NotBoundException, MalformedURLException {
+    return lookupAddress(getAddress(key));
+  }
+  
+  /**
+   * @return the server at the given address, as handed out by
+   *         {@link #getAddress(String)}. If the address lists several members,
+   *         they're tried in order, starting from whichever answered last,
+   *         and the first to answer a {@link DaemonServerRemoteInt#noop()} is
+   *         returned.
+   */
+  public static DaemonServerRemoteInt lookupAddress(final String address) throws RemoteException, NotBoundException, MalformedURLException {
+    final String members[] = getMembers(address);
+    if (members.length == 1)
+      return lookupMember(address);
+    final Integer last = answered.get(address);
+    final int first = last == null ? 0 : last;
+    RemoteException remoteException = null;
+    NotBoundException notBoundException = null;
+    for (int i = 0; i < members.length; i++) {
+      final int member = (first + i) % members.length;
+      try {
+        final DaemonServerRemoteInt server = lookupMember(members[member]);
+        server.noop();
+        answered.put(address, member);
+        return server;
+      } catch (final RemoteException ex) {
+        remoteException = ex;
+      } catch (final NotBoundException ex) {
+        // A standby doesn't bind until it takes over
+        notBoundException = ex;
+      }
+    }
+    if (remoteException != null)
+      throw remoteException;
+    throw notBoundException;
+  }
+  
+  /** @return the addresses of every member of the shard, in the order they're listed. */
+  public static String[] getMembers(final String shard) {
+    return shard.split("\\|");
+  }
+  
+  private static DaemonServerRemoteInt lookupMember(final String address) throws RemoteException, NotBoundException, MalformedURLException {
+    if (address.startsWith(NIO_SCHEME))
+      return getNioClient(address);
+    return (DaemonServerRemoteInt) Naming.lookup(address);
+  }
+  
+  /** @return where the server that owns this host is, for logging. */
+  public static String getAddress() {
+    return getAddress(PropertyManager.getHostname());
+  }
+  
+  /** @return where the server that owns the hostname or singleton name is. */
+  public static String getAddress(final String key) {
+    return getRing().getOwner(getRoutingKey(key));
+  }
+  
+  /** @return the name that decides which shard a key belongs to. */
+  public static String getRoutingKey(final String key) {
+    return LeaseTable.poolName(key);
+  }
+  
+  /** @return the ring of every shard, built from the constants the first time it's asked for. */
+  public static synchronized HashRing getRing() {
+    if (ring == null) {
+      if (DaemonConstants.DAEMON_SERVER_SHARDS != null && DaemonConstants.DAEMON_SERVER_SHARDS.trim().length() > 0) {
+        ring = HashRing.parse(DaemonConstants.DAEMON_SERVER_SHARDS, DaemonConstants.SHARD_RING_POINTS);
+      } else if ("nio".equalsIgnoreCase(DaemonConstants.DAEMON_SERVER_TRANSPORT)) {
+        ring = new HashRing(Collections.singletonList(NIO_SCHEME + getNioHost() + ":" + DaemonConstants.NIO_PORT), 1);
+      } else {
+        ring = new HashRing(Collections.singletonList(DaemonConstants.RMI_URL), 1);
+      }
+    }
+    return ring;
+  }
+  
+  private static synchronized DaemonServerRemoteInt getNioClient(final String address) {
+    DaemonServerRemoteInt client = nioClients.get(address);
+    if (client == null) {
+      final URI uri = URI.create(address);
+      client = NioClient.connect(DaemonServerRemoteInt.class, uri.getHost(), uri.getPort());
+      nioClients.put(address, client);
+    }
+    return client;
+  }
+  
+  /** @return {@link DaemonConstants#NIO_HOST}, or the host from the RMI url if that isn't set. */
+  private static String getNioHost() {
+    if (DaemonConstants.NIO_HOST != null && DaemonConstants.NIO_HOST.length() > 0)
+      return DaemonConstants.NIO_HOST;
+    try {
+      final String host = new URI(DaemonConstants.RMI_URL).getHost();
+      return host == null ? "localhost" : host;
+    } catch (final URISyntaxException ex) {
+      throw new IllegalStateException("Can't find the host in '" + DaemonConstants.RMI_URL + "', set NIO_HOST", ex);
+    }
+  }
+}
@@ -3,8 +3,14 @@ package com.pelzer.util.daemon;
 import java.rmi.RemoteException;
 import java.util.List;
 
+import com.pelzer.util.daemon.actions.ActionResult;
 import com.pelzer.util.daemon.actions.IAction;
 import com.pelzer.util.daemon.beans.DaemonBean;
+import com.pelzer.util.daemon.beans.HostTelemetry;
+import com.pelzer.util.daemon.beans.KnownDaemonsDelta;
+import com.pelzer.util.daemon.lease.LeaseGrant;
+import com.pelzer.util.daemon.process.ProcessChannel;
+import com.pelzer.util.daemon.process.ProcessOutput;
 
 public interface DaemonServerRemoteInt extends java.rmi.Remote {
   /**
@@ -14,19 +20,38 @@ public interface DaemonServerRemoteInt extends java.rmi.Remote {
   public String getBuildNumber() throws RemoteException;
   
   /**
-   * Related to remote process invocation...
+   * Related to remote process invocation... Each process runs in a session of
+   * its own, so several can run side by side. A session left untouched for
+   * {@link DaemonConstants#PROCESS_SESSION_IDLE_MILLIS} is destroyed, and at
+   * most {@link DaemonConstants#PROCESS_SESSION_LIMIT} run at once.
+   * 
+   * @return the id of the new session, to pass to the other process calls.
    */
-  public void startProcess(String command[]) throws RemoteException;
+  public long startProcess(String command[]) throws RemoteException;
+  
+  /** @return whatever stdout has produced since the last call, without waiting. */
+  public byte[] readFromProcessIn(long sessionId) throws RemoteException;
   
-  public byte[] readFromProcessIn() throws RemoteException;
+  /** @return whatever stderr has produced since the last call, without waiting. */
+  public byte[] readFromProcessErr(long sessionId) throws RemoteException;
   
-  public byte[] readFromProcessErr() throws RemoteException;
+  /**
+   * Reads up to maxBytes of the process's output from the given offset in the
+   * stream, blocking up to waitMillis until there is some. The server cuts
+   * waits longer than half of {@link DaemonConstants#PROCESS_SESSION_IDLE_MILLIS}
+   * short, and returns whatever it has then. Start at offset 0 and pass
+   * {@link ProcessOutput#getNextOffset()} on each following call. The server
+   * keeps the last {@link DaemonConstants#PROCESS_BUFFER_BYTES} of each
+   * stream.
+   */
+  public ProcessOutput readFromProcess(long sessionId, ProcessChannel channel, long offset, int maxBytes, long waitMillis) throws RemoteException;
   
-  public void sendToProcess(byte send[]) throws RemoteException;
+  public void sendToProcess(long sessionId, byte send[]) throws RemoteException;
   
-  public boolean isProcessAlive() throws RemoteException;
+  public boolean isProcessAlive(long sessionId) throws RemoteException;
   
-  public void destroyProcess() throws RemoteException;
+  /** Kills the process and ends the session. */
+  public void destroyProcess(long sessionId) throws RemoteException;
   
   /**
    * Called by a singleton daemon on startup to see if any other process is
@@ -52,6 +77,52 @@ public interface DaemonServerRemoteInt extends java.rmi.Remote {
    */
   public boolean assertSingletonName(String singletonName, String hostname) throws RemoteException;
   
+  /**
+   * Batched version of {@link #assertSingletonName(String, String)}, so that a
+   * JVM holding many names can renew all of them in one call.
+   * 
+   * @return one result per name, in the same order. Any false means the caller
+   *         should shut down HARD and panic.
+   */
+  public boolean[] assertSingletonNames(String singletonNames[], String hostname) throws RemoteException;
+  
+  /**
+   * Same as {@link #registerSingletonName(String, String)}, but also returns
+   * how long the lease is good for and its fencing token, so the caller can
+   * tell locally whether it still holds the name.
+   */
+  public LeaseGrant registerSingletonLease(String singletonName, String hostname) throws RemoteException;
+  
+  /**
+   * Blocking version of {@link #registerSingletonLease(String, String)}. If the
+   * name is taken, the caller waits in line and callers are granted the name in
+   * the order they arrived, the moment it is freed or the current lease
+   * expires.
+   * 
+   * @return the grant, which is not granted if maxWaitMillis passed first.
+   */
+  public LeaseGrant acquireSingletonName(String singletonName, String hostname, long maxWaitMillis) throws RemoteException;
+  
+  /**
+   * Takes one of a fixed number of permits on the name, capping how many
+   * instances run across the cluster. The permit is an ordinary singleton lease
+   * on the name given by
+   * {@link com.pelzer.util.daemon.lease.LeaseTable#slotName(String, int)}, so it
+   * is renewed with {@link #assertSingletonLeases(String[], String)} and freed
+   * with {@link #freeSingletonName(String, String)} like any other.
+   * 
+   * @return the grant, with {@link LeaseGrant#getSlot()} set to the permit
+   *         index, or a denied grant if every permit is taken.
+   */
+  public LeaseGrant registerCountedLease(String name, int permits, String hostname) throws RemoteException;
+  
+  /**
+   * Same as {@link #assertSingletonNames(String[], String)}, but returns a
+   * {@link LeaseGrant} per name. A grant that isn't granted means the caller
+   * should shut down HARD and panic.
+   */
+  public LeaseGrant[] assertSingletonLeases(String singletonNames[], String hostname) throws RemoteException;
+  
   /**
    * Frees the singleton name registered in
    * {@link #registerSingletonName(String, String)}, does nothing if the name is
@@ -62,6 +133,14 @@ public interface DaemonServerRemoteInt extends java.rmi.Remote {
   /** @return a list of all the daemons the daemon system is aware of. */
   public DaemonBean[] getAllKnownDaemons() throws RemoteException;
   
+  /**
+   * Incremental version of {@link #getAllKnownDaemons()}. Pass 0 for both the
+   * first time, then the epoch and version from the previous answer, to get
+   * just the daemons added, changed or removed in between. If the epoch isn't
+   * the server's current one, every known daemon comes back as a full refresh.
+   */
+  public KnownDaemonsDelta getKnownDaemonsSince(long epoch, long version) throws RemoteException;
+  
   /**
    * The client should pass in a list of running daemons (pulled from the names
    * in the list of {@link DaemonBean}s passed to the client by
@@ -84,6 +163,95 @@ public interface DaemonServerRemoteInt extends java.rmi.Remote {
    */
   public void returnCompletedAction(String hostname, IAction completedAction) throws RemoteException;
   
+  /**
+   * Like {@link #getNextAction(String, String[])}, but returns every action the
+   * host needs to take at once, in the order they should be run: stops first,
+   * then starts. The client may run the actions side by side, so long as
+   * each daemon's actions run one at a time in plan order; actions for
+   * different daemons don't wait on each other. Each action carries its own
+   * {@link IAction#getId()}. The client reports outcomes through
+   * {@link #returnCompletedActions(String, ActionResult[])} as the actions
+   * finish, and may ask for another plan in the meantime. Daemons
+   * with an action still outstanding are left out of later plans until it's
+   * reported.
+   * 
+   * @return the plan, or an empty array if no action is required.
+   */
+  public IAction[] getActionPlan(String hostname, String runningDaemonNames[]) throws RemoteException;
+  
+  /**
+   * Called by the client once it has run the plan from
+   * {@link #getActionPlan(String, String[])}, with one result per action.
+   * Successful actions update the daemon statuses, failed ones are logged and
+   * will be planned again on the next poll.
+   */
+  public void returnCompletedActions(String hostname, ActionResult results[]) throws RemoteException;
+  
+  /**
+   * Long-polling version of {@link #getNextAction(String, String[])}. If there
+   * is nothing to do right away, parks the caller until the desired state of
+   * the host changes (for instance a {@link Controller} START) or until
+   * maxWaitMillis passes, whichever comes first.
+   * 
+   * @return the next action, or null if nothing changed before the timeout.
+   */
+  public IAction awaitNextAction(String hostname, String runningDaemonNames[], long maxWaitMillis) throws RemoteException;
+  
+  /**
+   * Long-polling version of {@link #getActionPlan(String, String[])}, parking
+   * the caller the same way {@link #awaitNextAction(String, String[], long)}
+   * does.
+   * 
+   * @return the plan, or an empty array if nothing changed before the timeout.
+   */
+  public IAction[] awaitActionPlan(String hostname, String runningDaemonNames[], long maxWaitMillis) throws RemoteException;
+  
+  /**
+   * Same as {@link #awaitActionPlan(String, String[], long)}, but also hands
+   * the server a sample of the host's and its daemons' resource use, which it
+   * keeps a rolling window of.
+   * 
+   * @param telemetry
+   *          the sample, or null if the host couldn't take one.
+   */
+  public IAction[] awaitActionPlan(String hostname, String runningDaemonNames[], HostTelemetry telemetry, long maxWaitMillis) throws RemoteException;
+  
+  /**
+   * Called by a host as soon as it notices one of its daemons die or come up
+   * between polls. Wakes the host's long poll, if it's parked, which plans
+   * again from the given daemons instead of the ones it was called with.
+   */
+  public void reportRunningDaemons(String hostname, String runningDaemonNames[]) throws RemoteException;
+  
+  /**
+   * Sets the target status of the daemon and immediately wakes any host
+   * long-polling for actions. Preferred over writing the target status
+   * straight to the database, which the server only notices on its next
+   * registry refresh.
+   */
+  public void setTargetDaemonStatus(String daemonName, DaemonStatus status) throws RemoteException;
+  
+  /**
+   * Called by a hot standby to start following the leader's state.
+   * 
+   * @return the id and offset of the replication log this snapshot is good as
+   *         of, as two longs, followed by state journal records.
+   * @see StateJournal#snapshot(StateJournal.Snapshot)
+   */
+  public byte[] getReplicationSnapshot() throws RemoteException;
+  
+  /**
+   * Long polls the replication log from the given offset, the same way
+   * {@link #readFromProcess(long, ProcessChannel, long, int, long)} reads
+   * process output. A chunk that starts later than asked for means the
+   * standby fell behind, and needs a new snapshot.
+   * 
+   * @throws RemoteException
+   *           if logId isn't the current log, because the leader has restarted
+   *           since the snapshot was taken.
+   */
+  public ProcessOutput readReplicationLog(long logId, long offset, int maxBytes, long waitMillis) throws RemoteException;
+  
   /** Does nothing, used to verify that we have a valid RMI connection. */
   public void noop() throws RemoteException;
   
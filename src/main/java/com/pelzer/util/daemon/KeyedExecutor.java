@@ -0,0 +1,92 @@
+package com.pelzer.util.daemon;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on a fixed number of threads, but only ever one at a time for the
+ * same key, in the order they were handed over. Tasks for different keys run
+ * side by side, so one that hangs only holds up the tasks queued behind it
+ * under its own key, plus the thread it's on. Idle threads go away after a
+ * minute.
+ */
+public class KeyedExecutor {
+  private final ThreadPoolExecutor                pool;
+  /** Stores <key, tasks waiting behind the running one> for every key with a task running. */
+  private final Map<String, LinkedList<Runnable>> busyKeys = new HashMap<String, LinkedList<Runnable>>();
+  private int                                     pending  = 0;
+  
+  public KeyedExecutor(final String threadName, final int threads) {
+    pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, threadName + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    pool.allowCoreThreadTimeOut(true);
+  }
+  
+  /** Runs the task once every task handed over before it with the same key has finished. */
+  public void execute(final String key, final Runnable task) {
+    synchronized (busyKeys) {
+      pending++;
+      final LinkedList<Runnable> waiting = busyKeys.get(key);
+      if (waiting != null) {
+        waiting.add(task);
+        return;
+      }
+      busyKeys.put(key, new LinkedList<Runnable>());
+    }
+    pool.execute(new KeyedTask(key, task));
+  }
+  
+  /** @return how many tasks are running or waiting to. */
+  public int getPendingCount() {
+    synchronized (busyKeys) {
+      return pending;
+    }
+  }
+  
+  /** Lets the running and queued tasks finish, but takes no more. */
+  public void shutdown() {
+    pool.shutdown();
+  }
+  
+  /** Runs a task, then hands its key's next task, if any, to the pool. */
+  private class KeyedTask implements Runnable {
+    private final String   key;
+    private final Runnable task;
+    
+    public KeyedTask(final String key, final Runnable task) {
+      this.key = key;
+      this.task = task;
+    }
+    
+    public void run() {
+      try {
+        task.run();
+      } finally {
+        final Runnable next;
+        synchronized (busyKeys) {
+          pending--;
+          next = busyKeys.get(key).poll();
+          if (next == null) {
+            busyKeys.remove(key);
+          }
+        }
+        if (next != null) {
+          pool.execute(new KeyedTask(key, next));
+        }
+      }
+    }
+  }
+}
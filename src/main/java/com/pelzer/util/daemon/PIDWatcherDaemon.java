@@ -12,6 +12,7 @@ import com.pelzer.util.OverridableFields;
 import com.pelzer.util.PID;
 import com.pelzer.util.PanicHelper;
 import com.pelzer.util.PropertyManager;
+import com.pelzer.util.daemon.telemetry.ProcessTable;
 
 /**
  * This Daemon crawls a directory looking for .pid files. Each file it finds, it
@@ -46,6 +47,8 @@ public class PIDWatcherDaemon {
   public static class PIDWatcherThread {
     private static Logging.Logger debug        = Logging.getLogger(PIDWatcherThread.class);
     private static Set<File>      panickedLogs = new HashSet<File>();
+    /** Every pid in one pass is checked against this, or null if there's no /proc to list. */
+    private final ProcessTable    processes    = ProcessTable.scan();
     
     public static void main(final String[] args) {
       // Create a helper just to get it all initialized so it doesn't clutter
@@ -88,12 +91,25 @@ public class PIDWatcherDaemon {
       for (final File file : files)
         // Check to see if this pid is alive
         try {
+          final long modified = file.lastModified();
+          if (processes != null && modified > processes.getScanMillis()) {
+            // Written since the listing, so leave it to the next pass
+            continue;
+          }
           final int pid = PID.readPID(file);
-          if (!PID.isPIDAlive(pid)) {
-            debug.error("'" + file.getPath() + "' (" + pid + ") is not alive.");
-            sendPanic("'" + file.getPath() + "' (" + pid + ") on host (" + PropertyManager.getHostname() + ") is not alive.\n I'm going to delete the pid file to clean things up.");
-            file.delete();
+          // The listing is only a fast path, anything it doesn't vouch for is
+          // checked again on its own before the file is deleted
+          if (processes != null && processes.isAlive(pid, modified))
+            continue;
+          if (PID.isPIDAlive(pid)) {
+            if (processes != null) {
+              debug.warn("'" + file.getPath() + "' (" + pid + ") seems to have started after its pid file was written, the pid may have been reused.");
+            }
+            continue;
           }
+          debug.error("'" + file.getPath() + "' (" + pid + ") is not alive.");
+          sendPanic("'" + file.getPath() + "' (" + pid + ") on host (" + PropertyManager.getHostname() + ") is not alive.\n I'm going to delete the pid file to clean things up.");
+          file.delete();
         } catch (final IOException ex) {
           debug.error("IOException while reading pid '" + file.getPath() + "'", ex);
         }
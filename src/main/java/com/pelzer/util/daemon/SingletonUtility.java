@@ -1,8 +1,12 @@
 package com.pelzer.util.daemon;
 
-import java.rmi.Naming;
 import java.rmi.RemoteException;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import com.pelzer.util.Absorb;
@@ -10,16 +14,33 @@ import com.pelzer.util.KillableThread;
 import com.pelzer.util.Logging;
 import com.pelzer.util.PropertyManager;
 import com.pelzer.util.StopWatch;
+import com.pelzer.util.daemon.lease.LeaseGrant;
+import com.pelzer.util.daemon.lease.LeaseTable;
 
 /**
  * Designed as a helper for daemons to ensure that they are the only instance of
  * a particular daemon across the entire system.
  */
 public class SingletonUtility {
-  private static Logging.Logger                                   debug                  = Logging.getLogger(SingletonUtility.class);
-  private static boolean                                          OBNOXIOUS              = PropertyManager.isDEV();
+  private static Logging.Logger                   debug                  = Logging.getLogger(SingletonUtility.class);
+  private static boolean                          OBNOXIOUS              = PropertyManager.isDEV();
   
-  private static Hashtable<String, RegistrationMaintenanceThread> localSingletonRegistry = new Hashtable<String, RegistrationMaintenanceThread>();
+  /**
+   * Stores <singletonName, lease> for every name this JVM holds, renewed a
+   * shard at a time by {@link #renewalThreads}.
+   */
+  private static ConcurrentMap<String, HeldLease>    localSingletonRegistry = new ConcurrentHashMap<String, HeldLease>();
+  /**
+   * Stores <address, lock> held while renewing a shard's names, so a release
+   * can't be undone by a renewal in flight.
+   */
+  private static final ConcurrentMap<String, Object> renewalLocks           = new ConcurrentHashMap<String, Object>();
+  /** How many times a renewal tries to reach a shard before skipping it until the next round. */
+  private static final int                           RENEWAL_LOOKUP_TRIES   = 3;
+  /** How many times a name is renewed each lease period, so one missed renewal is survived. */
+  private static final int                           RENEWALS_PER_LEASE     = 3;
+  /** Stores <address, thread> renewing the names each shard owns. */
+  private static final Map<String, RenewalThread>    renewalThreads         = new HashMap<String, RenewalThread>();
   static {
   }
   
@@ -31,44 +52,117 @@ public class SingletonUtility {
    */
   public static void registerPerServer(final String singletonName, final boolean waitForever) {
     register(singletonName + ":" + PropertyManager.getHostname(), waitForever);
-    localSingletonRegistry.put(singletonName, new RegistrationMaintenanceThread(null));
   }
   
   /**
    * Calling this method will make a call to the central DaemonServer,
-   * registering the name of the singleton. If the DaemonServer informs us that
-   * the passed-in name is already registered, this method will PANIC, and then
-   * shutdown the entire JVM.
+   * registering the name of the singleton. If the name is already taken, the
+   * call waits in line on the server and is granted the name the moment the
+   * current owner frees it or its lease runs out. If that doesn't happen within
+   * three lease periods (or ever, if waitForever is true), this method will
+   * PANIC, and then shutdown the entire JVM.
    */
   public static void register(final String singletonName, final boolean waitForever) {
-    final StopWatch timer = new StopWatch();
-    timer.start();
     debug.debug("Registering '" + singletonName + "'");
-    final DaemonServerRemoteInt daemonServer = getDaemonServer();
-    boolean success = false;
-    while (waitForever || timer.getElapsed().toDoubleSeconds() < DaemonConstants.SINGLETON_LEASE_TIME_SECONDS * 3) {
+    final DaemonServerRemoteInt daemonServer = getDaemonServer(singletonName);
+    final long maxWaitMillis = DaemonConstants.SINGLETON_LEASE_TIME_SECONDS * 3 * 1000;
+    do {
+      final long requestStartNanos = System.nanoTime();
+      LeaseGrant grant = LeaseGrant.DENIED;
       try {
-        success = daemonServer.registerSingletonName(singletonName, PropertyManager.getHostname());
+        grant = daemonServer.acquireSingletonName(singletonName, PropertyManager.getHostname(), maxWaitMillis);
       } catch (final RemoteException ex) {
         debug.error("RemoteException while registering'" + singletonName + "'. Failing hard.", ex);
         System.exit(-2);
       }
-      if (success) {
-        final RegistrationMaintenanceThread thread = new RegistrationMaintenanceThread(singletonName);
-        thread.start();
-        localSingletonRegistry.put(singletonName, thread);
+      if (grant.isGranted()) {
+        localSingletonRegistry.put(singletonName, new HeldLease(grant, requestStartNanos));
+        startRenewalThread(singletonName);
         debug.debug("'" + singletonName + "' registered successfully");
         return;
       } else {
-        debug.error("Daemon server has denied registry of the singleton '" + singletonName + "'.");
+        debug.error("Timed out waiting in line for the singleton '" + singletonName + "'.");
+      }
+    } while (waitForever);
+    debug.fatal("Timeout trying to acquire singleton '" + singletonName + "'. Failing hard.");
+    System.exit(-2);
+  }
+  
+  /**
+   * Takes one of permits slots of the named pool, so that at most permits
+   * instances run across the entire system. The slot is held, renewed and
+   * checked exactly like a singleton, under the name returned by
+   * {@link #getSlotName(String, int)}. If every slot stays taken for three lease
+   * periods (or forever, if waitForever is true), this method will PANIC, and
+   * then shutdown the entire JVM.
+   * 
+   * @return the slot index, between 0 and permits - 1.
+   */
+  public static int registerCounted(final String poolName, final int permits, final boolean waitForever) {
+    final StopWatch timer = new StopWatch();
+    timer.start();
+    debug.debug("Registering one of " + permits + " permits of '" + poolName + "'");
+    final DaemonServerRemoteInt daemonServer = getDaemonServer(poolName);
+    while (waitForever || timer.getElapsed().toDoubleSeconds() < DaemonConstants.SINGLETON_LEASE_TIME_SECONDS * 3) {
+      final long requestStartNanos = System.nanoTime();
+      LeaseGrant grant = LeaseGrant.DENIED;
+      try {
+        grant = daemonServer.registerCountedLease(poolName, permits, PropertyManager.getHostname());
+      } catch (final RemoteException ex) {
+        debug.error("RemoteException while registering '" + poolName + "'. Failing hard.", ex);
+        System.exit(-2);
+      }
+      if (grant.isGranted()) {
+        localSingletonRegistry.put(getSlotName(poolName, grant.getSlot()), new HeldLease(grant, requestStartNanos));
+        startRenewalThread(getSlotName(poolName, grant.getSlot()));
+        debug.debug("Permit " + grant.getSlot() + " of '" + poolName + "' registered successfully");
+        return grant.getSlot();
+      } else {
+        debug.error("All " + permits + " permits of '" + poolName + "' are taken.");
       }
       try {
         TimeUnit.SECONDS.sleep(DaemonConstants.SINGLETON_LEASE_TIME_SECONDS / 2);
       } catch (final InterruptedException ignored) {
       }
     }
-    debug.fatal("Timeout trying to acquire singleton '" + singletonName + "'. Failing hard.");
+    debug.fatal("Timeout trying to acquire a permit of '" + poolName + "'. Failing hard.");
     System.exit(-2);
+    return -1;
+  }
+  
+  /**
+   * @return the name that a slot from {@link #registerCounted(String, int, boolean)}
+   *         is held under, for use with {@link #isHeld(String)},
+   *         {@link #currentFence(String)} and {@link #release(String)}.
+   */
+  public static String getSlotName(final String poolName, final int slot) {
+    return LeaseTable.slotName(poolName, slot);
+  }
+  
+  /**
+   * Answered from local state, without a call to the DaemonServer, so it's
+   * cheap enough to check before every unit of work.
+   * 
+   * @return true if this JVM holds the name and its lease is still good, with
+   *         {@link DaemonConstants#SINGLETON_SAFETY_MARGIN_MILLIS} to spare.
+   */
+  public static boolean isHeld(final String singletonName) {
+    final HeldLease lease = localSingletonRegistry.get(singletonName);
+    return lease != null && lease.isValid();
+  }
+  
+  /**
+   * Answered from local state, like {@link #isHeld(String)}. The fence goes up
+   * every time the name changes hands, so passing it along with work done
+   * under the lease lets downstream systems reject work from a stale owner.
+   * 
+   * @return the fencing token for the name, or -1 if this JVM doesn't hold it.
+   */
+  public static long currentFence(final String singletonName) {
+    final HeldLease lease = localSingletonRegistry.get(singletonName);
+    if (lease == null || !lease.isValid())
+      return -1;
+    return lease.fence;
   }
   
   /**
@@ -77,7 +171,7 @@ public class SingletonUtility {
    * the name, this method returns and does nothing.
    */
   public static void release(final String singletonName) {
-    release(singletonName, getDaemonServer(), true);
+    release(singletonName, getDaemonServer(singletonName), true);
   }
   
   /**
@@ -87,15 +181,11 @@ public class SingletonUtility {
    * shutdown.
    */
   private static void release(final String singletonName, final DaemonServerRemoteInt daemonServer, final boolean log) {
-    final RegistrationMaintenanceThread thread = localSingletonRegistry.get(singletonName);
-    if (thread != null) {
-      // We're reg'ed, so do the dereg
-      if (thread.isAlive()) {
-        try {
-          thread.die = true;
-          thread.join();
-        } catch (final InterruptedException ignored) {
-        }
+    if (localSingletonRegistry.containsKey(singletonName)) {
+      // We're reg'ed, so do the dereg. Stop renewing it first so a renewal in
+      // flight can't re-grant the name after we free it.
+      synchronized (getRenewalLock(DaemonServerLocator.getAddress(singletonName))) {
+        localSingletonRegistry.remove(singletonName);
       }
       try {
         daemonServer.freeSingletonName(singletonName, PropertyManager.getHostname());
@@ -105,7 +195,6 @@ public class SingletonUtility {
         }
         return;
       }
-      localSingletonRegistry.remove(singletonName);
       if (log) {
         debug.debug("Released '" + singletonName + "'");
       }
@@ -114,40 +203,63 @@ public class SingletonUtility {
     }
   }
   
-  private static DaemonServerRemoteInt cachedServerStub = null;
+  /** Stores <address, stub> for every DaemonServer shard reached so far. */
+  private static final Map<String, DaemonServerRemoteInt> cachedServerStubs = new HashMap<String, DaemonServerRemoteInt>();
   
-  /** Blocks indefinitely trying to get connection to the daemon server... */
-  private static synchronized DaemonServerRemoteInt getDaemonServer() {
+  /**
+   * Blocks indefinitely trying to get connection to the daemon server that
+   * owns the singleton name...
+   */
+  private static DaemonServerRemoteInt getDaemonServer(final String singletonName) {
+    return getDaemonServerAt(DaemonServerLocator.getAddress(singletonName), 0);
+  }
+  
+  /**
+   * Tries to get a connection to the daemon server at the address, giving up
+   * after maxTries attempts, or never if maxTries is 0 or less. Callers for
+   * different addresses don't wait on each other.
+   * 
+   * @return the stub, or null if it gave up.
+   */
+  private static DaemonServerRemoteInt getDaemonServerAt(final String address, final int maxTries) {
     if (OBNOXIOUS) {
       debug.debug("Getting connection to daemon server");
     }
     int tries = 0;
+    int attempts = 0;
     while (true) {
       try {
         DaemonServerRemoteInt daemonServer;
-        if (cachedServerStub != null) {
+        synchronized (cachedServerStubs) {
+          daemonServer = cachedServerStubs.remove(address);
+        }
+        if (daemonServer != null) {
           if (OBNOXIOUS) {
             debug.debug("Using cached daemon server");
           }
-          daemonServer = cachedServerStub;
-          cachedServerStub = null;
         } else {
           if (OBNOXIOUS) {
-            debug.debug("Getting new connection to daemon server at '" + DaemonConstants.RMI_URL + "'");
+            debug.debug("Getting new connection to daemon server at '" + address + "'");
           }
-          daemonServer = (DaemonServerRemoteInt) Naming.lookup(DaemonConstants.RMI_URL);
-          debug.debug("Got new connection to DaemonServer at '" + DaemonConstants.RMI_URL + "'");
+          daemonServer = DaemonServerLocator.lookupAddress(address);
+          debug.debug("Got new connection to DaemonServer at '" + address + "'");
         }
         daemonServer.noop();
         // If we're here, we got a connection.
         // Set the cached server and update the shutdown thread with a
         // known-active stub.
-        cachedServerStub = daemonServer;
+        synchronized (cachedServerStubs) {
+          cachedServerStubs.put(address, daemonServer);
+        }
         return daemonServer;
       } catch (final Exception ex2) {
+        if (maxTries > 0 && ++attempts >= maxTries) {
+          debug.error("Couldn't get connection to DaemonServer at '" + address + "' after " + attempts + " tries.", ex2);
+          return null;
+        }
         if (tries++ > 12) {
           tries = 0;
-          debug.debug("Still trying to get connection to DaemonServer at '" + DaemonConstants.RMI_URL + "'");
+          debug.debug("Still trying to get connection to DaemonServer at '" + address + "'");
           debug.error("Last exception;", ex2);
         }
         // Still having trouble getting the connection... Sleep for a while,
@@ -157,34 +269,116 @@ public class SingletonUtility {
     }
   }
   
-  private static class RegistrationMaintenanceThread extends KillableThread {
+  /**
+   * What this JVM knows about a name it holds, as of the last register or
+   * renew. Validity is measured from just before the request went out, plus
+   * however long the server says it kept the request waiting in line, on the
+   * local monotonic clock, so it can only err on the side of expiring early.
+   */
+  private static class HeldLease {
+    private final long fence;
+    private final long validUntilNanos;
+    
+    public HeldLease(final LeaseGrant grant, final long requestStartNanos) {
+      fence = grant.getFence();
+      validUntilNanos = requestStartNanos + TimeUnit.MILLISECONDS.toNanos(grant.getWaitedMillis() + grant.getRemainingMillis() - DaemonConstants.SINGLETON_SAFETY_MARGIN_MILLIS);
+    }
+    
+    public boolean isValid() {
+      return System.nanoTime() - validUntilNanos < 0;
+    }
+  }
+  
+  /** Starts the renewal thread of the shard that owns the name, if it isn't already running. */
+  private static void startRenewalThread(final String singletonName) {
+    final String address = DaemonServerLocator.getAddress(singletonName);
+    synchronized (renewalThreads) {
+      RenewalThread renewalThread = renewalThreads.get(address);
+      if (renewalThread == null || !renewalThread.isAlive()) {
+        renewalThread = new RenewalThread(address);
+        renewalThread.setDaemon(true);
+        renewalThread.start();
+        renewalThreads.put(address, renewalThread);
+      }
+    }
+  }
+  
+  /** @return the lock held while renewing the names of the shard at the address. */
+  private static Object getRenewalLock(final String address) {
+    Object lock = renewalLocks.get(address);
+    if (lock == null) {
+      renewalLocks.putIfAbsent(address, new Object());
+      lock = renewalLocks.get(address);
+    }
+    return lock;
+  }
+  
+  /**
+   * One per DaemonServer shard, reasserts every name in
+   * {@link #localSingletonRegistry} that the shard owns with a single call, a
+   * few times each lease period. Shards are renewed independently, so one
+   * that can't be reached, or hangs, only delays renewals of its own names.
+   * The connection is made before taking the shard's renewal lock, so it
+   * doesn't hold up releases either.
+   */
+  private static class RenewalThread extends KillableThread {
     Logging.Logger       debug = Logging.getLogger(this);
-    private final String singletonName;
+    private final String address;
     
-    public RegistrationMaintenanceThread(final String singletonName) {
-      this.singletonName = singletonName;
+    public RenewalThread(final String address) {
+      this.address = address;
+      setName("SingletonRenewalThread-" + address);
     }
     
     @Override
     public void run() {
-      setName("SingletonThread[" + singletonName + "]");
       while (!die) {
-        try {
-          if (!getDaemonServer().assertSingletonName(singletonName, PropertyManager.getHostname())) {
-            debug.fatal("Singleton assertion failed! Shutting down!");
-            // TODO: Panic
-            System.exit(-3);
+        Absorb.sleep(TimeUnit.SECONDS.toMillis(DaemonConstants.SINGLETON_LEASE_TIME_SECONDS) / RENEWALS_PER_LEASE);
+        if (getNamesOwned().isEmpty()) {
+          continue;
+        }
+        final DaemonServerRemoteInt daemonServer = getDaemonServerAt(address, RENEWAL_LOOKUP_TRIES);
+        if (daemonServer == null) {
+          debug.error("Skipping renewal of " + getNamesOwned() + " until next time.");
+          continue;
+        }
+        synchronized (getRenewalLock(address)) {
+          // Anything released while we were connecting stays released
+          final List<String> names = getNamesOwned();
+          if (names.isEmpty()) {
+            continue;
+          }
+          final String singletonNames[] = names.toArray(new String[names.size()]);
+          try {
+            final long requestStartNanos = System.nanoTime();
+            final LeaseGrant results[] = daemonServer.assertSingletonLeases(singletonNames, PropertyManager.getHostname());
+            for (int i = 0; i < singletonNames.length; i++) {
+              if (!results[i].isGranted()) {
+                debug.fatal("Singleton assertion failed for '" + singletonNames[i] + "'! Shutting down!");
+                // TODO: Panic
+                System.exit(-3);
+              }
+              localSingletonRegistry.put(singletonNames[i], new HeldLease(results[i], requestStartNanos));
+            }
+          } catch (final RemoteException ex) {
+            debug.error("RemoteException while reasserting singleton status...", ex);
+            // FIXME: Is this the right behavior, to ignore?
+            continue;
           }
-        } catch (final RemoteException ex) {
-          debug.error("RemoteException while reasserting singleton status...", ex);
-          // FIXME: Is this the right behavior, to ignore?
         }
         debug.debug("Still a singleton. Yay.");
-        try {
-          TimeUnit.SECONDS.sleep(DaemonConstants.SINGLETON_LEASE_TIME_SECONDS);
-        } catch (final InterruptedException ignored) {
+      }
+    }
+    
+    /** @return the names this JVM holds that this thread's shard owns. */
+    private List<String> getNamesOwned() {
+      final List<String> names = new ArrayList<String>();
+      for (final String singletonName : localSingletonRegistry.keySet()) {
+        if (address.equals(DaemonServerLocator.getAddress(singletonName))) {
+          names.add(singletonName);
         }
       }
+      return names;
     }
   }
   
@@ -0,0 +1,478 @@
+package com.pelzer.util.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+
+import com.pelzer.util.KillableThread;
+import com.pelzer.util.Logging;
+import com.pelzer.util.daemon.lease.Lease;
+import com.pelzer.util.daemon.process.OutputBuffer;
+import com.pelzer.util.daemon.process.ProcessOutput;
+
+/**
+ * Append-only binary journal of the DaemonServer's in-memory runtime state:
+ * singleton leases, daemon start times and outstanding action plans. Every
+ * change is appended as a small record, and the journal is periodically
+ * compacted by rewriting it as a snapshot of the live state. Records are
+ * idempotent (a later record for the same key always wins), so a snapshot taken
+ * while changes are still being appended is safe.
+ * <p>
+ * Writes are buffered and flushed by a background thread every
+ * {@link DaemonConstants#STATE_JOURNAL_FLUSH_MILLIS}, so a crash loses at most
+ * that much state. A record torn by a crash ends the replay. A journal with a
+ * null file is disabled, and ignores every record.
+ * <p>
+ * Once {@link #startReplicating(int)} is called, the same records are also
+ * kept in an in-memory log that a hot standby follows, so that it has the
+ * state ready if it has to take over.
+ */
+public class StateJournal {
+  private static Logging.Logger  log                = Logging.getLogger(StateJournal.class);
+  private static final int       MAGIC              = 0x444d534a; // DMSJ
+  /** 2 added the fence to LEASE_REMOVED records. */
+  private static final byte      VERSION            = 2;
+  
+  private static final byte      LEASE              = 1;
+  private static final byte      LEASE_REMOVED      = 2;
+  private static final byte      START_TIME         = 3;
+  private static final byte      START_TIME_REMOVED = 4;
+  private static final byte      ACTION             = 5;
+  private static final byte      ACTION_REMOVED     = 6;
+  private static final byte      PLAN_CLEARED       = 7;
+  
+  /** Kinds of action stored in {@link #ACTION} records. */
+  public static final byte       START              = 1;
+  public static final byte       STOP               = 2;
+  
+  private final File             file;
+  private DataOutputStream       out                = null;
+  private long                   recordsSinceCompaction;
+  private FlushThread            flushThread        = null;
+  /** Each record is built here, then copied to the journal and the replication log. */
+  private final RecordBuffer     recordBytes        = new RecordBuffer();
+  private final DataOutputStream record             = new DataOutputStream(recordBytes);
+  private OutputBuffer           replicationLog     = null;
+  private long                   replicationLogId;
+  /** Off while a snapshot is being written, since standbys don't need it twice. */
+  private boolean                replicating        = true;
+  
+  public StateJournal(final File file) {
+    this.file = file;
+  }
+  
+  /**
+   * Replays every record in the journal into the handler, oldest first. Does
+   * nothing if the journal doesn't exist yet.
+   */
+  public synchronized void replay(final Handler handler) throws IOException {
+    if (file == null || !file.exists())
+      return;
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    int records = 0;
+    try {
+      if (in.readInt() != MAGIC || in.readByte() != VERSION)
+        throw new IOException("'" + file + "' is not a version " + VERSION + " state journal.");
+      while (readRecord(in, handler)) {
+        records++;
+      }
+    } catch (final EOFException ex) {
+      log.warn("State journal '" + file + "' ends with a torn record, ignoring it. Replayed " + records + " records.");
+    } finally {
+      in.close();
+    }
+    log.info("Replayed " + records + " records from state journal '" + file + "'");
+  }
+  
+  /**
+   * Feeds every complete record in the bytes to the handler, which is how a
+   * standby takes in the replication log a chunk at a time.
+   * 
+   * @return how many bytes were used up. Any left over are the start of a
+   *         record that hasn't fully arrived yet.
+   */
+  public static int readRecords(final byte bytes[], final int offset, final int length, final Handler handler) throws IOException {
+    final ByteArrayInputStream buffer = new ByteArrayInputStream(bytes, offset, length);
+    final DataInputStream in = new DataInputStream(buffer);
+    while (true) {
+      buffer.mark(length);
+      try {
+        if (!readRecord(in, handler))
+          break;
+      } catch (final EOFException ex) {
+        buffer.reset();
+        break;
+      }
+    }
+    return length - buffer.available();
+  }
+  
+  /**
+   * Reads one record and hands it to the handler.
+   * 
+   * @return false if the stream ended cleanly before the record.
+   * @throws EOFException
+   *           if the stream ended part way through the record.
+   */
+  private static boolean readRecord(final DataInputStream in, final Handler handler) throws IOException {
+    final byte type;
+    try {
+      type = in.readByte();
+    } catch (final EOFException ex) {
+      return false;
+    }
+    switch (type) {
+      case LEASE:
+        handler.leaseGranted(new Lease(in.readUTF(), in.readUTF(), in.readLong(), in.readLong()));
+        break;
+      case LEASE_REMOVED:
+        handler.leaseRemoved(in.readUTF(), in.readLong());
+        break;
+      case START_TIME:
+        handler.startTimeSet(in.readUTF(), in.readLong());
+        break;
+      case START_TIME_REMOVED:
+        handler.startTimeRemoved(in.readUTF());
+        break;
+      case ACTION:
+        handler.actionIssued(in.readUTF(), in.readInt(), in.readByte(), in.readUTF());
+        break;
+      case ACTION_REMOVED:
+        handler.actionRemoved(in.readUTF(), in.readInt());
+        break;
+      case PLAN_CLEARED:
+        handler.planCleared(in.readUTF());
+        break;
+      default:
+        throw new IOException("Unknown record type " + type);
+    }
+    return true;
+  }
+  
+  /**
+   * Rewrites the journal as a snapshot of the live state, then keeps appending
+   * to it. The snapshot is written to a temporary file and renamed into place,
+   * so a crash part way through leaves the old journal intact.
+   */
+  public synchronized void compact(final Snapshot snapshot) throws IOException {
+    if (file == null)
+      return;
+    final File tempFile = new File(file.getPath() + ".tmp");
+    final FileOutputStream tempStream = new FileOutputStream(tempFile);
+    final DataOutputStream previousOut = out;
+    out = new DataOutputStream(new BufferedOutputStream(tempStream));
+    // Standbys already have everything in the snapshot
+    replicating = false;
+    try {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      snapshot.writeTo(this);
+      if (out == null)
+        throw new IOException("Couldn't write snapshot to '" + tempFile + "'");
+      out.flush();
+      tempStream.getFD().sync();
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+      tempStream.close();
+      out = previousOut;
+      replicating = true;
+    }
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+    if (!tempFile.renameTo(file)) {
+      // Windows won't rename over an existing file
+      file.delete();
+      if (!tempFile.renameTo(file))
+        throw new IOException("Couldn't move '" + tempFile + "' to '" + file + "'");
+    }
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    recordsSinceCompaction = 0;
+  }
+  
+  /**
+   * Starts the background thread that flushes the journal and compacts it once
+   * {@link DaemonConstants#STATE_JOURNAL_COMPACT_RECORDS} records have been
+   * appended since the last compaction.
+   */
+  public synchronized void startFlushing(final Snapshot snapshot) {
+    if (file != null && flushThread == null) {
+      flushThread = new FlushThread(snapshot);
+      flushThread.setDaemon(true);
+      flushThread.start();
+    }
+  }
+  
+  /**
+   * From now on, copies every record into an in-memory log of the given size
+   * as well, for standbys to follow with
+   * {@link #readReplicationLog(long, long, int, long)}. Works whether or not
+   * the journal has a file.
+   */
+  public synchronized void startReplicating(final int capacity) {
+    if (replicationLog == null) {
+      replicationLogId = new SecureRandom().nextLong();
+      replicationLog = new OutputBuffer(capacity);
+    }
+  }
+  
+  /**
+   * Writes the live state out the way {@link #compact(Snapshot)} would, but
+   * into memory and headed by where the replication log is up to, which is
+   * what a standby needs to start following the log.
+   * 
+   * @return the log id and offset as two longs, followed by records.
+   */
+  public synchronized byte[] snapshot(final Snapshot snapshot) throws IOException {
+    if (replicationLog == null)
+      throw new IOException("Not replicating");
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream snapshotOut = new DataOutputStream(bytes);
+    snapshotOut.writeLong(replicationLogId);
+    snapshotOut.writeLong(replicationLog.getEnd());
+    final DataOutputStream previousOut = out;
+    final long previousRecords = recordsSinceCompaction;
+    out = snapshotOut;
+    replicating = false;
+    try {
+      snapshot.writeTo(this);
+    } finally {
+      out = previousOut;
+      replicating = true;
+      recordsSinceCompaction = previousRecords;
+    }
+    return bytes.toByteArray();
+  }
+  
+  /**
+   * Long polls the replication log, the same way process output is read.
+   * Doesn't hold up writers while it waits.
+   * 
+   * @throws IOException
+   *           if the log id isn't the current one, because the server has
+   *           restarted since the reader took its snapshot.
+   */
+  public ProcessOutput readReplicationLog(final long logId, final long offset, final int maxBytes, final long waitMillis) throws IOException, InterruptedException {
+    final OutputBuffer log;
+    synchronized (this) {
+      if (replicationLog == null || logId != replicationLogId)
+        throw new IOException("Replication log " + logId + " is gone, take a new snapshot");
+      log = replicationLog;
+    }
+    return log.read(offset, maxBytes, waitMillis);
+  }
+  
+  public synchronized void flush() throws IOException {
+    if (out != null) {
+      out.flush();
+    }
+  }
+  
+  public synchronized void leaseGranted(final Lease lease) {
+    try {
+      if (!begin(LEASE))
+        return;
+      record.writeUTF(lease.getName());
+      record.writeUTF(lease.getHostname());
+      record.writeLong(lease.getExpirationTimeMillis());
+      record.writeLong(lease.getFence());
+      end();
+    } catch (final IOException ex) {
+      failed(ex);
+    }
+  }
+  
+  public synchronized void leaseRemoved(final String name, final long fence) {
+    try {
+      if (!begin(LEASE_REMOVED))
+        return;
+      record.writeUTF(name);
+      record.writeLong(fence);
+      end();
+    } catch (final IOException ex) {
+      failed(ex);
+    }
+  }
+  
+  public synchronized void startTimeSet(final String daemonName, final long startTimeMillis) {
+    try {
+      if (!begin(START_TIME))
+        return;
+      record.writeUTF(daemonName);
+      record.writeLong(startTimeMillis);
+      end();
+    } catch (final IOException ex) {
+      failed(ex);
+    }
+  }
+  
+  public synchronized void startTimeRemoved(final String daemonName) {
+    try {
+      if (!begin(START_TIME_REMOVED))
+        return;
+      record.writeUTF(daemonName);
+      end();
+    } catch (final IOException ex) {
+      failed(ex);
+    }
+  }
+  
+  /**
+   * @param kind
+   *          {@link #START} or {@link #STOP}
+   */
+  public synchronized void actionIssued(final String hostname, final int actionId, final byte kind, final String daemonName) {
+    try {
+      if (!begin(ACTION))
+        return;
+      record.writeUTF(hostname);
+      record.writeInt(actionId);
+      record.writeByte(kind);
+      record.writeUTF(daemonName);
+      end();
+    } catch (final IOException ex) {
+      failed(ex);
+    }
+  }
+  
+  public synchronized void actionRemoved(final String hostname, final int actionId) {
+    try {
+      if (!begin(ACTION_REMOVED))
+        return;
+      record.writeUTF(hostname);
+      record.writeInt(actionId);
+      end();
+    } catch (final IOException ex) {
+      failed(ex);
+    }
+  }
+  
+  public synchronized void planCleared(final String hostname) {
+    try {
+      if (!begin(PLAN_CLEARED))
+        return;
+      record.writeUTF(hostname);
+      end();
+    } catch (final IOException ex) {
+      failed(ex);
+    }
+  }
+  
+  /**
+   * Starts a record of the given type in {@link #record}.
+   * 
+   * @return false if there's nowhere for it to go.
+   */
+  private boolean begin(final byte type) throws IOException {
+    if (out == null && !isReplicating())
+      return false;
+    recordBytes.reset();
+    record.writeByte(type);
+    return true;
+  }
+  
+  /** Copies the record out to the replication log and the journal. */
+  private void end() throws IOException {
+    if (isReplicating()) {
+      replicationLog.write(recordBytes.getBuffer(), 0, recordBytes.size());
+    }
+    if (out != null) {
+      recordBytes.writeTo(out);
+      recordsSinceCompaction++;
+    }
+  }
+  
+  private boolean isReplicating() {
+    return replicating && replicationLog != null;
+  }
+  
+  /**
+   * Stops journaling rather than risk writing records after a gap. The next
+   * compaction starts a clean journal.
+   */
+  private void failed(final IOException ex) {
+    log.error("IOException while writing to state journal '" + file + "'. Journaling stops until the next compaction.", ex);
+    try {
+      out.close();
+    } catch (final IOException ignored) {
+    }
+    out = null;
+  }
+  
+  /** Receives the records of a journal as it is replayed. */
+  public interface Handler {
+    void leaseGranted(Lease lease);
+    
+    /**
+     * The lease with the given fence was freed or culled. Records for one name
+     * can be journaled out of order, so a later lease on the name may already
+     * have been granted; only a lease with the same fence is gone.
+     */
+    void leaseRemoved(String name, long fence);
+    
+    void startTimeSet(String daemonName, long startTimeMillis);
+    
+    void startTimeRemoved(String daemonName);
+    
+    void actionIssued(String hostname, int actionId, byte kind, String daemonName);
+    
+    void actionRemoved(String hostname, int actionId);
+    
+    void planCleared(String hostname);
+  }
+  
+  /** Writes the full live state to the journal when it is compacted. */
+  public interface Snapshot {
+    /** Calls the record methods on the journal once per live entry. */
+    void writeTo(StateJournal journal);
+  }
+  
+  /** Lets a record be copied out without {@link ByteArrayOutputStream#toByteArray()} copying it first. */
+  private static class RecordBuffer extends ByteArrayOutputStream {
+    public byte[] getBuffer() {
+      return buf;
+    }
+  }
+  
+  private class FlushThread extends KillableThread {
+    private final Snapshot snapshot;
+    
+    public FlushThread(final Snapshot snapshot) {
+      this.snapshot = snapshot;
+      setName("StateJournalFlushThread");
+    }
+    
+    @Override
+    public void run() {
+      while (!die) {
+        try {
+          Thread.sleep(DaemonConstants.STATE_JOURNAL_FLUSH_MILLIS);
+        } catch (final InterruptedException ignored) {
+        }
+        try {
+          synchronized (StateJournal.this) {
+            if (out == null || recordsSinceCompaction > DaemonConstants.STATE_JOURNAL_COMPACT_RECORDS) {
+              compact(snapshot);
+            } else {
+              flush();
+            }
+          }
+        } catch (final IOException ex) {
+          log.error("IOException while flushing state journal '" + file + "'", ex);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package com.pelzer.util.daemon.actions;
+
+import java.io.Serializable;
+
+/**
+ * The outcome of a single action from a plan handed out by
+ * {@link com.pelzer.util.daemon.DaemonServerRemoteInt#getActionPlan(String, String[])}
+ * , keyed by {@link IAction#getId()}.
+ */
+public class ActionResult implements Serializable {
+  private int     actionId;
+  private boolean success;
+  
+  public ActionResult() {
+  }
+  
+  public ActionResult(final int actionId, final boolean success) {
+    this.actionId = actionId;
+    this.success = success;
+  }
+  
+  public int getActionId() {
+    return actionId;
+  }
+  
+  public void setActionId(final int actionId) {
+    this.actionId = actionId;
+  }
+  
+  public boolean isSuccess() {
+    return success;
+  }
+  
+  public void setSuccess(final boolean success) {
+    this.success = success;
+  }
+}
@@ -1,8 +1,17 @@
 package com.pelzer.util.daemon.actions;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
 import com.pelzer.util.daemon.beans.DaemonBean;
+import com.pelzer.util.daemon.beans.WireFormat;
 
-public class StartDaemon implements IAction {
+public class StartDaemon implements IAction, Externalizable {
+  private static final long serialVersionUID = 1L;
+  private static final byte VERSION          = 1;
+  
   private int        id;
   private DaemonBean daemonBean;
   
@@ -21,4 +30,16 @@ public class StartDaemon implements IAction {
   public void setId(final int id) {
     this.id = id;
   }
+  
+  public void writeExternal(final ObjectOutput out) throws IOException {
+    out.writeByte(VERSION);
+    out.writeInt(id);
+    out.writeObject(daemonBean);
+  }
+  
+  public void readExternal(final ObjectInput in) throws IOException, ClassNotFoundException {
+    WireFormat.readVersion(in, StartDaemon.class, VERSION);
+    id = in.readInt();
+    daemonBean = (DaemonBean) in.readObject();
+  }
 }
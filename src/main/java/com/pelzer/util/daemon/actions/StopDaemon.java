@@ -1,8 +1,17 @@
 package com.pelzer.util.daemon.actions;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
 import com.pelzer.util.daemon.beans.DaemonBean;
+import com.pelzer.util.daemon.beans.WireFormat;
 
-public class StopDaemon implements IAction {
+public class StopDaemon implements IAction, Externalizable {
+  private static final long serialVersionUID = 1L;
+  private static final byte VERSION          = 1;
+  
   private int        id;
   private int        timeoutSeconds = 5 * 60;
   private DaemonBean daemonBean;
@@ -32,4 +41,17 @@ public class StopDaemon implements IAction {
     this.id = id;
   }
   
+  public void writeExternal(final ObjectOutput out) throws IOException {
+    out.writeByte(VERSION);
+    out.writeInt(id);
+    out.writeInt(timeoutSeconds);
+    out.writeObject(daemonBean);
+  }
+  
+  public void readExternal(final ObjectInput in) throws IOException, ClassNotFoundException {
+    WireFormat.readVersion(in, StopDaemon.class, VERSION);
+    id = in.readInt();
+    timeoutSeconds = in.readInt();
+    daemonBean = (DaemonBean) in.readObject();
+  }
 }
@@ -1,6 +1,9 @@
 package com.pelzer.util.daemon.beans;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.Date;
 import org.bson.types.ObjectId;
 import com.google.code.morphia.annotations.Entity;
@@ -9,10 +12,14 @@ import com.pelzer.util.daemon.DaemonStatus;
 
 /**
  * A bean the defines a daemon, containing fields for its properties, such as
- * name, command line, pid file, etc...
+ * name, command line, pid file, etc... Crosses the wire in the compact encoding
+ * of {@link #writeExternal(ObjectOutput)} rather than default serialization.
  */
 @Entity
-public class DaemonBean implements Serializable {
+public class DaemonBean implements Externalizable {
+  private static final long serialVersionUID = 1L;
+  private static final byte VERSION          = 3;
+  
   @Id
   private ObjectId id;
   String           name;
@@ -21,6 +28,10 @@ public class DaemonBean implements Serializable {
   String           pidFile;
   long             maxContinuousRuntimeMillis = 1000 * 60 * 60 * 24;
   ServerBean       server;
+  boolean          pinned                     = true;
+  int              cpuSlots                   = 1;
+  long             memoryMegabytes            = 0;
+  String           group;
   Date             lastUpdate                 = new Date(0);
   DaemonStatus     status                     = DaemonStatus.STOPPED;
   DaemonStatus     targetStatus               = DaemonStatus.STOPPED;
@@ -69,6 +80,50 @@ public class DaemonBean implements Serializable {
     this.server = server;
   }
   
+  /**
+   * A pinned daemon only ever runs on the server it was set to. One that isn't
+   * is moved between servers by the DaemonServer's placement, to wherever it
+   * fits. Defaults to true, which is how every daemon used to behave.
+   */
+  public boolean isPinned() {
+    return pinned;
+  }
+  
+  public void setPinned(final boolean pinned) {
+    this.pinned = pinned;
+  }
+  
+  /** How many of a server's CPU slots the daemon needs while running, defaults to 1. */
+  public int getCpuSlots() {
+    return cpuSlots;
+  }
+  
+  public void setCpuSlots(final int cpuSlots) {
+    this.cpuSlots = cpuSlots;
+  }
+  
+  /** How much memory the daemon needs while running, defaults to 0. */
+  public long getMemoryMegabytes() {
+    return memoryMegabytes;
+  }
+  
+  public void setMemoryMegabytes(final long memoryMegabytes) {
+    this.memoryMegabytes = memoryMegabytes;
+  }
+  
+  /**
+   * Daemons in the same group share a limit on how many of them the
+   * DaemonServer will start at once, for daemons that all lean on the same
+   * downstream service while they come up. Defaults to null, no group.
+   */
+  public String getGroup() {
+    return group;
+  }
+  
+  public void setGroup(final String group) {
+    this.group = group;
+  }
+  
   public String[] getStartCommandLine() {
     return startCommandLine;
   }
@@ -108,4 +163,52 @@ public class DaemonBean implements Serializable {
   public void setTargetStatus(final DaemonStatus targetStatus) {
     this.targetStatus = targetStatus;
   }
-}
\ No newline at end of file
+  
+  public void writeExternal(final ObjectOutput out) throws IOException {
+    out.writeByte(VERSION);
+    WireFormat.writeObjectId(out, id);
+    WireFormat.writeName(out, name);
+    WireFormat.writeNames(out, startCommandLine);
+    WireFormat.writeNames(out, stopCommandLine);
+    WireFormat.writeString(out, pidFile);
+    out.writeLong(maxContinuousRuntimeMillis);
+    out.writeBoolean(server != null);
+    if (server != null) {
+      // Inline rather than as an object of its own, saving the class descriptor
+      server.writeExternal(out);
+    }
+    out.writeBoolean(pinned);
+    out.writeInt(cpuSlots);
+    out.writeLong(memoryMegabytes);
+    WireFormat.writeString(out, group);
+    out.writeBoolean(lastUpdate != null);
+    if (lastUpdate != null) {
+      out.writeLong(lastUpdate.getTime());
+    }
+    WireFormat.writeEnum(out, status);
+    WireFormat.writeEnum(out, targetStatus);
+  }
+  
+  public void readExternal(final ObjectInput in) throws IOException {
+    WireFormat.readVersion(in, DaemonBean.class, VERSION);
+    id = WireFormat.readObjectId(in);
+    name = WireFormat.readName(in);
+    startCommandLine = WireFormat.readNames(in);
+    stopCommandLine = WireFormat.readNames(in);
+    pidFile = WireFormat.readString(in);
+    maxContinuousRuntimeMillis = in.readLong();
+    if (in.readBoolean()) {
+      server = new ServerBean();
+      server.readExternal(in);
+    } else {
+      server = null;
+    }
+    pinned = in.readBoolean();
+    cpuSlots = in.readInt();
+    memoryMegabytes = in.readLong();
+    group = WireFormat.readString(in);
+    lastUpdate = in.readBoolean() ? new Date(in.readLong()) : null;
+    status = WireFormat.readEnum(in, DaemonStatus.class);
+    targetStatus = WireFormat.readEnum(in, DaemonStatus.class);
+  }
+}
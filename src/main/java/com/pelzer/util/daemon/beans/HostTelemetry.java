@@ -0,0 +1,150 @@
+package com.pelzer.util.daemon.beans;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
+/**
+ * One sample of a host's health and of each of its running daemons' processes,
+ * taken by the DaemonManager and sent along with its poll. Processes are kept
+ * in parallel arrays of primitives rather than an object each, so a sample
+ * costs a handful of allocations whatever the number of daemons. Anything that
+ * couldn't be read is -1.
+ */
+public class HostTelemetry implements Externalizable {
+  private static final long serialVersionUID         = 1L;
+  private static final byte VERSION                  = 1;
+  /** Clock ticks per second that /proc counts CPU time in, which is 100 on every Linux we run on. */
+  public static final int   TICKS_PER_SECOND         = 100;
+  
+  private int               loadHundredths           = -1;
+  private long              memoryTotalKilobytes     = -1;
+  private long              memoryAvailableKilobytes = -1;
+  private int               processCount             = 0;
+  private String            daemonNames[]            = new String[8];
+  private int               pids[]                   = new int[8];
+  private long              cpuTicks[]               = new long[8];
+  private long              rssKilobytes[]           = new long[8];
+  private int               threads[]                = new int[8];
+  private int               openFiles[]              = new int[8];
+  
+  /** The one minute load average, times 100. */
+  public int getLoadHundredths() {
+    return loadHundredths;
+  }
+  
+  public void setLoadHundredths(final int loadHundredths) {
+    this.loadHundredths = loadHundredths;
+  }
+  
+  public long getMemoryTotalKilobytes() {
+    return memoryTotalKilobytes;
+  }
+  
+  public void setMemoryTotalKilobytes(final long memoryTotalKilobytes) {
+    this.memoryTotalKilobytes = memoryTotalKilobytes;
+  }
+  
+  /** Memory that can be handed out without swapping, page cache included. */
+  public long getMemoryAvailableKilobytes() {
+    return memoryAvailableKilobytes;
+  }
+  
+  public void setMemoryAvailableKilobytes(final long memoryAvailableKilobytes) {
+    this.memoryAvailableKilobytes = memoryAvailableKilobytes;
+  }
+  
+  /**
+   * Adds a daemon's process to the sample.
+   * 
+   * @param cpuTicks
+   *          user plus system time the process has used since it started, in
+   *          {@link #TICKS_PER_SECOND}.
+   */
+  public void addProcess(final String daemonName, final int pid, final long cpuTicks, final long rssKilobytes, final int threads, final int openFiles) {
+    if (processCount == pids.length) {
+      final int capacity = Math.max(8, processCount * 2);
+      daemonNames = Arrays.copyOf(daemonNames, capacity);
+      pids = Arrays.copyOf(pids, capacity);
+      this.cpuTicks = Arrays.copyOf(this.cpuTicks, capacity);
+      this.rssKilobytes = Arrays.copyOf(this.rssKilobytes, capacity);
+      this.threads = Arrays.copyOf(this.threads, capacity);
+      this.openFiles = Arrays.copyOf(this.openFiles, capacity);
+    }
+    daemonNames[processCount] = daemonName;
+    pids[processCount] = pid;
+    this.cpuTicks[processCount] = cpuTicks;
+    this.rssKilobytes[processCount] = rssKilobytes;
+    this.threads[processCount] = threads;
+    this.openFiles[processCount] = openFiles;
+    processCount++;
+  }
+  
+  public int getProcessCount() {
+    return processCount;
+  }
+  
+  public String getDaemonName(final int process) {
+    return daemonNames[process];
+  }
+  
+  public int getPid(final int process) {
+    return pids[process];
+  }
+  
+  public long getCpuTicks(final int process) {
+    return cpuTicks[process];
+  }
+  
+  public long getRssKilobytes(final int process) {
+    return rssKilobytes[process];
+  }
+  
+  public int getThreads(final int process) {
+    return threads[process];
+  }
+  
+  public int getOpenFiles(final int process) {
+    return openFiles[process];
+  }
+  
+  public void writeExternal(final ObjectOutput out) throws IOException {
+    out.writeByte(VERSION);
+    out.writeInt(loadHundredths);
+    out.writeLong(memoryTotalKilobytes);
+    out.writeLong(memoryAvailableKilobytes);
+    out.writeShort(processCount);
+    for (int i = 0; i < processCount; i++) {
+      WireFormat.writeName(out, daemonNames[i]);
+      out.writeInt(pids[i]);
+      out.writeLong(cpuTicks[i]);
+      out.writeLong(rssKilobytes[i]);
+      out.writeInt(threads[i]);
+      out.writeInt(openFiles[i]);
+    }
+  }
+  
+  public void readExternal(final ObjectInput in) throws IOException {
+    WireFormat.readVersion(in, HostTelemetry.class, VERSION);
+    loadHundredths = in.readInt();
+    memoryTotalKilobytes = in.readLong();
+    memoryAvailableKilobytes = in.readLong();
+    final int count = in.readShort();
+    daemonNames = new String[count];
+    pids = new int[count];
+    cpuTicks = new long[count];
+    rssKilobytes = new long[count];
+    threads = new int[count];
+    openFiles = new int[count];
+    for (processCount = 0; processCount < count; processCount++) {
+      daemonNames[processCount] = WireFormat.readName(in);
+      pids[processCount] = in.readInt();
+      cpuTicks[processCount] = in.readLong();
+      rssKilobytes[processCount] = in.readLong();
+      threads[processCount] = in.readInt();
+      openFiles[processCount] = in.readInt();
+    }
+  }
+}
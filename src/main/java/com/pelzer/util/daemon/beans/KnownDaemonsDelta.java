@@ -0,0 +1,71 @@
+package com.pelzer.util.daemon.beans;
+
+import java.io.Serializable;
+
+/**
+ * The answer to
+ * {@link com.pelzer.util.daemon.DaemonServerRemoteInt#getKnownDaemonsSince(long, long)}
+ * : every daemon added or changed since the caller's version, the names of the
+ * daemons removed since then, and the epoch and version to ask from next time.
+ * If {@link #isFull()} is set, the caller's epoch or version was unknown to the
+ * server and changed holds every known daemon, replacing whatever the caller
+ * had.
+ */
+public class KnownDaemonsDelta implements Serializable {
+  private long         epoch;
+  private long         version;
+  private boolean      full;
+  private DaemonBean[] changed;
+  private String[]     removed;
+  
+  public KnownDaemonsDelta() {
+  }
+  
+  public KnownDaemonsDelta(final long epoch, final long version, final boolean full, final DaemonBean changed[], final String removed[]) {
+    this.epoch = epoch;
+    this.version = version;
+    this.full = full;
+    this.changed = changed;
+    this.removed = removed;
+  }
+  
+  public long getEpoch() {
+    return epoch;
+  }
+  
+  public void setEpoch(final long epoch) {
+    this.epoch = epoch;
+  }
+  
+  public long getVersion() {
+    return version;
+  }
+  
+  public void setVersion(final long version) {
+    this.version = version;
+  }
+  
+  public boolean isFull() {
+    return full;
+  }
+  
+  public void setFull(final boolean full) {
+    this.full = full;
+  }
+  
+  public DaemonBean[] getChanged() {
+    return changed;
+  }
+  
+  public void setChanged(final DaemonBean[] changed) {
+    this.changed = changed;
+  }
+  
+  public String[] getRemoved() {
+    return removed;
+  }
+  
+  public void setRemoved(final String[] removed) {
+    this.removed = removed;
+  }
+}
@@ -0,0 +1,36 @@
+package com.pelzer.util.daemon.beans;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+
+/**
+ * The leader lease of one DaemonServer shard, kept in the database so that
+ * every member of the shard agrees on who's serving. The term goes up every
+ * time the lease changes hands.
+ */
+@Entity
+public class LeaderBean {
+  /** The shard, as written in DaemonConstants.DAEMON_SERVER_SHARDS. */
+  @Id
+  private String shard;
+  /** Address of the server holding the lease. */
+  private String holder;
+  private long   expiresMillis;
+  private long   term;
+  
+  public String getShard() {
+    return shard;
+  }
+  
+  public String getHolder() {
+    return holder;
+  }
+  
+  public long getExpiresMillis() {
+    return expiresMillis;
+  }
+  
+  public long getTerm() {
+    return term;
+  }
+}
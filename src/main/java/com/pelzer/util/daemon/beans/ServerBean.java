@@ -1,15 +1,25 @@
 package com.pelzer.util.daemon.beans;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Date;
 import org.bson.types.ObjectId;
 import com.google.code.morphia.annotations.Entity;
 import com.google.code.morphia.annotations.Id;
 
 @Entity
-public class ServerBean implements Serializable {
+public class ServerBean implements Externalizable {
+  private static final long serialVersionUID = 1L;
+  private static final byte VERSION          = 2;
+  
   @Id
   private ObjectId id;
   String           name;
+  int              cpuSlots;
+  long             memoryMegabytes;
+  Date             lastSeen;
   
   public ServerBean() {
   }
@@ -34,4 +44,62 @@ public class ServerBean implements Serializable {
   public void setName(final String name) {
     this.name = name;
   }
+  
+  /**
+   * How many CPU slots the server offers to daemons that aren't pinned to a
+   * server. Zero, the default, keeps the server out of automatic placement.
+   */
+  public int getCpuSlots() {
+    return cpuSlots;
+  }
+  
+  public void setCpuSlots(final int cpuSlots) {
+    this.cpuSlots = cpuSlots;
+  }
+  
+  /**
+   * How much memory the server offers to placed daemons. Zero, the default,
+   * means memory isn't taken into account.
+   */
+  public long getMemoryMegabytes() {
+    return memoryMegabytes;
+  }
+  
+  public void setMemoryMegabytes(final long memoryMegabytes) {
+    this.memoryMegabytes = memoryMegabytes;
+  }
+  
+  /**
+   * When the server's DaemonManager last polled, written at most every
+   * {@link com.pelzer.util.daemon.DaemonConstants#PLACEMENT_INTERVAL_MILLIS}.
+   * Placement only uses servers that have been seen recently.
+   */
+  public Date getLastSeen() {
+    return lastSeen;
+  }
+  
+  public void setLastSeen(final Date lastSeen) {
+    this.lastSeen = lastSeen;
+  }
+  
+  public void writeExternal(final ObjectOutput out) throws IOException {
+    out.writeByte(VERSION);
+    WireFormat.writeObjectId(out, id);
+    WireFormat.writeName(out, name);
+    out.writeInt(cpuSlots);
+    out.writeLong(memoryMegabytes);
+    out.writeBoolean(lastSeen != null);
+    if (lastSeen != null) {
+      out.writeLong(lastSeen.getTime());
+    }
+  }
+  
+  public void readExternal(final ObjectInput in) throws IOException {
+    WireFormat.readVersion(in, ServerBean.class, VERSION);
+    id = WireFormat.readObjectId(in);
+    name = WireFormat.readName(in);
+    cpuSlots = in.readInt();
+    memoryMegabytes = in.readLong();
+    lastSeen = in.readBoolean() ? new Date(in.readLong()) : null;
+  }
 }
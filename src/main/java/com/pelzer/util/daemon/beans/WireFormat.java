@@ -0,0 +1,110 @@
+package com.pelzer.util.daemon.beans;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Helpers for the hand-written {@link java.io.Externalizable} encodings of the
+ * beans and actions that cross the wire. Everything is null-safe.
+ */
+public final class WireFormat {
+  private WireFormat() {
+  }
+  
+  /**
+   * Writes a name that is likely to repeat within a single call, such as a
+   * hostname. The name is interned and written as an object, so the stream's
+   * handle table sends it once and every repeat as a short back reference.
+   */
+  public static void writeName(final ObjectOutput out, final String name) throws IOException {
+    out.writeObject(name == null ? null : name.intern());
+  }
+  
+  /** Reads a name written by {@link #writeName(ObjectOutput, String)}, interned. */
+  public static String readName(final ObjectInput in) throws IOException {
+    try {
+      final String name = (String) in.readObject();
+      return name == null ? null : name.intern();
+    } catch (final ClassNotFoundException ex) {
+      throw new IOException("Expected a name", ex);
+    }
+  }
+  
+  public static void writeString(final ObjectOutput out, final String string) throws IOException {
+    out.writeBoolean(string != null);
+    if (string != null) {
+      out.writeUTF(string);
+    }
+  }
+  
+  public static String readString(final ObjectInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+  
+  /**
+   * Writes each element with {@link #writeName(ObjectOutput, String)}, since
+   * command lines tend to share their executable and repeat the daemon name.
+   */
+  public static void writeNames(final ObjectOutput out, final String names[]) throws IOException {
+    if (names == null) {
+      out.writeShort(-1);
+      return;
+    }
+    out.writeShort(names.length);
+    for (final String name : names) {
+      writeName(out, name);
+    }
+  }
+  
+  public static String[] readNames(final ObjectInput in) throws IOException {
+    final int length = in.readShort();
+    if (length < 0)
+      return null;
+    final String names[] = new String[length];
+    for (int i = 0; i < length; i++) {
+      names[i] = readName(in);
+    }
+    return names;
+  }
+  
+  /** Writes the id as its raw 12 bytes. */
+  public static void writeObjectId(final ObjectOutput out, final ObjectId id) throws IOException {
+    out.writeBoolean(id != null);
+    if (id != null) {
+      out.write(id.toByteArray());
+    }
+  }
+  
+  public static ObjectId readObjectId(final ObjectInput in) throws IOException {
+    if (!in.readBoolean())
+      return null;
+    final byte bytes[] = new byte[12];
+    in.readFully(bytes);
+    return new ObjectId(bytes);
+  }
+  
+  /** Writes the enum as its ordinal, so its constants must only ever be appended to. */
+  public static void writeEnum(final ObjectOutput out, final Enum<?> value) throws IOException {
+    out.writeByte(value == null ? -1 : value.ordinal());
+  }
+  
+  public static <E extends Enum<E>> E readEnum(final ObjectInput in, final Class<E> type) throws IOException {
+    final byte ordinal = in.readByte();
+    if (ordinal < 0)
+      return null;
+    final E values[] = type.getEnumConstants();
+    if (ordinal >= values.length)
+      throw new IOException("Unknown " + type.getName() + " ordinal " + ordinal);
+    return values[ordinal];
+  }
+  
+  /** Checks the version byte at the start of an encoding. */
+  public static void readVersion(final ObjectInput in, final Class<?> type, final byte expected) throws IOException {
+    final byte version = in.readByte();
+    if (version != expected)
+      throw new IOException("Can't read version " + version + " of " + type.getName() + ", only version " + expected);
+  }
+}
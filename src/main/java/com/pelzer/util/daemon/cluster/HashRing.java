@@ -0,0 +1,91 @@
+package com.pelzer.util.daemon.cluster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring of nodes, such as DaemonServer shards. Each node is
+ * placed at a number of pseudo-random points around the ring, and a key
+ * belongs to the first node point at or after the key's own hash, wrapping
+ * around. Adding or removing a node only moves the keys between it and its
+ * neighbours, about 1/n of them, and everybody who builds a ring from the same
+ * nodes agrees on every owner. Immutable, so it's safe to share.
+ */
+public class HashRing {
+  private final List<String>          nodes;
+  /** Stores <point, node> */
+  private final TreeMap<Long, String> points = new TreeMap<Long, String>();
+  
+  public HashRing(final Collection<String> nodes, final int pointsPerNode) {
+    if (nodes.isEmpty())
+      throw new IllegalArgumentException("A ring needs at least one node");
+    this.nodes = Collections.unmodifiableList(new ArrayList<String>(nodes));
+    for (final String node : this.nodes) {
+      for (int i = 0; i < pointsPerNode; i++) {
+        final String pointName = node + "#" + i;
+        final long point = hash(pointName);
+        // On the off chance of a collision, the lower node name wins everywhere
+        final String existing = points.get(point);
+        if (existing == null || existing.compareTo(node) > 0) {
+          points.put(point, node);
+        }
+      }
+    }
+  }
+  
+  /**
+   * @param nodes
+   *          comma separated, as in a config file. Whitespace around each node
+   *          is ignored, as are empty entries.
+   */
+  public static HashRing parse(final String nodes, final int pointsPerNode) {
+    final List<String> list = new ArrayList<String>();
+    for (final String node : nodes.split(",")) {
+      if (node.trim().length() > 0) {
+        list.add(node.trim());
+      }
+    }
+    return new HashRing(list, pointsPerNode);
+  }
+  
+  /** @return the node that owns the key. */
+  public String getOwner(final String key) {
+    if (nodes.size() == 1)
+      return nodes.get(0);
+    final Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+    return point == null ? points.firstEntry().getValue() : point.getValue();
+  }
+  
+  /** @return every node, in the order they were given. */
+  public List<String> getNodes() {
+    return nodes;
+  }
+  
+  public int size() {
+    return nodes.size();
+  }
+  
+  /**
+   * 64 bit FNV-1a of the string's chars, run through the MurmurHash3
+   * finalizer so that similar hostnames spread out around the ring. Stable
+   * across JVMs, unlike {@link Object#hashCode()} in general, and needs no
+   * allocation.
+   */
+  static long hash(final CharSequence key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,230 @@
+package com.pelzer.util.daemon.cluster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.pelzer.util.daemon.DaemonStatus;
+import com.pelzer.util.daemon.beans.DaemonBean;
+import com.pelzer.util.daemon.beans.ServerBean;
+
+/**
+ * Works out which server each daemon that isn't pinned should run on, by bin
+ * packing daemons' resource requests into servers' capacity. Daemons stay where
+ * they are as long as their server is live and has room for them, so placement
+ * only moves what has to move: daemons with no server yet, daemons on servers
+ * that have gone away, and the smallest daemons on servers that are over
+ * capacity. Those are placed biggest first, each onto the server it fills the
+ * most (best fit decreasing), which packs them onto as few servers as it can.
+ * <p>
+ * That alone would never give a server that joins anything to do, so each
+ * round may also move a few running daemons, smallest first, off the busiest
+ * server onto the least busy one, as long as that leaves the least busy one
+ * less loaded than the busiest one was. Load is the share of CPU slots taken.
+ * The limit on these moves keeps a joining server from triggering a storm of
+ * restarts; it's filled a few daemons per round instead.
+ * <p>
+ * Only daemons with a target status of RUNNING take up room. Pinned daemons
+ * are never moved, but do count against their server's capacity. Servers with
+ * no CPU slots aren't used for placement.
+ */
+public class Placement {
+  private static final Comparator<DaemonBean> BIGGEST_FIRST = new BiggestFirst();
+  /** Stores <hostname, bin> for every server daemons can be placed on. */
+  private final Map<String, Bin>              bins          = new TreeMap<String, Bin>();
+  private final List<String>                  unplaced      = new ArrayList<String>();
+  private final int                           maxRebalanceMoves;
+  
+  /** Never rebalances, only moves what has to move. */
+  public Placement(final Collection<ServerBean> liveServers) {
+    this(liveServers, 0);
+  }
+  
+  /**
+   * @param liveServers
+   *          the servers that are up, whether or not they take placed daemons.
+   * @param maxRebalanceMoves
+   *          the most running daemons to move per {@link #place(Collection)}
+   *          just to even out the load.
+   */
+  public Placement(final Collection<ServerBean> liveServers, final int maxRebalanceMoves) {
+    this.maxRebalanceMoves = maxRebalanceMoves;
+    for (final ServerBean server : liveServers) {
+      if (server.getCpuSlots() > 0) {
+        bins.put(server.getName(), new Bin(server));
+      }
+    }
+  }
+  
+  /**
+   * @return <daemonName, server> for every daemon that should move to a
+   *         different server, in name order. Daemons that don't fit anywhere
+   *         are left out, see {@link #getUnplaced()}.
+   */
+  public Map<String, ServerBean> place(final Collection<DaemonBean> daemons) {
+    final List<DaemonBean> sorted = new ArrayList<DaemonBean>(daemons);
+    Collections.sort(sorted, BIGGEST_FIRST);
+    // Pinned daemons take their room first, whether it's there or not
+    for (final DaemonBean daemon : sorted) {
+      if (daemon.isPinned() && needsRoom(daemon)) {
+        final Bin bin = bins.get(daemon.getServer().getName());
+        if (bin != null) {
+          bin.take(daemon);
+        }
+      }
+    }
+    // Then the daemons already placed keep their spot if there's room for it
+    final List<DaemonBean> homeless = new ArrayList<DaemonBean>();
+    for (final DaemonBean daemon : sorted) {
+      if (daemon.isPinned() || daemon.getTargetStatus() != DaemonStatus.RUNNING)
+        continue;
+      final Bin bin = daemon.getServer() == null ? null : bins.get(daemon.getServer().getName());
+      if (bin != null && bin.fits(daemon)) {
+        bin.take(daemon);
+      } else {
+        homeless.add(daemon);
+      }
+    }
+    // Finally everything else goes wherever it fits most snugly
+    final Map<String, ServerBean> moves = new TreeMap<String, ServerBean>();
+    unplaced.clear();
+    for (final DaemonBean daemon : homeless) {
+      Bin best = null;
+      for (final Bin bin : bins.values()) {
+        if (bin.fits(daemon) && (best == null || bin.isSnugger(best))) {
+          best = bin;
+        }
+      }
+      if (best == null) {
+        unplaced.add(daemon.getName());
+      } else {
+        best.take(daemon);
+        moves.put(daemon.getName(), best.server);
+      }
+    }
+    int rebalanced = 0;
+    while (rebalanced < maxRebalanceMoves && rebalanceOnce(moves)) {
+      rebalanced++;
+    }
+    return moves;
+  }
+  
+  /**
+   * Moves the smallest daemon it can off the busiest server onto the least
+   * busy one, if that evens the load out. Daemons that take no CPU slots don't
+   * count towards the load, so moving them wouldn't help.
+   * 
+   * @return false if there was nothing worth moving.
+   */
+  private boolean rebalanceOnce(final Map<String, ServerBean> moves) {
+    Bin busiest = null;
+    Bin idlest = null;
+    for (final Bin bin : bins.values()) {
+      if (busiest == null || bin.getLoad() > busiest.getLoad()) {
+        busiest = bin;
+      }
+      if (idlest == null || bin.getLoad() < idlest.getLoad()) {
+        idlest = bin;
+      }
+    }
+    if (busiest == idlest)
+      return false;
+    final List<DaemonBean> candidates = new ArrayList<DaemonBean>(busiest.movable);
+    Collections.sort(candidates, BIGGEST_FIRST);
+    for (int i = candidates.size() - 1; i >= 0; i--) {
+      final DaemonBean daemon = candidates.get(i);
+      if (daemon.getCpuSlots() > 0 && idlest.fits(daemon) && idlest.getLoadWith(daemon) < busiest.getLoad()) {
+        busiest.release(daemon);
+        idlest.take(daemon);
+        if (daemon.getServer() != null && daemon.getServer().getName().equals(idlest.server.getName())) {
+          moves.remove(daemon.getName());
+        } else {
+          moves.put(daemon.getName(), idlest.server);
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /** @return the daemons the last {@link #place(Collection)} couldn't fit anywhere. */
+  public List<String> getUnplaced() {
+    return unplaced;
+  }
+  
+  private static boolean needsRoom(final DaemonBean daemon) {
+    return daemon.getServer() != null && daemon.getTargetStatus() == DaemonStatus.RUNNING;
+  }
+  
+  /** What's left of one server's capacity. */
+  private static class Bin {
+    private final ServerBean       server;
+    private int                    freeCpuSlots;
+    private long                   freeMemoryMegabytes;
+    /** The daemons that aren't pinned here, which rebalancing may move. */
+    private final List<DaemonBean> movable = new ArrayList<DaemonBean>();
+    
+    public Bin(final ServerBean server) {
+      this.server = server;
+      freeCpuSlots = server.getCpuSlots();
+      freeMemoryMegabytes = server.getMemoryMegabytes();
+    }
+    
+    public boolean fits(final DaemonBean daemon) {
+      if (daemon.getCpuSlots() > freeCpuSlots)
+        return false;
+      return server.getMemoryMegabytes() == 0 || daemon.getMemoryMegabytes() <= freeMemoryMegabytes;
+    }
+    
+    public void take(final DaemonBean daemon) {
+      freeCpuSlots -= daemon.getCpuSlots();
+      if (server.getMemoryMegabytes() > 0) {
+        freeMemoryMegabytes -= daemon.getMemoryMegabytes();
+      }
+      if (!daemon.isPinned()) {
+        movable.add(daemon);
+      }
+    }
+    
+    public void release(final DaemonBean daemon) {
+      freeCpuSlots += daemon.getCpuSlots();
+      if (server.getMemoryMegabytes() > 0) {
+        freeMemoryMegabytes += daemon.getMemoryMegabytes();
+      }
+      movable.remove(daemon);
+    }
+    
+    /** @return the share of CPU slots taken, which is over 1 if pinned daemons overfill it. */
+    public double getLoad() {
+      return getLoadWith(null);
+    }
+    
+    /** @return the share of CPU slots that would be taken with the daemon as well. */
+    public double getLoadWith(final DaemonBean daemon) {
+      final int taken = server.getCpuSlots() - freeCpuSlots + (daemon == null ? 0 : daemon.getCpuSlots());
+      return (double) taken / server.getCpuSlots();
+    }
+    
+    /** @return true if this bin has less room left than the other, so a daemon placed here wastes less. */
+    public boolean isSnugger(final Bin other) {
+      if (freeCpuSlots != other.freeCpuSlots)
+        return freeCpuSlots < other.freeCpuSlots;
+      return freeMemoryMegabytes < other.freeMemoryMegabytes;
+    }
+  }
+  
+  /** Biggest CPU request first, then biggest memory request, then by name so placement is repeatable. */
+  private static class BiggestFirst implements Comparator<DaemonBean> {
+    public int compare(final DaemonBean a, final DaemonBean b) {
+      if (a.getCpuSlots() != b.getCpuSlots())
+        return a.getCpuSlots() > b.getCpuSlots() ? -1 : 1;
+      if (a.getMemoryMegabytes() != b.getMemoryMegabytes())
+        return a.getMemoryMegabytes() > b.getMemoryMegabytes() ? -1 : 1;
+      return a.getName().compareTo(b.getName());
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package com.pelzer.util.daemon.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.rmi.RemoteException;
+
+import com.pelzer.util.Logging;
+import com.pelzer.util.daemon.DaemonServerRemoteInt;
+import com.pelzer.util.daemon.StateJournal;
+import com.pelzer.util.daemon.process.ProcessOutput;
+
+/**
+ * A hot standby's copy of the leader's runtime state. It starts from a
+ * snapshot, then follows the leader's replication log a chunk at a time. If it
+ * falls off the end of the log, or the leader changes or restarts, it simply
+ * starts again from a new snapshot. Not thread safe; one thread does the
+ * following.
+ */
+public class Replica {
+  private static Logging.Logger log         = Logging.getLogger(Replica.class);
+  private static final int      CHUNK_BYTES = 64 * 1024;
+  private final State           state;
+  private String                leader      = null;
+  private long                  logId;
+  /** Offset in the leader's log of the next byte wanted, or -1 if a snapshot is needed first. */
+  private long                  offset      = -1;
+  /** Holds the start of a record that hasn't fully arrived yet. */
+  private byte                  buffer[]    = new byte[CHUNK_BYTES];
+  private int                   buffered    = 0;
+  private boolean               hasState    = false;
+  
+  public Replica(final State state) {
+    this.state = state;
+  }
+  
+  /**
+   * Brings the state up to date with the leader at the given address, waiting
+   * up to waitMillis for something to change. Any exception leaves the replica
+   * needing a new snapshot.
+   */
+  public void follow(final String leaderAddress, final DaemonServerRemoteInt leader, final long waitMillis) throws RemoteException, IOException {
+    if (!leaderAddress.equals(this.leader)) {
+      this.leader = leaderAddress;
+      offset = -1;
+    }
+    final long wanted = offset;
+    offset = -1;
+    if (wanted < 0) {
+      takeSnapshot(leader);
+      return;
+    }
+    final ProcessOutput chunk = leader.readReplicationLog(logId, wanted, CHUNK_BYTES, waitMillis);
+    if (chunk.getOffset() != wanted) {
+      log.warn("Fell " + (chunk.getOffset() - wanted) + " bytes behind the replication log of '" + leaderAddress + "', taking a new snapshot");
+      return;
+    }
+    final byte data[] = chunk.getData();
+    if (buffered + data.length > buffer.length) {
+      final byte bigger[] = new byte[Math.max(buffer.length * 2, buffered + data.length)];
+      System.arraycopy(buffer, 0, bigger, 0, buffered);
+      buffer = bigger;
+    }
+    System.arraycopy(data, 0, buffer, buffered, data.length);
+    buffered += data.length;
+    final int used = StateJournal.readRecords(buffer, 0, buffered, state);
+    System.arraycopy(buffer, used, buffer, 0, buffered - used);
+    buffered -= used;
+    offset = chunk.getNextOffset();
+  }
+  
+  private void takeSnapshot(final DaemonServerRemoteInt leader) throws RemoteException, IOException {
+    final byte snapshot[] = leader.getReplicationSnapshot();
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+    final long snapshotLogId = in.readLong();
+    final long snapshotOffset = in.readLong();
+    hasState = false;
+    state.clear();
+    buffered = 0;
+    final int header = 16;
+    if (StateJournal.readRecords(snapshot, header, snapshot.length - header, state) != snapshot.length - header)
+      throw new IOException("Snapshot from '" + this.leader + "' ends part way through a record");
+    hasState = true;
+    logId = snapshotLogId;
+    offset = snapshotOffset;
+    log.info("Took a " + snapshot.length + " byte snapshot from '" + this.leader + "'");
+  }
+  
+  /**
+   * @return true once the state has been filled in from a snapshot. It stays
+   *         true after losing the leader, with the state as of the last chunk
+   *         that arrived, which is what a standby takes over with.
+   */
+  public boolean hasState() {
+    return hasState;
+  }
+  
+  /** Where the replicated state goes. */
+  public interface State extends StateJournal.Handler {
+    /** Forgets everything, ready for a new snapshot. */
+    void clear();
+  }
+}
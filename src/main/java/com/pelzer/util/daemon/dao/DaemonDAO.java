@@ -1,5 +1,7 @@
 package com.pelzer.util.daemon.dao;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import com.google.code.morphia.Key;
 import com.pelzer.util.daemon.DaemonStatus;
@@ -15,6 +17,13 @@ public interface DaemonDAO {
   /** @return a list of all the daemons the daemon system is aware of. */
   List<DaemonBean> getAllKnownDaemons();
   
+  /**
+   * @return every daemon whose {@link DaemonBean#getLastUpdate()} is at or
+   *         after the given time. Every write through this DAO bumps
+   *         lastUpdate, so this can be used to pull changes incrementally.
+   */
+  List<DaemonBean> getDaemonsUpdatedSince(Date since);
+  
   /**
    * Called periodically by the daemon server to update the database if a
    * particular daemon hasn't been updated in the past timeout period. Used to
@@ -25,6 +34,13 @@ public interface DaemonDAO {
   /** Sets the current status of the daemon. */
   void setDaemonStatus(DaemonBean daemonBean, DaemonStatus status);
   
+  /**
+   * Brings the stored status of the named daemons in line with what a host has
+   * reported, in bulk. Only daemons whose stored status actually differs are
+   * written, so a poll where nothing has changed costs no document writes.
+   */
+  void reconcileDaemonStatuses(Collection<String> runningDaemonNames, Collection<String> stoppedDaemonNames);
+  
   /** Sets the target status of the daemon. */
   void setTargetDaemonStatus(DaemonBean daemonBean, DaemonStatus status);
   
@@ -1,5 +1,6 @@
 package com.pelzer.util.daemon.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -45,9 +46,13 @@ public class DaemonDAOImpl extends BasicDAO<DaemonBean, ObjectId> implements Dae
     return find(ds.createQuery(DaemonBean.class)).asList();
   }
   
+  public List<DaemonBean> getDaemonsUpdatedSince(final Date since) {
+    return find(ds.createQuery(DaemonBean.class).field("lastUpdate").greaterThanOrEq(since)).asList();
+  }
+  
   public void expireMissingDaemons() {
     update(ds.createQuery(DaemonBean.class).field("lastUpdate").lessThan(new Date(System.currentTimeMillis() - (1000 * 60 * 60 * 24))).field("status").equal(DaemonStatus.RUNNING), ds
-        .createUpdateOperations(DaemonBean.class).set("status", DaemonStatus.STOPPED));
+        .createUpdateOperations(DaemonBean.class).set("status", DaemonStatus.STOPPED).set("lastUpdate", new Date()));
   }
   
   public void setDaemonStatus(final DaemonBean daemonBean, final DaemonStatus status) {
@@ -56,6 +61,22 @@ public class DaemonDAOImpl extends BasicDAO<DaemonBean, ObjectId> implements Dae
     save(db);
   }
   
+  public void reconcileDaemonStatuses(final Collection<String> runningDaemonNames, final Collection<String> stoppedDaemonNames) {
+    setDaemonStatuses(runningDaemonNames, DaemonStatus.RUNNING);
+    setDaemonStatuses(stoppedDaemonNames, DaemonStatus.STOPPED);
+  }
+  
+  /**
+   * Single multi-document update that flips every named daemon not already in
+   * the given status.
+   */
+  private void setDaemonStatuses(final Collection<String> daemonNames, final DaemonStatus status) {
+    if (daemonNames == null || daemonNames.isEmpty())
+      return;
+    update(ds.createQuery(DaemonBean.class).field("name").in(daemonNames).field("status").notEqual(status), ds.createUpdateOperations(DaemonBean.class).set("status", status).set("lastUpdate",
+        new Date()));
+  }
+  
   public void setTargetDaemonStatus(final DaemonBean daemonBean, final DaemonStatus status) {
     final DaemonBean db = get(daemonBean.getId());
     db.setTargetStatus(status);
@@ -78,6 +99,7 @@ public class DaemonDAOImpl extends BasicDAO<DaemonBean, ObjectId> implements Dae
   
   @Override
   public Key<DaemonBean> save(final DaemonBean entity) {
+    entity.setLastUpdate(new Date());
     return super.save(entity);
   }
   
@@ -0,0 +1,17 @@
+package com.pelzer.util.daemon.dao;
+
+import com.pelzer.util.daemon.beans.LeaderBean;
+
+/** Leader leases for DaemonServer shards with a hot standby. */
+public interface LeaderDAO {
+  final String BEAN_NAME = "com.pelzer.util.daemon.dao.LeaderDAO";
+  
+  /**
+   * Renews the candidate's lease on the shard if it holds it, or takes the
+   * lease if nobody does or the holder's has run out. Either way it's a single
+   * atomic update, so two candidates can never both come away holding it.
+   * 
+   * @return the lease as it stands afterwards, or null if it couldn't be read.
+   */
+  LeaderBean tryAcquire(String shard, String candidate, long leaseMillis);
+}
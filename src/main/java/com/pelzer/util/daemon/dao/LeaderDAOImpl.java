@@ -0,0 +1,37 @@
+package com.pelzer.util.daemon.dao;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.google.code.morphia.Morphia;
+import com.google.code.morphia.dao.BasicDAO;
+import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+import com.pelzer.util.daemon.DaemonConstants;
+import com.pelzer.util.daemon.beans.LeaderBean;
+
+@Service(LeaderDAO.BEAN_NAME)
+public class LeaderDAOImpl extends BasicDAO<LeaderBean, String> implements LeaderDAO {
+  
+  @Autowired
+  public LeaderDAOImpl(final Mongo mongo, final Morphia morphia) {
+    super(mongo, morphia, DaemonConstants.MONGO_DB_NAME);
+  }
+  
+  public LeaderBean tryAcquire(final String shard, final String candidate, final long leaseMillis) {
+    final long now = System.currentTimeMillis();
+    final boolean renewed = update(ds.createQuery(LeaderBean.class).field("_id").equal(shard).field("holder").equal(candidate), ds.createUpdateOperations(LeaderBean.class).set("expiresMillis",
+        now + leaseMillis)).getUpdatedCount() > 0;
+    if (!renewed) {
+      try {
+        // Matches an expired lease, or inserts the first one. If somebody
+        // holds a live lease, the insert clashes with it on the id.
+        ds.update(ds.createQuery(LeaderBean.class).field("_id").equal(shard).field("expiresMillis").lessThan(now), ds.createUpdateOperations(LeaderBean.class).set("holder", candidate).set(
+            "expiresMillis", now + leaseMillis).inc("term"), true);
+      } catch (final MongoException ex) {
+        // Somebody else holds it
+      }
+    }
+    return get(shard);
+  }
+}
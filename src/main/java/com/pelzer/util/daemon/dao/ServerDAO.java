@@ -1,7 +1,9 @@
 package com.pelzer.util.daemon.dao;
 
+import java.util.Date;
 import java.util.List;
 
+import com.google.code.morphia.Key;
 import com.pelzer.util.daemon.beans.ServerBean;
 
 public interface ServerDAO {
@@ -21,4 +23,12 @@ public interface ServerDAO {
   
   /** Creates the server, or returns the existing server if it already exists. */
   ServerBean getOrCreateServer(String hostname);
+  
+  /**
+   * Records when the server's DaemonManager was last heard from. Does nothing
+   * if the server doesn't exist.
+   */
+  void setLastSeen(String hostname, Date lastSeen);
+  
+  Key<ServerBean> save(final ServerBean entity);
 }
@@ -1,6 +1,7 @@
 package com.pelzer.util.daemon.dao;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -44,4 +45,8 @@ public class ServerDAOImpl extends BasicDAO<ServerBean, ObjectId> implements Ser
     save(server);
     return server;
   }
+  
+  public void setLastSeen(final String hostname, final Date lastSeen) {
+    update(ds.createQuery(ServerBean.class).field("name").equal(hostname), ds.createUpdateOperations(ServerBean.class).set("lastSeen", lastSeen));
+  }
 }
@@ -0,0 +1,51 @@
+package com.pelzer.util.daemon.lease;
+
+/**
+ * An immutable grant of a name to a host until a point in time. Renewing a
+ * lease swaps in a new instance, so a lease can be compared by identity to
+ * tell whether it is still the current one. The fence is handed out when the
+ * name is acquired and kept across renewals; every new acquisition of any name
+ * gets a higher fence than every one before it.
+ */
+public class Lease {
+  private final String name;
+  private final String hostname;
+  private final long   expirationTimeMillis;
+  private final long   fence;
+  
+  public Lease(final String name, final String hostname, final long expirationTimeMillis, final long fence) {
+    this.name = name;
+    this.hostname = hostname;
+    this.expirationTimeMillis = expirationTimeMillis;
+    this.fence = fence;
+  }
+  
+  public String getName() {
+    return name;
+  }
+  
+  public String getHostname() {
+    return hostname;
+  }
+  
+  public long getExpirationTimeMillis() {
+    return expirationTimeMillis;
+  }
+  
+  public long getFence() {
+    return fence;
+  }
+  
+  public boolean isExpired(final long nowMillis) {
+    return expirationTimeMillis < nowMillis;
+  }
+  
+  public boolean isHeldBy(final String hostname) {
+    return this.hostname.equalsIgnoreCase(hostname);
+  }
+  
+  @Override
+  public String toString() {
+    return "hostname:" + hostname + " fence:" + fence + " expires in " + ((expirationTimeMillis - System.currentTimeMillis()) / 1000) + " seconds";
+  }
+}
@@ -0,0 +1,90 @@
+package com.pelzer.util.daemon.lease;
+
+import java.io.Serializable;
+
+/**
+ * What the DaemonServer hands back when a lease is registered or renewed. The
+ * validity is sent as a duration rather than a point in time, so the client can
+ * work out its own expiry against its own clock without caring about skew
+ * between the two hosts.
+ */
+public class LeaseGrant implements Serializable {
+  public static final LeaseGrant DENIED = new LeaseGrant(false, -1, 0, -1);
+  
+  private final boolean          granted;
+  private final long             fence;
+  private final long             remainingMillis;
+  private final int              slot;
+  private final long             waitedMillis;
+  
+  public LeaseGrant(final boolean granted, final long fence, final long remainingMillis, final int slot) {
+    this(granted, fence, remainingMillis, slot, 0);
+  }
+  
+  public LeaseGrant(final boolean granted, final long fence, final long remainingMillis, final int slot, final long waitedMillis) {
+    this.granted = granted;
+    this.fence = fence;
+    this.remainingMillis = remainingMillis;
+    this.slot = slot;
+    this.waitedMillis = waitedMillis;
+  }
+  
+  /** @return a grant for the given lease, or {@link #DENIED} if it is null. */
+  public static LeaseGrant forLease(final Lease lease) {
+    return forLease(lease, -1);
+  }
+  
+  /**
+   * @return a grant for the given permit of a counted lease, or
+   *         {@link #DENIED} if the lease is null.
+   */
+  public static LeaseGrant forLease(final Lease lease, final int slot) {
+    return forLease(lease, slot, 0);
+  }
+  
+  /**
+   * @param waitedMillis
+   *          how long the server held the request before granting it, measured
+   *          up to the same moment as the remaining time.
+   * @return a grant for a lease the request waited in line for, or
+   *         {@link #DENIED} if the lease is null.
+   */
+  public static LeaseGrant forLease(final Lease lease, final int slot, final long waitedMillis) {
+    if (lease == null)
+      return DENIED;
+    return new LeaseGrant(true, lease.getFence(), lease.getExpirationTimeMillis() - System.currentTimeMillis(), slot, waitedMillis);
+  }
+  
+  public boolean isGranted() {
+    return granted;
+  }
+  
+  /**
+   * @return the fencing token for this ownership of the name, which goes up
+   *         every time the name changes hands. Pass it along with any work done
+   *         under the lease so stale owners can be told apart.
+   */
+  public long getFence() {
+    return fence;
+  }
+  
+  /** @return how long the lease was good for when the server sent this. */
+  public long getRemainingMillis() {
+    return remainingMillis;
+  }
+  
+  /**
+   * @return how long the server held the request before granting it. The
+   *         request's start plus this is no later than the moment
+   *         {@link #getRemainingMillis()} was measured, whatever the trips
+   *         either way took.
+   */
+  public long getWaitedMillis() {
+    return waitedMillis;
+  }
+  
+  /** @return which permit of a counted lease was granted, -1 for an exclusive lease. */
+  public int getSlot() {
+    return slot;
+  }
+}
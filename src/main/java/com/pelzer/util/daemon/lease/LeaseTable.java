@@ -0,0 +1,385 @@
+package com.pelzer.util.daemon.lease;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.pelzer.util.Logging;
+
+/**
+ * Concurrent table of named, expiring leases. Every operation is a
+ * compare-and-swap on a single entry of a lock-striped
+ * {@link ConcurrentHashMap}, so acquire, renew and free are atomic per name and
+ * never contend on a global lock. An expired lease counts as free the moment it
+ * expires; the {@link TimingWheel} only exists to cull expired entries from
+ * memory without scanning the whole table.
+ */
+public class LeaseTable {
+  private static Logging.Logger                  log          = Logging.getLogger(LeaseTable.class);
+  private final long                             leaseMillis;
+  private final long                             tickMillis;
+  private final ConcurrentMap<String, Lease>     leases       = new ConcurrentHashMap<String, Lease>(256, 0.75f, 64);
+  private final TimingWheel<Lease>               expiryWheel;
+  private final CullHandler                      cullHandler  = new CullHandler();
+  /**
+   * Seeded from the clock so that fences keep increasing across a server
+   * restart, unless more than a thousand leases a millisecond were granted.
+   */
+  private final AtomicLong                       fenceCounter = new AtomicLong(System.currentTimeMillis() * 1000);
+  /** Stores <name, waiters> for names that somebody is blocked on. */
+  private final ConcurrentMap<String, WaitQueue> waitQueues   = new ConcurrentHashMap<String, WaitQueue>();
+  private volatile Listener                      listener     = null;
+  
+  /** Uses a one second tick for expiry. */
+  public LeaseTable(final long leaseMillis) {
+    this(leaseMillis, 1000);
+  }
+  
+  public LeaseTable(final long leaseMillis, final long tickMillis) {
+    this.leaseMillis = leaseMillis;
+    this.tickMillis = tickMillis;
+    // Enough buckets that a freshly granted lease lands within one revolution
+    expiryWheel = new TimingWheel<Lease>(tickMillis, (int) (leaseMillis / tickMillis) * 2 + 1);
+  }
+  
+  /**
+   * Grants the name to the host if nobody holds it, or the current holder's
+   * lease has expired.
+   * 
+   * Doesn't jump the queue: if anybody is blocked in
+   * {@link #acquire(String, String, long)} for the name, this is denied.
+   * 
+   * @return the new lease, or null if somebody else holds the name.
+   */
+  public Lease acquire(final String name, final String hostname) {
+    final long now = cull();
+    final WaitQueue queue = waitQueues.get(name);
+    if (queue != null && queue.hasWaiters()) {
+      // Make sure the name isn't sitting idle while they wait
+      handOff(name);
+      return null;
+    }
+    final Lease lease = new Lease(name, hostname, now + leaseMillis, fenceCounter.incrementAndGet());
+    while (true) {
+      final Lease existing = leases.putIfAbsent(name, lease);
+      if (existing == null) {
+        granted(lease);
+        return lease;
+      }
+      if (!existing.isExpired(now))
+        return null;
+      if (leases.replace(name, existing, lease)) {
+        granted(lease);
+        return lease;
+      }
+      // Lost a race with another caller, look again
+    }
+  }
+  
+  /**
+   * Takes one of a fixed number of permits on the name. Permit i is just the
+   * lease on {@link #slotName(String, int)}, so counted leases are renewed,
+   * freed and expired exactly like exclusive ones. The lowest free slot is
+   * handed out, which makes the slot usable as a partition index. Every caller
+   * is expected to agree on the number of permits.
+   * 
+   * @return the slot index, or -1 if every permit is taken.
+   */
+  public int acquireSlot(final String name, final int permits, final String hostname) {
+    for (int slot = 0; slot < permits; slot++) {
+      if (acquire(slotName(name, slot), hostname) != null)
+        return slot;
+    }
+    return -1;
+  }
+  
+  /** @return the name of the lease that backs the given permit of a counted lease. */
+  public static String slotName(final String name, final int slot) {
+    return name + "#" + slot;
+  }
+  
+  /**
+   * @return the pool a permit's lease belongs to, undoing
+   *         {@link #slotName(String, int)}, or the name itself if it isn't a
+   *         permit.
+   */
+  public static String poolName(final String name) {
+    final int hash = name.lastIndexOf('#');
+    if (hash < 0 || hash == name.length() - 1)
+      return name;
+    for (int i = hash + 1; i < name.length(); i++) {
+      if (!Character.isDigit(name.charAt(i)))
+        return name;
+    }
+    return name.substring(0, hash);
+  }
+  
+  /**
+   * Blocks until the name is granted to the host or maxWaitMillis passes.
+   * Waiters are granted the name in the order they arrived, the moment it is
+   * freed or the current lease expires.
+   * 
+   * @return the new lease, or null on timeout.
+   */
+  public Lease acquire(final String name, final String hostname, final long maxWaitMillis) {
+    final Waiter waiter = new Waiter(hostname);
+    WaitQueue queue;
+    while (true) {
+      queue = waitQueues.get(name);
+      if (queue == null) {
+        final WaitQueue newQueue = new WaitQueue();
+        queue = waitQueues.putIfAbsent(name, newQueue);
+        if (queue == null) {
+          queue = newQueue;
+        }
+      }
+      if (queue.add(waiter))
+        break;
+      // The queue was retired while we were looking it up, try again
+    }
+    
+    final long deadline = System.currentTimeMillis() + maxWaitMillis;
+    try {
+      long remaining = maxWaitMillis;
+      while (remaining > 0) {
+        handOff(name);
+        if (waiter.await(Math.min(remaining, tickMillis)) != null)
+          break;
+        // Lets the wheel notice an expiry and hand the name on
+        cull();
+        remaining = deadline - System.currentTimeMillis();
+      }
+    } catch (final InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (queue.leave(waiter)) {
+        waitQueues.remove(name, queue);
+      }
+    }
+    return waiter.lease;
+  }
+  
+  /**
+   * If nobody holds a live lease on the name, grants it to whoever has been
+   * waiting longest.
+   */
+  private void handOff(final String name) {
+    final WaitQueue queue = waitQueues.get(name);
+    if (queue == null)
+      return;
+    synchronized (queue) {
+      final Waiter head = queue.waiters.peek();
+      if (head == null)
+        return;
+      final long now = System.currentTimeMillis();
+      final Lease existing = leases.get(name);
+      if (existing != null && !existing.isExpired(now))
+        return;
+      final Lease lease = new Lease(name, head.hostname, now + leaseMillis, fenceCounter.incrementAndGet());
+      if (existing == null ? leases.putIfAbsent(name, lease) == null : leases.replace(name, existing, lease)) {
+        granted(lease);
+        queue.waiters.poll();
+        head.grant(lease);
+      }
+    }
+  }
+  
+  /**
+   * Extends the host's lease on the name. If nobody holds the name (the server
+   * may have forgotten it, or it expired), it is granted to the host instead,
+   * the same way {@link #acquire(String, String)} would.
+   * 
+   * @return the renewed lease, or null if somebody else holds the name.
+   */
+  public Lease renew(final String name, final String hostname) {
+    final long now = cull();
+    while (true) {
+      final Lease existing = leases.get(name);
+      if (existing == null || existing.isExpired(now))
+        return acquire(name, hostname);
+      if (!existing.isHeldBy(hostname))
+        return null;
+      final Lease renewed = new Lease(name, existing.getHostname(), now + leaseMillis, existing.getFence());
+      if (leases.replace(name, existing, renewed)) {
+        granted(renewed);
+        return renewed;
+      }
+    }
+  }
+  
+  /**
+   * Frees the name, but only if the given host holds it.
+   * 
+   * @return true if the lease was freed.
+   */
+  public boolean free(final String name, final String hostname) {
+    cull();
+    final Lease existing = leases.get(name);
+    if (existing == null || !existing.isHeldBy(hostname))
+      return false;
+    if (!leases.remove(name, existing))
+      return false;
+    removed(existing);
+    handOff(name);
+    return true;
+  }
+  
+  /** @return the current lease on the name, or null if there isn't a live one. */
+  public Lease getLease(final String name) {
+    final Lease lease = leases.get(name);
+    if (lease == null || lease.isExpired(System.currentTimeMillis()))
+      return null;
+    return lease;
+  }
+  
+  /** @return every live lease in the table. */
+  public List<Lease> getLeases() {
+    final long now = System.currentTimeMillis();
+    final List<Lease> live = new ArrayList<Lease>(leases.size());
+    for (final Lease lease : leases.values()) {
+      if (!lease.isExpired(now)) {
+        live.add(lease);
+      }
+    }
+    return live;
+  }
+  
+  /**
+   * Puts back a lease remembered from before a restart, as is. Raises the fence
+   * counter past its fence, so fences keep increasing. Does nothing if the
+   * lease has already expired. The listener isn't told.
+   */
+  public void restore(final Lease lease) {
+    if (lease.isExpired(System.currentTimeMillis()))
+      return;
+    long fence;
+    while ((fence = fenceCounter.get()) < lease.getFence()) {
+      fenceCounter.compareAndSet(fence, lease.getFence());
+    }
+    leases.put(lease.getName(), lease);
+    expiryWheel.schedule(lease, lease.getExpirationTimeMillis());
+  }
+  
+  /**
+   * Drops every lease, as when swapping the table's contents for state
+   * followed from elsewhere. The fence counter is left where it is, so fences
+   * keep increasing. The listener isn't told.
+   */
+  public void clear() {
+    leases.clear();
+  }
+  
+  /** Sets the listener told about every lease granted, renewed or removed. */
+  public void setListener(final Listener listener) {
+    this.listener = listener;
+  }
+  
+  /** @return the number of leases in the table, possibly including a few expired ones that haven't been culled yet. */
+  public int size() {
+    return leases.size();
+  }
+  
+  /** Advances the expiry wheel, returns the current time. */
+  private long cull() {
+    final long now = System.currentTimeMillis();
+    expiryWheel.advance(now, cullHandler);
+    return now;
+  }
+  
+  /** Schedules the lease for expiry and tells the listener. */
+  private void granted(final Lease lease) {
+    expiryWheel.schedule(lease, lease.getExpirationTimeMillis());
+    final Listener listener = this.listener;
+    if (listener != null) {
+      listener.leaseGranted(lease);
+    }
+  }
+  
+  private void removed(final Lease lease) {
+    final Listener listener = this.listener;
+    if (listener != null) {
+      listener.leaseRemoved(lease);
+    }
+  }
+  
+  /**
+   * Told about every change to the table, after it has happened. Called on the
+   * thread that made the change, so it needs to be quick.
+   */
+  public interface Listener {
+    /** A lease was granted, handed off or renewed. */
+    void leaseGranted(Lease lease);
+    
+    /** A lease was freed or culled after it expired. */
+    void leaseRemoved(Lease lease);
+  }
+  
+  /** Drops leases from the table once the wheel says they're due, unless they've been renewed since. */
+  private class CullHandler implements TimingWheel.ExpiryHandler<Lease> {
+    public void expired(final Lease lease) {
+      if (leases.remove(lease.getName(), lease)) {
+        log.info("Lease (" + lease.getName() + "|" + lease.toString() + ") has expired. Culling.");
+        removed(lease);
+        handOff(lease.getName());
+      }
+    }
+  }
+  
+  /**
+   * FIFO of hosts blocked on one name. Once it empties out it is retired and
+   * dropped from {@link LeaseTable#waitQueues}, and a new one is made for the
+   * next waiter.
+   */
+  private static class WaitQueue {
+    private final Queue<Waiter> waiters = new LinkedList<Waiter>();
+    private boolean             retired = false;
+    
+    /** @return false if the queue has been retired and can't take waiters. */
+    public synchronized boolean add(final Waiter waiter) {
+      if (retired)
+        return false;
+      waiters.add(waiter);
+      return true;
+    }
+    
+    /** @return true if the queue is now empty and has been retired. */
+    public synchronized boolean leave(final Waiter waiter) {
+      waiters.remove(waiter);
+      if (waiters.isEmpty()) {
+        retired = true;
+      }
+      return retired;
+    }
+    
+    public synchronized boolean hasWaiters() {
+      return !waiters.isEmpty();
+    }
+  }
+  
+  /** A single blocked call, waiting to be handed a lease. */
+  private static class Waiter {
+    private final String hostname;
+    private Lease        lease = null;
+    
+    public Waiter(final String hostname) {
+      this.hostname = hostname;
+    }
+    
+    public synchronized void grant(final Lease lease) {
+      this.lease = lease;
+      notifyAll();
+    }
+    
+    /** @return the lease if it has been granted, otherwise null once the wait is over. */
+    public synchronized Lease await(final long maxWaitMillis) throws InterruptedException {
+      if (lease == null) {
+        wait(maxWaitMillis);
+      }
+      return lease;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package com.pelzer.util.daemon.lease;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hashed timing wheel. Items are dropped into the bucket for the tick their
+ * deadline falls in, and {@link #advance(long, ExpiryHandler)} walks the
+ * buckets between the last tick it visited and now, handing every item that is
+ * due to the handler. Scheduling and expiring are both O(1) per item, no matter
+ * how many items are scheduled. Items with deadlines more than one revolution
+ * out are simply left in their bucket until a later pass.
+ * <p>
+ * Cancellation is lazy: there is none. The handler is expected to check that
+ * the item it is given is still current and ignore it otherwise.
+ */
+public class TimingWheel<T> {
+  private final long              tickMillis;
+  private final Queue<Entry<T>>[] buckets;
+  private final int               mask;
+  private final ReentrantLock     advanceLock = new ReentrantLock();
+  private volatile long           currentTick;
+  
+  /**
+   * @param bucketCount
+   *          rounded up to a power of two.
+   */
+  @SuppressWarnings("unchecked")
+  public TimingWheel(final long tickMillis, final int bucketCount) {
+    this.tickMillis = tickMillis;
+    int size = 1;
+    while (size < bucketCount) {
+      size <<= 1;
+    }
+    buckets = new Queue[size];
+    for (int i = 0; i < size; i++) {
+      buckets[i] = new ConcurrentLinkedQueue<Entry<T>>();
+    }
+    mask = size - 1;
+    currentTick = System.currentTimeMillis() / tickMillis;
+  }
+  
+  /** Schedules the item to be handed to the handler once the deadline passes. */
+  public void schedule(final T item, final long deadlineMillis) {
+    long tick = deadlineMillis / tickMillis;
+    if (tick < currentTick) {
+      tick = currentTick;
+    }
+    buckets[(int) (tick & mask)].add(new Entry<T>(item, deadlineMillis));
+  }
+  
+  /**
+   * Hands every item whose deadline is at or before nowMillis to the handler.
+   * If another thread is already advancing the wheel this returns immediately,
+   * so it is cheap to call from every operation.
+   */
+  public void advance(final long nowMillis, final ExpiryHandler<T> handler) {
+    if (!advanceLock.tryLock())
+      return;
+    try {
+      final long nowTick = nowMillis / tickMillis;
+      // One full revolution visits every bucket, no point going further
+      final long firstTick = Math.max(currentTick, nowTick - mask);
+      for (long tick = firstTick; tick <= nowTick; tick++) {
+        expireBucket(buckets[(int) (tick & mask)], nowMillis, handler);
+      }
+      currentTick = nowTick;
+    } finally {
+      advanceLock.unlock();
+    }
+  }
+  
+  private void expireBucket(final Queue<Entry<T>> bucket, final long nowMillis, final ExpiryHandler<T> handler) {
+    final List<Entry<T>> entries = new ArrayList<Entry<T>>();
+    Entry<T> entry;
+    while ((entry = bucket.poll()) != null) {
+      entries.add(entry);
+    }
+    for (final Entry<T> polled : entries) {
+      if (polled.deadlineMillis <= nowMillis) {
+        handler.expired(polled.item);
+      } else {
+        // Due on a later revolution
+        bucket.add(polled);
+      }
+    }
+  }
+  
+  /** Told about items whose deadline has passed. */
+  public interface ExpiryHandler<T> {
+    void expired(T item);
+  }
+  
+  private static class Entry<T> {
+    private final T    item;
+    private final long deadlineMillis;
+    
+    public Entry(final T item, final long deadlineMillis) {
+      this.item = item;
+      this.deadlineMillis = deadlineMillis;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package com.pelzer.util.daemon.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size log-linear histogram of latencies in nanoseconds. Each power of
+ * two is split into {@link #SUB_BUCKETS} equal buckets, so any recorded value
+ * is known to within about 6%, across the whole range of a long, in under 8KB.
+ * Recording is a few shifts and an atomic increment, with no locks and no
+ * allocation, so it's cheap enough to leave on every call. Reads aren't
+ * atomic with respect to concurrent recording, which is fine for monitoring.
+ */
+public class LatencyHistogram {
+  private static final int      SUB_BUCKET_BITS = 4;
+  private static final int      SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+  private static final int      BUCKETS         = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+  
+  private final AtomicLongArray counts          = new AtomicLongArray(BUCKETS);
+  private final AtomicLong      count           = new AtomicLong();
+  private final AtomicLong      totalNanos      = new AtomicLong();
+  private final AtomicLong      maxNanos        = new AtomicLong();
+  
+  public void record(final long nanos) {
+    final long value = Math.max(0, nanos);
+    counts.incrementAndGet(bucketOf(value));
+    count.incrementAndGet();
+    totalNanos.addAndGet(value);
+    long max;
+    while (value > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, value)) {
+      // Lost a race with another recorder, try again
+    }
+  }
+  
+  public long getCount() {
+    return count.get();
+  }
+  
+  public long getTotalNanos() {
+    return totalNanos.get();
+  }
+  
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+  
+  /**
+   * @param quantile
+   *          between 0 and 1, such as 0.99
+   * @return the value at the given quantile, as the top of the bucket it falls
+   *         in, or 0 if nothing has been recorded.
+   */
+  public long getValueAtQuantile(final double quantile) {
+    final double quantiles[] = { quantile };
+    final long values[] = new long[1];
+    getValuesAtQuantiles(quantiles, values);
+    return values[0];
+  }
+  
+  /**
+   * Fills in the value at each of the given quantiles in one pass over the
+   * buckets, without allocating anything, for callers that are asked often.
+   * 
+   * @param quantiles
+   *          in ascending order, each between 0 and 1
+   * @param values
+   *          at least as long as quantiles, filled in as
+   *          {@link #getValueAtQuantile(double)} would.
+   */
+  public void getValuesAtQuantiles(final double quantiles[], final long values[]) {
+    final long total = getCount();
+    final long max = getMaxNanos();
+    int next = 0;
+    if (total > 0) {
+      long seen = 0;
+      for (int i = 0; i < BUCKETS && next < quantiles.length; i++) {
+        seen += counts.get(i);
+        while (next < quantiles.length && seen >= Math.max(1, (long) Math.ceil(quantiles[next] * total))) {
+          values[next++] = Math.min(upperBoundOf(i), max);
+        }
+      }
+    }
+    // Nothing recorded, or the buckets are behind the count while recording
+    // carries on
+    while (next < quantiles.length) {
+      values[next++] = total > 0 ? max : 0;
+    }
+  }
+  
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    totalNanos.set(0);
+    maxNanos.set(0);
+  }
+  
+  static int bucketOf(final long value) {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+    final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+  }
+  
+  static long upperBoundOf(final int bucket) {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+    final int shift = bucket / SUB_BUCKETS - 1;
+    final long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,59 @@
+package com.pelzer.util.daemon.metrics;
+
+/** Latency of one method, backed by a {@link LatencyHistogram}. */
+public class LatencyStats implements LatencyStatsMBean {
+  private static final double    NANOS_PER_MILLI = 1000000d;
+  private final String           group;
+  private final String           name;
+  private final LatencyHistogram histogram       = new LatencyHistogram();
+  
+  public LatencyStats(final String group, final String name) {
+    this.group = group;
+    this.name = name;
+  }
+  
+  public String getGroup() {
+    return group;
+  }
+  
+  public String getName() {
+    return name;
+  }
+  
+  public LatencyHistogram getHistogram() {
+    return histogram;
+  }
+  
+  public void record(final long nanos) {
+    histogram.record(nanos);
+  }
+  
+  public long getCount() {
+    return histogram.getCount();
+  }
+  
+  public double getMeanMillis() {
+    final long count = histogram.getCount();
+    return count == 0 ? 0 : histogram.getTotalNanos() / NANOS_PER_MILLI / count;
+  }
+  
+  public double getP50Millis() {
+    return histogram.getValueAtQuantile(0.5) / NANOS_PER_MILLI;
+  }
+  
+  public double getP99Millis() {
+    return histogram.getValueAtQuantile(0.99) / NANOS_PER_MILLI;
+  }
+  
+  public double getP999Millis() {
+    return histogram.getValueAtQuantile(0.999) / NANOS_PER_MILLI;
+  }
+  
+  public double getMaxMillis() {
+    return histogram.getMaxNanos() / NANOS_PER_MILLI;
+  }
+  
+  public void reset() {
+    histogram.reset();
+  }
+}
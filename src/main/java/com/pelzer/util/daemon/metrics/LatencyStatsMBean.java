@@ -0,0 +1,23 @@
+package com.pelzer.util.daemon.metrics;
+
+/** JMX view of the latency of one method. */
+public interface LatencyStatsMBean {
+  String getGroup();
+  
+  String getName();
+  
+  long getCount();
+  
+  double getMeanMillis();
+  
+  double getP50Millis();
+  
+  double getP99Millis();
+  
+  double getP999Millis();
+  
+  double getMaxMillis();
+  
+  /** Starts counting again from nothing. */
+  void reset();
+}
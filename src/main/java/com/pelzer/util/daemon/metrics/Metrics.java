@@ -0,0 +1,103 @@
+package com.pelzer.util.daemon.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.ObjectName;
+
+import com.pelzer.util.Logging;
+
+/**
+ * Per-method latency tracking. Every {@link LatencyStats} is registered with
+ * the platform MBean server as
+ * <code>com.pelzer.util.daemon:type=Latency,group=&lt;group&gt;,name=&lt;method&gt;</code>
+ * the first time it's asked for.
+ */
+public class Metrics {
+  private static Logging.Logger                            log     = Logging.getLogger(Metrics.class);
+  /** Stores <group.name, stats> */
+  private static final ConcurrentMap<String, LatencyStats> latency = new ConcurrentHashMap<String, LatencyStats>();
+  
+  /** @return the stats for the named method in the group, creating and registering them if need be. */
+  public static LatencyStats getLatencyStats(final String group, final String name) {
+    final String key = group + "." + name;
+    LatencyStats stats = latency.get(key);
+    if (stats == null) {
+      final LatencyStats newStats = new LatencyStats(group, name);
+      stats = latency.putIfAbsent(key, newStats);
+      if (stats == null) {
+        stats = newStats;
+        register(group, name, stats);
+      }
+    }
+    return stats;
+  }
+  
+  /** @return every stat created so far, keyed by group.name */
+  public static Map<String, LatencyStats> getAllLatencyStats() {
+    return latency;
+  }
+  
+  /** Writes every method's latency as one Prometheus summary. */
+  public static void writeLatencies(final PrometheusWriter out) {
+    out.header("daemon_method_latency_seconds", "summary", "Time taken by each method, by group.");
+    for (final LatencyStats stats : latency.values()) {
+      out.latency("daemon_method_latency_seconds", stats);
+    }
+  }
+  
+  private static void register(final String group, final String name, final LatencyStats stats) {
+    try {
+      final ObjectName objectName = new ObjectName("com.pelzer.util.daemon:type=Latency,group=" + ObjectName.quote(group) + ",name=" + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(stats, objectName);
+    } catch (final Exception ex) {
+      log.error("Couldn't register latency MBean for " + group + "." + name, ex);
+    }
+  }
+  
+  /**
+   * @return an implementation of the interface that passes every call through
+   *         to the target, recording how long it took under the given group.
+   *         Overloaded methods are told apart by their parameter count.
+   */
+  public static <T> T timed(final Class<T> iface, final T target, final String group) {
+    final Map<Method, LatencyStats> statsByMethod = new HashMap<Method, LatencyStats>();
+    final Map<String, Integer> overloads = new HashMap<String, Integer>();
+    for (final Method method : iface.getMethods()) {
+      final Integer seen = overloads.get(method.getName());
+      overloads.put(method.getName(), seen == null ? 1 : seen + 1);
+    }
+    for (final Method method : iface.getMethods()) {
+      final String name = overloads.get(method.getName()) > 1 ? method.getName() + "/" + method.getParameterTypes().length : method.getName();
+      statsByMethod.put(method, getLatencyStats(group, name));
+    }
+    return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] { iface }, new InvocationHandler() {
+      public Object invoke(final Object proxy, final Method method, final Object args[]) throws Throwable {
+        final LatencyStats stats = statsByMethod.get(method);
+        if (stats == null) {
+          // One of Object's methods
+          if (method.getName().equals("equals"))
+            return proxy == args[0];
+          if (method.getName().equals("hashCode"))
+            return System.identityHashCode(proxy);
+          return "Timed[" + target + "]";
+        }
+        final long start = System.nanoTime();
+        try {
+          return method.invoke(target, args);
+        } catch (final InvocationTargetException ex) {
+          throw ex.getCause();
+        } finally {
+          stats.record(System.nanoTime() - start);
+        }
+      }
+    }));
+  }
+}
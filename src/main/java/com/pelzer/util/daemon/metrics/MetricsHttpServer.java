@@ -0,0 +1,77 @@
+package com.pelzer.util.daemon.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import com.pelzer.util.Logging;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a {@link Source}'s metrics in the Prometheus text format at
+ * /metrics, on the JDK's built-in HTTP server. Scrapes are handled one at a
+ * time on the server's own thread, through a single reused
+ * {@link PrometheusWriter}, so they never compete with each other or with the
+ * process they're watching for more than a moment.
+ */
+public class MetricsHttpServer {
+  private static Logging.Logger  log    = Logging.getLogger(MetricsHttpServer.class);
+  private final HttpServer       server;
+  private final Source           source;
+  private final PrometheusWriter writer = new PrometheusWriter();
+  
+  /** Starts listening straight away. Port 0 picks any free port. */
+  public MetricsHttpServer(final int port, final Source source) throws IOException {
+    this.source = source;
+    server = HttpServer.create(new InetSocketAddress(port), 16);
+    server.createContext("/metrics", new HttpHandler() {
+      public void handle(final HttpExchange exchange) throws IOException {
+        try {
+          scrape(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    // No executor, so exchanges run on the server's dispatcher thread
+    server.setExecutor(null);
+    server.start();
+    log.debug("Serving metrics on port " + getPort());
+  }
+  
+  private void scrape(final HttpExchange exchange) throws IOException {
+    if (!"GET".equals(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+    writer.reset();
+    try {
+      source.writeMetrics(writer);
+    } catch (final RuntimeException ex) {
+      log.error("Exception while rendering metrics", ex);
+      exchange.sendResponseHeaders(500, -1);
+      return;
+    }
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+    exchange.sendResponseHeaders(200, writer.length());
+    final OutputStream out = exchange.getResponseBody();
+    writer.writeTo(out);
+    out.flush();
+  }
+  
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+  
+  public void close() {
+    server.stop(0);
+  }
+  
+  /** Whatever has metrics to show. */
+  public interface Source {
+    /** Called once per scrape, on the HTTP server's thread. */
+    void writeMetrics(PrometheusWriter out);
+  }
+}
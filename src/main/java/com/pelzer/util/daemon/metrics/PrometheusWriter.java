@@ -0,0 +1,173 @@
+package com.pelzer.util.daemon.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Builds a page in the Prometheus text exposition format. One writer is reused
+ * for every scrape, and numbers are appended without boxing, so once the
+ * buffers have grown to fit a page, rendering one allocates next to nothing.
+ * Not thread safe.
+ */
+public class PrometheusWriter {
+  private static final double QUANTILES[] = { 0.5, 0.99, 0.999 };
+  private static final String LABELS[]    = { "0.5", "0.99", "0.999" };
+  private final StringBuilder text        = new StringBuilder(4096);
+  private final long          values[]    = new long[QUANTILES.length];
+  private byte                bytes[]     = new byte[4096];
+  
+  /** Empties the page, ready for the next scrape. */
+  public void reset() {
+    text.setLength(0);
+  }
+  
+  /** Writes the HELP and TYPE lines that come before a metric's samples. */
+  public PrometheusWriter header(final String name, final String type, final String help) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    return this;
+  }
+  
+  public PrometheusWriter sample(final String name, final long value) {
+    text.append(name).append(' ').append(value).append('\n');
+    return this;
+  }
+  
+  public PrometheusWriter sample(final String name, final double value) {
+    text.append(name).append(' ');
+    appendDouble(value);
+    text.append('\n');
+    return this;
+  }
+  
+  public PrometheusWriter sample(final String name, final String label, final String labelValue, final long value) {
+    text.append(name).append('{');
+    appendLabel(label, labelValue);
+    text.append("} ").append(value).append('\n');
+    return this;
+  }
+  
+  public PrometheusWriter sample(final String name, final String label, final String labelValue, final double value) {
+    text.append(name).append('{');
+    appendLabel(label, labelValue);
+    text.append("} ");
+    appendDouble(value);
+    text.append('\n');
+    return this;
+  }
+  
+  public PrometheusWriter sample(final String name, final String label1, final String labelValue1, final String label2, final String labelValue2, final long value) {
+    text.append(name).append('{');
+    appendLabel(label1, labelValue1);
+    text.append(',');
+    appendLabel(label2, labelValue2);
+    text.append("} ").append(value).append('\n');
+    return this;
+  }
+  
+  /** Writes a gauge with a single unlabelled sample. */
+  public PrometheusWriter gauge(final String name, final String help, final long value) {
+    return header(name, "gauge", help).sample(name, value);
+  }
+  
+  public PrometheusWriter gauge(final String name, final String help, final double value) {
+    return header(name, "gauge", help).sample(name, value);
+  }
+  
+  /** Writes a counter with a single unlabelled sample. */
+  public PrometheusWriter counter(final String name, final String help, final long value) {
+    return header(name, "counter", help).sample(name, value);
+  }
+  
+  public PrometheusWriter counter(final String name, final String help, final double value) {
+    return header(name, "counter", help).sample(name, value);
+  }
+  
+  /**
+   * Writes the samples of a summary, in seconds, for one method's latency. The
+   * header is up to the caller, since every method shares one.
+   */
+  public PrometheusWriter latency(final String name, final LatencyStats stats) {
+    final LatencyHistogram histogram = stats.getHistogram();
+    histogram.getValuesAtQuantiles(QUANTILES, values);
+    for (int i = 0; i < QUANTILES.length; i++) {
+      text.append(name).append('{');
+      appendLatencyLabels(stats);
+      text.append(',');
+      appendLabel("quantile", LABELS[i]);
+      text.append("} ");
+      appendDouble(values[i] / 1e9);
+      text.append('\n');
+    }
+    text.append(name).append("_sum{");
+    appendLatencyLabels(stats);
+    text.append("} ");
+    appendDouble(histogram.getTotalNanos() / 1e9);
+    text.append('\n');
+    text.append(name).append("_count{");
+    appendLatencyLabels(stats);
+    text.append("} ").append(histogram.getCount()).append('\n');
+    return this;
+  }
+  
+  /** @return the page so far, mostly for tests. */
+  public CharSequence getText() {
+    return text;
+  }
+  
+  /**
+   * Writes the page out as ASCII, through a buffer kept between scrapes.
+   * Anything outside ASCII, which could only come from a label value, is
+   * written as '?'.
+   * 
+   * @return the number of bytes written.
+   */
+  public int writeTo(final OutputStream out) throws IOException {
+    final int length = text.length();
+    if (bytes.length < length) {
+      bytes = new byte[Math.max(length, bytes.length * 2)];
+    }
+    for (int i = 0; i < length; i++) {
+      final char c = text.charAt(i);
+      bytes[i] = c < 128 ? (byte) c : (byte) '?';
+    }
+    out.write(bytes, 0, length);
+    return length;
+  }
+  
+  /** @return how many bytes {@link #writeTo(OutputStream)} will write. */
+  public int length() {
+    return text.length();
+  }
+  
+  private void appendLatencyLabels(final LatencyStats stats) {
+    appendLabel("group", stats.getGroup());
+    text.append(',');
+    appendLabel("method", stats.getName());
+  }
+  
+  private void appendLabel(final String label, final String value) {
+    text.append(label).append("=\"");
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        text.append('\\').append(c);
+      } else if (c == '\n') {
+        text.append("\\n");
+      } else {
+        text.append(c);
+      }
+    }
+    text.append('"');
+  }
+  
+  private void appendDouble(final double value) {
+    if (Double.isNaN(value)) {
+      text.append("NaN");
+    } else if (Double.isInfinite(value)) {
+      text.append(value > 0 ? "+Inf" : "-Inf");
+    } else {
+      text.append(value);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package com.pelzer.util.daemon.process;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Bounded ring buffer holding the tail of one output stream of a process.
+ * Bytes are addressed by their offset in the whole stream, so readers keep
+ * their own cursor and any number of them can read independently. When the
+ * buffer is full the oldest bytes are overwritten rather than blocking the
+ * process, so a reader that falls too far behind skips ahead.
+ */
+public class OutputBuffer {
+  private final byte ring[];
+  /** Total number of bytes ever written, which is the offset of the next one. */
+  private long       written = 0;
+  private boolean    closed  = false;
+  
+  public OutputBuffer(final int capacity) {
+    ring = new byte[capacity];
+  }
+  
+  /**
+   * Starts a thread that copies the stream into a new buffer until the stream
+   * ends or fails, then closes the buffer.
+   */
+  public static OutputBuffer pump(final InputStream in, final int capacity, final String name) {
+    final OutputBuffer buffer = new OutputBuffer(capacity);
+    final Thread pump = new Thread("OutputPump[" + name + "]") {
+      @Override
+      public void run() {
+        final byte chunk[] = new byte[8192];
+        try {
+          int read;
+          while ((read = in.read(chunk)) >= 0) {
+            buffer.write(chunk, 0, read);
+          }
+        } catch (final IOException ignored) {
+          // The stream was closed under us when the process was destroyed
+        } finally {
+          buffer.close();
+        }
+      }
+    };
+    pump.setDaemon(true);
+    pump.start();
+    return buffer;
+  }
+  
+  public synchronized void write(final byte bytes[], final int offset, final int length) {
+    written += length;
+    // Only the last ring.length bytes would survive anyway
+    final int kept = Math.min(length, ring.length);
+    final int from = offset + length - kept;
+    final int start = (int) ((written - kept) % ring.length);
+    final int firstPart = Math.min(kept, ring.length - start);
+    System.arraycopy(bytes, from, ring, start, firstPart);
+    System.arraycopy(bytes, from + firstPart, ring, 0, kept - firstPart);
+    notifyAll();
+  }
+  
+  /** @return the offset just past the last byte written so far. */
+  public synchronized long getEnd() {
+    return written;
+  }
+  
+  /** Marks the end of the stream, waking every blocked reader. */
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+  
+  /**
+   * Reads up to maxBytes from the given offset, waiting up to waitMillis for
+   * bytes to arrive if there are none yet. Returns as soon as there is
+   * anything to return.
+   * 
+   * @return the bytes read, possibly none if the wait ran out.
+   */
+  public synchronized ProcessOutput read(final long offset, final int maxBytes, final long waitMillis) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + waitMillis;
+    long remaining = waitMillis;
+    while (offset >= written && !closed && remaining > 0) {
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+    final long from = Math.max(Math.min(offset, written), Math.max(0, written - ring.length));
+    final int length = (int) Math.min(maxBytes, written - from);
+    final byte data[] = new byte[length];
+    final int start = (int) (from % ring.length);
+    final int firstPart = Math.min(length, ring.length - start);
+    System.arraycopy(ring, start, data, 0, firstPart);
+    System.arraycopy(ring, 0, data, firstPart, length - firstPart);
+    return new ProcessOutput(from, data, closed && from + length == written);
+  }
+}
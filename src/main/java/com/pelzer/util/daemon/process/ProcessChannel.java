@@ -0,0 +1,6 @@
+package com.pelzer.util.daemon.process;
+
+/** The output streams of a remote process that can be read. */
+public enum ProcessChannel {
+  STDOUT, STDERR
+}
@@ -0,0 +1,54 @@
+package com.pelzer.util.daemon.process;
+
+import java.io.Serializable;
+
+/**
+ * A chunk of a remote process's output, read from a cursor. Pass
+ * {@link #getNextOffset()} back as the offset of the next read. If the reader
+ * fell so far behind that the requested bytes were overwritten, the chunk
+ * starts later than requested; {@link #getOffset()} says where.
+ */
+public class ProcessOutput implements Serializable {
+  private long    offset;
+  private byte[]  data;
+  private boolean end;
+  
+  public ProcessOutput() {
+  }
+  
+  public ProcessOutput(final long offset, final byte data[], final boolean end) {
+    this.offset = offset;
+    this.data = data;
+    this.end = end;
+  }
+  
+  /** @return the offset in the stream of the first byte of {@link #getData()} */
+  public long getOffset() {
+    return offset;
+  }
+  
+  public void setOffset(final long offset) {
+    this.offset = offset;
+  }
+  
+  public byte[] getData() {
+    return data;
+  }
+  
+  public void setData(final byte[] data) {
+    this.data = data;
+  }
+  
+  public long getNextOffset() {
+    return offset + data.length;
+  }
+  
+  /** @return true if the stream has closed and this chunk ends it. */
+  public boolean isEnd() {
+    return end;
+  }
+  
+  public void setEnd(final boolean end) {
+    this.end = end;
+  }
+}
@@ -0,0 +1,110 @@
+package com.pelzer.util.daemon.process;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.pelzer.util.daemon.DaemonConstants;
+
+/**
+ * One process started on behalf of a remote caller. Its stdout and stderr are
+ * pumped into {@link OutputBuffer}s on threads of their own from the start, so
+ * output is never lost to a full pipe and readers can block on the buffers
+ * instead of polling.
+ */
+public class ProcessSession {
+  private final long         id;
+  private final Process      proc;
+  private final InputStream  inStream;
+  private final InputStream  errStream;
+  private final OutputStream outStream;
+  private final OutputBuffer inBuffer;
+  private final OutputBuffer errBuffer;
+  /** Cursors for the non-blocking reads. */
+  private long               inOffset       = 0;
+  private long               errOffset      = 0;
+  private volatile long      lastAccessTime = System.currentTimeMillis();
+  
+  public ProcessSession(final long id, final Process proc) {
+    this.id = id;
+    this.proc = proc;
+    inStream = proc.getInputStream();
+    errStream = proc.getErrorStream();
+    outStream = proc.getOutputStream();
+    inBuffer = OutputBuffer.pump(inStream, DaemonConstants.PROCESS_BUFFER_BYTES, id + ":stdout");
+    errBuffer = OutputBuffer.pump(errStream, DaemonConstants.PROCESS_BUFFER_BYTES, id + ":stderr");
+  }
+  
+  public long getId() {
+    return id;
+  }
+  
+  /** @return when a caller last used this session. */
+  public long getLastAccessTime() {
+    return lastAccessTime;
+  }
+  
+  public void touch() {
+    lastAccessTime = System.currentTimeMillis();
+  }
+  
+  /**
+   * Waits at most half of {@link DaemonConstants#PROCESS_SESSION_IDLE_MILLIS},
+   * however long the caller asks for, so a session isn't reaped as idle while
+   * a read is parked on it.
+   * 
+   * @see OutputBuffer#read(long, int, long)
+   */
+  public ProcessOutput read(final ProcessChannel channel, final long offset, final int maxBytes, final long waitMillis) throws InterruptedException {
+    final OutputBuffer buffer = channel == ProcessChannel.STDERR ? errBuffer : inBuffer;
+    touch();
+    try {
+      return buffer.read(offset, maxBytes, Math.min(waitMillis, DaemonConstants.PROCESS_SESSION_IDLE_MILLIS / 2));
+    } finally {
+      // A long blocking read counts as activity right up to the end
+      touch();
+    }
+  }
+  
+  /** @return whatever stdout has produced since the last call, without waiting. */
+  public synchronized byte[] readIn() throws InterruptedException {
+    final ProcessOutput output = read(ProcessChannel.STDOUT, inOffset, Integer.MAX_VALUE, 0);
+    inOffset = output.getNextOffset();
+    return output.getData();
+  }
+  
+  /** @return whatever stderr has produced since the last call, without waiting. */
+  public synchronized byte[] readErr() throws InterruptedException {
+    final ProcessOutput output = read(ProcessChannel.STDERR, errOffset, Integer.MAX_VALUE, 0);
+    errOffset = output.getNextOffset();
+    return output.getData();
+  }
+  
+  public void write(final byte write[]) throws IOException {
+    touch();
+    synchronized (outStream) {
+      outStream.write(write);
+      outStream.flush();
+    }
+  }
+  
+  public boolean isAlive() {
+    try {
+      proc.exitValue();
+      return false; // If we got here, the process has exited
+    } catch (final IllegalThreadStateException ignored) {
+    }
+    return true;
+  }
+  
+  /** Kills the process. Output already buffered can still be read. */
+  public void close() {
+    proc.destroy();
+    try {
+      inStream.close();
+      outStream.close();
+      errStream.close();
+    } catch (final IOException ignored) {
+    }
+  }
+}
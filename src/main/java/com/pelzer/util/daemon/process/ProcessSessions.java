@@ -0,0 +1,124 @@
+package com.pelzer.util.daemon.process;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.pelzer.util.KillableThread;
+import com.pelzer.util.Logging;
+import com.pelzer.util.daemon.DaemonConstants;
+
+/**
+ * Every {@link ProcessSession} open on a server. At most
+ * {@link DaemonConstants#PROCESS_SESSION_LIMIT} sessions run at once, and a
+ * session nobody has touched for
+ * {@link DaemonConstants#PROCESS_SESSION_IDLE_MILLIS} is destroyed.
+ */
+public class ProcessSessions {
+  private static Logging.Logger                     log          = Logging.getLogger(ProcessSessions.class);
+  /** Stores <sessionId, session> */
+  private final ConcurrentMap<Long, ProcessSession> sessions     = new ConcurrentHashMap<Long, ProcessSession>();
+  /** Seeded from the clock so ids aren't reused across a restart. */
+  private final AtomicLong                          nextId       = new AtomicLong(System.currentTimeMillis());
+  /** Sessions running or being started. A slot is taken before the exec, so racing starts can't pass the limit. */
+  private final AtomicInteger                       slotsTaken   = new AtomicInteger(0);
+  private ReaperThread                              reaperThread = null;
+  
+  /**
+   * Starts the command in a new session.
+   * 
+   * @return the new session's id.
+   * @throws IOException
+   *           if the limit on sessions has been reached, or the command
+   *           couldn't be started.
+   */
+  public long start(final String command[]) throws IOException {
+    reapIdleSessions();
+    takeSlot();
+    final Process proc;
+    try {
+      proc = Runtime.getRuntime().exec(command);
+    } catch (final IOException ex) {
+      slotsTaken.decrementAndGet();
+      throw ex;
+    }
+    final ProcessSession session = new ProcessSession(nextId.incrementAndGet(), proc);
+    sessions.put(session.getId(), session);
+    startReaperThread();
+    log.debug("Started process session " + session.getId() + ": " + command[0]);
+    return session.getId();
+  }
+  
+  /**
+   * @return the session, after marking it as used.
+   * @throws IOException
+   *           if there's no such session, or it has been destroyed.
+   */
+  public ProcessSession get(final long sessionId) throws IOException {
+    final ProcessSession session = sessions.get(sessionId);
+    if (session == null)
+      throw new IOException("No process session " + sessionId + ", it may have been idle too long.");
+    session.touch();
+    return session;
+  }
+  
+  /** Kills the session's process and forgets the session. Does nothing if there's no such session. */
+  public void destroy(final long sessionId) {
+    final ProcessSession session = sessions.remove(sessionId);
+    if (session != null) {
+      log.debug("Destroying process session " + sessionId);
+      session.close();
+      slotsTaken.decrementAndGet();
+    }
+  }
+  
+  public int size() {
+    return sessions.size();
+  }
+  
+  private void takeSlot() throws IOException {
+    while (true) {
+      final int taken = slotsTaken.get();
+      if (taken >= DaemonConstants.PROCESS_SESSION_LIMIT)
+        throw new IOException("Already running " + taken + " process sessions, the limit is " + DaemonConstants.PROCESS_SESSION_LIMIT);
+      if (slotsTaken.compareAndSet(taken, taken + 1))
+        return;
+    }
+  }
+  
+  private void reapIdleSessions() {
+    final long now = System.currentTimeMillis();
+    for (final ProcessSession session : sessions.values()) {
+      if (now - session.getLastAccessTime() > DaemonConstants.PROCESS_SESSION_IDLE_MILLIS && sessions.remove(session.getId(), session)) {
+        log.info("Process session " + session.getId() + " has been idle too long. Destroying it.");
+        session.close();
+        slotsTaken.decrementAndGet();
+      }
+    }
+  }
+  
+  private synchronized void startReaperThread() {
+    if (reaperThread == null) {
+      reaperThread = new ReaperThread();
+      reaperThread.setDaemon(true);
+      reaperThread.start();
+    }
+  }
+  
+  /** Destroys idle sessions, checking a few times per idle timeout. */
+  private class ReaperThread extends KillableThread {
+    @Override
+    public void run() {
+      setName("ProcessSessionReaper");
+      while (!die) {
+        try {
+          Thread.sleep(Math.max(1000, DaemonConstants.PROCESS_SESSION_IDLE_MILLIS / 4));
+        } catch (final InterruptedException ignored) {
+        }
+        reapIdleSessions();
+      }
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package com.pelzer.util.daemon.telemetry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import com.pelzer.util.Logging;
+import com.pelzer.util.daemon.beans.HostTelemetry;
+
+/**
+ * Samples a host and its daemons' processes from /proc: the load average and
+ * memory from /proc/loadavg and /proc/meminfo, and for each process its CPU
+ * time from /proc/&lt;pid&gt;/stat, its resident set and thread count from
+ * /proc/&lt;pid&gt;/status, and its open files from /proc/&lt;pid&gt;/fd. Files
+ * are read through one reused buffer. A process that exits part way through is
+ * sampled as far as it got. Not thread safe.
+ */
+public class ProcSampler {
+  private static Logging.Logger log      = Logging.getLogger(ProcSampler.class);
+  private final File            procRoot;
+  private final byte            buffer[] = new byte[16 * 1024];
+  
+  public ProcSampler() {
+    this(new File("/proc"));
+  }
+  
+  /** Reads from the given directory instead of /proc, for testing. */
+  public ProcSampler(final File procRoot) {
+    this.procRoot = procRoot;
+  }
+  
+  /**
+   * @param pidsByDaemon
+   *          <daemonName, pid> of every running daemon to sample.
+   * @return the sample, or null if there's no /proc to sample.
+   */
+  public HostTelemetry sample(final Map<String, Integer> pidsByDaemon) {
+    final String loadavg = read("loadavg");
+    if (loadavg == null)
+      return null;
+    final HostTelemetry telemetry = new HostTelemetry();
+    try {
+      telemetry.setLoadHundredths((int) Math.round(Double.parseDouble(loadavg.substring(0, loadavg.indexOf(' '))) * 100));
+    } catch (final RuntimeException ex) {
+      log.debug("Couldn't parse /proc/loadavg '" + loadavg + "'");
+    }
+    final String meminfo = read("meminfo");
+    if (meminfo != null) {
+      telemetry.setMemoryTotalKilobytes(field(meminfo, "MemTotal:"));
+      long available = field(meminfo, "MemAvailable:");
+      if (available < 0 && field(meminfo, "MemFree:") >= 0) {
+        // Kernels before 3.14 don't work it out for us
+        available = field(meminfo, "MemFree:") + Math.max(0, field(meminfo, "Buffers:")) + Math.max(0, field(meminfo, "Cached:"));
+      }
+      telemetry.setMemoryAvailableKilobytes(available);
+    }
+    for (final Map.Entry<String, Integer> entry : pidsByDaemon.entrySet()) {
+      sampleProcess(telemetry, entry.getKey(), entry.getValue());
+    }
+    return telemetry;
+  }
+  
+  private void sampleProcess(final HostTelemetry telemetry, final String daemonName, final int pid) {
+    long cpuTicks = -1;
+    final String stat = read(pid + "/stat");
+    if (stat != null) {
+      // The command name is in brackets and may itself hold spaces or
+      // brackets, so fields are counted from the last ')'. utime and stime are
+      // the 14th and 15th fields, the state after the ')' is the 3rd.
+      final String fields[] = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+      try {
+        cpuTicks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+      } catch (final RuntimeException ex) {
+        log.debug("Couldn't parse /proc/" + pid + "/stat");
+      }
+    }
+    final String status = read(pid + "/status");
+    final long rssKilobytes = status == null ? -1 : field(status, "VmRSS:");
+    final long threads = status == null ? -1 : field(status, "Threads:");
+    final String fds[] = new File(procRoot, pid + "/fd").list();
+    telemetry.addProcess(daemonName, pid, cpuTicks, rssKilobytes, (int) threads, fds == null ? -1 : fds.length);
+  }
+  
+  /**
+   * @return the number after the given key in a file of 'Key: value' lines,
+   *         such as /proc/meminfo, or -1 if the key isn't there.
+   */
+  static long field(final String text, final String key) {
+    int at = text.startsWith(key) ? 0 : text.indexOf("\n" + key);
+    if (at < 0)
+      return -1;
+    at += at == 0 ? key.length() : key.length() + 1;
+    while (at < text.length() && (text.charAt(at) == ' ' || text.charAt(at) == '\t')) {
+      at++;
+    }
+    long value = 0;
+    boolean found = false;
+    while (at < text.length() && Character.isDigit(text.charAt(at))) {
+      value = value * 10 + text.charAt(at++) - '0';
+      found = true;
+    }
+    return found ? value : -1;
+  }
+  
+  /** @return the whole of a file under the proc root, or null if it can't be read. */
+  private String read(final String path) {
+    return read(new File(procRoot, path), buffer);
+  }
+  
+  /** @return the whole of a file, read through the given buffer, or null if it can't be read. */
+  static String read(final File file, final byte buffer[]) {
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      int length = 0;
+      int read;
+      while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) > 0) {
+        length += read;
+      }
+      return new String(buffer, 0, length, "US-ASCII");
+    } catch (final IOException ex) {
+      return null;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (final IOException ignored) {
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package com.pelzer.util.daemon.telemetry;
+
+import java.io.File;
+
+import com.pelzer.util.daemon.beans.HostTelemetry;
+
+/**
+ * Which processes were alive on the host at one moment, from a single listing
+ * of /proc, so checking any number of pids against it costs a hash lookup each
+ * instead of a stat or exec apiece. Pids are kept in an open addressing table
+ * of primitives. A pid's start time is only read from /proc/&lt;pid&gt;/stat
+ * when it's asked for, and is what tells a daemon's process apart from a
+ * later one that was given the same pid. A pid that wasn't listed can be
+ * checked again with {@link #isAliveNow(int)}, for a pid file written after
+ * the listing. Linux only. Not thread safe.
+ */
+public class ProcessTable {
+  /**
+   * How much later than its pid file a process can seem to have started and
+   * still be the one that wrote it, to cover the second granularity of the
+   * boot time and small clock adjustments.
+   */
+  static final long  START_SLACK_MILLIS = 5000;
+  private final File procRoot;
+  /** When the listing was taken, just before /proc was read. */
+  private final long scanMillis;
+  /** Live pids, with 0 for an empty slot. */
+  private final int  pids[];
+  /** Each pid's start time in clock ticks since boot, 0 until it's read and -1 if it can't be. */
+  private final long startTicks[];
+  private final int  size;
+  /** When the host booted, 0 until it's read and -1 if it can't be. */
+  private long       bootMillis         = 0;
+  private final byte buffer[]           = new byte[4 * 1024];
+  
+  private ProcessTable(final File procRoot, final long scanMillis, final String names[]) {
+    this.procRoot = procRoot;
+    this.scanMillis = scanMillis;
+    int capacity = 16;
+    while (capacity < names.length * 2) {
+      capacity *= 2;
+    }
+    pids = new int[capacity];
+    startTicks = new long[capacity];
+    int size = 0;
+    for (final String name : names) {
+      final int pid = parsePid(name);
+      if (pid > 0 && pids[slot(pid)] == 0) {
+        pids[slot(pid)] = pid;
+        size++;
+      }
+    }
+    this.size = size;
+  }
+  
+  /** @return the processes alive right now, or null if there's no /proc to list. */
+  public static ProcessTable scan() {
+    return scan(new File("/proc"));
+  }
+  
+  /** Lists the given directory instead of /proc, for testing. */
+  public static ProcessTable scan(final File procRoot) {
+    final long scanMillis = System.currentTimeMillis();
+    final String names[] = procRoot.list();
+    return names == null ? null : new ProcessTable(procRoot, scanMillis, names);
+  }
+  
+  /** @return when /proc was listed. Anything that happened after isn't in the table. */
+  public long getScanMillis() {
+    return scanMillis;
+  }
+  
+  /** @return how many processes were alive. */
+  public int size() {
+    return size;
+  }
+  
+  /** @return true if the pid was alive when /proc was listed. */
+  public boolean isAlive(final int pid) {
+    return pid > 0 && pids[slot(pid)] == pid;
+  }
+  
+  /**
+   * @return true if the pid was alive when /proc was listed, or has come up
+   *         since. A pid that wasn't listed costs a stat.
+   */
+  public boolean isAliveNow(final int pid) {
+    return isAlive(pid) || pid > 0 && new File(procRoot, Integer.toString(pid)).exists();
+  }
+  
+  /**
+   * Checks a pid read from a pid file, which may have been written after /proc
+   * was listed. A process that started after its pid file was written can't be
+   * the one that wrote it, so the pid must have been handed out again after the
+   * daemon died.
+   *
+   * @param pidFileModifiedMillis
+   *          when the pid file was last written.
+   * @return true if the pid is alive and doesn't look reused. If the start time
+   *         can't be read the pid is given the benefit of the doubt.
+   */
+  public boolean isAlive(final int pid, final long pidFileModifiedMillis) {
+    if (!isAliveNow(pid))
+      return false;
+    final long startMillis = getStartMillis(pid);
+    return startMillis < 0 || startMillis <= pidFileModifiedMillis + START_SLACK_MILLIS;
+  }
+  
+  /**
+   * @return the pid's start time in clock ticks since boot, or -1 if it isn't
+   *         alive or the time can't be read. Only compare it with another start
+   *         time of the same host. Only the start times of listed pids are kept.
+   */
+  public long getStartTicks(final int pid) {
+    if (!isAlive(pid))
+      return isAliveNow(pid) ? readStartTicks(pid) : -1;
+    final int slot = slot(pid);
+    if (startTicks[slot] == 0) {
+      startTicks[slot] = readStartTicks(pid);
+    }
+    return startTicks[slot];
+  }
+  
+  /** @return when the pid started, or -1 if it isn't alive or the time can't be read. */
+  public long getStartMillis(final int pid) {
+    final long ticks = getStartTicks(pid);
+    if (ticks < 0)
+      return -1;
+    if (bootMillis == 0) {
+      final String stat = ProcSampler.read(new File(procRoot, "stat"), buffer);
+      final long btime = stat == null ? -1 : ProcSampler.field(stat, "btime");
+      bootMillis = btime < 0 ? -1 : btime * 1000;
+    }
+    return bootMillis < 0 ? -1 : bootMillis + ticks * 1000 / HostTelemetry.TICKS_PER_SECOND;
+  }
+  
+  private long readStartTicks(final int pid) {
+    final String stat = ProcSampler.read(new File(procRoot, pid + "/stat"), buffer);
+    if (stat == null)
+      return -1;
+    // Counted from the last ')', as the command name may hold spaces. The
+    // start time is the 22nd field, the state after the ')' is the 3rd.
+    final String fields[] = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+    try {
+      return Long.parseLong(fields[19]);
+    } catch (final RuntimeException ex) {
+      return -1;
+    }
+  }
+  
+  /** @return the slot holding the pid, or the empty slot it would go in. */
+  private int slot(final int pid) {
+    final int mask = pids.length - 1;
+    final int hash = pid * 0x9E3779B9;
+    int slot = (hash ^ hash >>> 16) & mask;
+    while (pids[slot] != 0 && pids[slot] != pid) {
+      slot = slot + 1 & mask;
+    }
+    return slot;
+  }
+  
+  /** @return the pid a /proc entry is named for, or 0 if it isn't a process. */
+  private static int parsePid(final String name) {
+    if (name.length() == 0 || name.length() > 9)
+      return 0;
+    int pid = 0;
+    for (int i = 0; i < name.length(); i++) {
+      final char c = name.charAt(i);
+      if (c < '0' || c > '9')
+        return 0;
+      pid = pid * 10 + c - '0';
+    }
+    return pid;
+  }
+}
@@ -0,0 +1,105 @@
+package com.pelzer.util.daemon.telemetry;
+
+/**
+ * The last few samples of a fixed set of numbers, each stamped with when it
+ * arrived. Samples live in one flat ring of primitives that is allocated up
+ * front, so recording allocates nothing and the oldest sample just gets
+ * overwritten. Thread safe.
+ */
+public class RollingWindow {
+  private final int  columns;
+  private final long times[];
+  /** Row i's value for column c is at i * columns + c. */
+  private final long values[];
+  /** Index of the row the next sample goes into. */
+  private int        next = 0;
+  private int        size = 0;
+  
+  public RollingWindow(final int columns, final int capacity) {
+    this.columns = columns;
+    times = new long[capacity];
+    values = new long[capacity * columns];
+  }
+  
+  /** Records a sample, one value per column. */
+  public synchronized void add(final long timeMillis, final long row[]) {
+    times[next] = timeMillis;
+    System.arraycopy(row, 0, values, next * columns, columns);
+    next = (next + 1) % times.length;
+    if (size < times.length) {
+      size++;
+    }
+  }
+  
+  public synchronized int size() {
+    return size;
+  }
+  
+  /** @return when the latest sample arrived, or 0 if there isn't one. */
+  public synchronized long getLatestTime() {
+    return size == 0 ? 0 : times[row(0)];
+  }
+  
+  /** @return the column's latest value, or -1 if there isn't one. */
+  public synchronized long getLatest(final int column) {
+    return size == 0 ? -1 : values[row(0) * columns + column];
+  }
+  
+  /**
+   * @return the mean of the column over the samples since the given time,
+   *         skipping values of -1, or -1 if there are none.
+   */
+  public synchronized double getMean(final int column, final long sinceMillis) {
+    long total = 0;
+    int count = 0;
+    for (int back = 0; back < size && times[row(back)] >= sinceMillis; back++) {
+      final long value = values[row(back) * columns + column];
+      if (value >= 0) {
+        total += value;
+        count++;
+      }
+    }
+    return count == 0 ? -1 : (double) total / count;
+  }
+  
+  /** @return the biggest value of the column since the given time, or -1 if there are none. */
+  public synchronized long getMax(final int column, final long sinceMillis) {
+    long max = -1;
+    for (int back = 0; back < size && times[row(back)] >= sinceMillis; back++) {
+      max = Math.max(max, values[row(back) * columns + column]);
+    }
+    return max;
+  }
+  
+  /**
+   * Works out how fast a column that only ever counts up is growing, from the
+   * oldest sample since the given time to the latest. Only samples whose
+   * keyColumn matches the latest sample's are used, so a counter that started
+   * again from nothing (a process restarted under a new pid, say) isn't
+   * mistaken for one that went backwards.
+   * 
+   * @return the growth per second, or -1 if there aren't two samples to go on.
+   */
+  public synchronized double getRatePerSecond(final int column, final int keyColumn, final long sinceMillis) {
+    if (size < 2)
+      return -1;
+    final int latest = row(0);
+    final long key = values[latest * columns + keyColumn];
+    int oldest = -1;
+    for (int back = 1; back < size && times[row(back)] >= sinceMillis && values[row(back) * columns + keyColumn] == key; back++) {
+      oldest = row(back);
+    }
+    if (oldest < 0 || times[latest] == times[oldest])
+      return -1;
+    final long first = values[oldest * columns + column];
+    final long last = values[latest * columns + column];
+    if (first < 0 || last < first)
+      return -1;
+    return (last - first) * 1000.0 / (times[latest] - times[oldest]);
+  }
+  
+  /** @return the index of the row the given number of samples back from the latest. */
+  private int row(final int back) {
+    return (next - 1 - back + times.length) % times.length;
+  }
+}
@@ -0,0 +1,145 @@
+package com.pelzer.util.daemon.telemetry;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.pelzer.util.daemon.beans.HostTelemetry;
+import com.pelzer.util.daemon.metrics.PrometheusWriter;
+
+/**
+ * Keeps a {@link RollingWindow} of the telemetry each host sends with its
+ * polls, and one per daemon, in memory only. Samples are stamped with when they
+ * arrived rather than the host's clock, so skew between hosts doesn't matter.
+ * Windows that haven't had a sample for a whole window are dropped, which is
+ * how hosts that have gone and daemons that have stopped are forgotten.
+ */
+public class TelemetryStore {
+  /** Host window column: the one minute load average, times 100. */
+  public static final int  LOAD_HUNDREDTHS     = 0;
+  /** Host window column. */
+  public static final int  MEMORY_TOTAL_KB     = 1;
+  /** Host window column. */
+  public static final int  MEMORY_AVAILABLE_KB = 2;
+  private static final int HOST_COLUMNS        = 3;
+  /** Daemon window column. */
+  public static final int  PID                 = 0;
+  /** Daemon window column: CPU time used since the process started, in {@link HostTelemetry#TICKS_PER_SECOND}. */
+  public static final int  CPU_TICKS           = 1;
+  /** Daemon window column. */
+  public static final int  RSS_KB              = 2;
+  /** Daemon window column. */
+  public static final int  THREADS             = 3;
+  /** Daemon window column. */
+  public static final int  OPEN_FILES          = 4;
+  private static final int DAEMON_COLUMNS      = 5;
+  
+  private final long                                 windowMillis;
+  private final int                                  windowSamples;
+  /** Stores <hostname, window> */
+  private final ConcurrentMap<String, RollingWindow> hosts          = new ConcurrentHashMap<String, RollingWindow>();
+  /** Stores <daemonName, window> */
+  private final ConcurrentMap<String, RollingWindow> daemons        = new ConcurrentHashMap<String, RollingWindow>();
+  private volatile long                              lastCullMillis = System.currentTimeMillis();
+  
+  public TelemetryStore(final long windowMillis, final int windowSamples) {
+    this.windowMillis = windowMillis;
+    this.windowSamples = windowSamples;
+  }
+  
+  /** Adds a host's sample to its window and to the window of each of its daemons. */
+  public void record(final String hostname, final HostTelemetry telemetry) {
+    final long now = System.currentTimeMillis();
+    final long row[] = new long[DAEMON_COLUMNS];
+    row[LOAD_HUNDREDTHS] = telemetry.getLoadHundredths();
+    row[MEMORY_TOTAL_KB] = telemetry.getMemoryTotalKilobytes();
+    row[MEMORY_AVAILABLE_KB] = telemetry.getMemoryAvailableKilobytes();
+    getWindow(hosts, hostname, HOST_COLUMNS).add(now, row);
+    for (int i = 0; i < telemetry.getProcessCount(); i++) {
+      row[PID] = telemetry.getPid(i);
+      row[CPU_TICKS] = telemetry.getCpuTicks(i);
+      row[RSS_KB] = telemetry.getRssKilobytes(i);
+      row[THREADS] = telemetry.getThreads(i);
+      row[OPEN_FILES] = telemetry.getOpenFiles(i);
+      getWindow(daemons, telemetry.getDaemonName(i), DAEMON_COLUMNS).add(now, row);
+    }
+    if (now - lastCullMillis > windowMillis) {
+      lastCullMillis = now;
+      cull(hosts, now);
+      cull(daemons, now);
+    }
+  }
+  
+  /** @return the host's window, or null if it hasn't sent anything lately. */
+  public RollingWindow getHostWindow(final String hostname) {
+    return hosts.get(hostname);
+  }
+  
+  /** @return the daemon's window, or null if it hasn't been sampled lately. */
+  public RollingWindow getDaemonWindow(final String daemonName) {
+    return daemons.get(daemonName);
+  }
+  
+  /** @return how many cores the daemon has kept busy on average over the window, or -1 if it isn't known. */
+  public double getCpuCores(final String daemonName) {
+    final RollingWindow window = daemons.get(daemonName);
+    if (window == null)
+      return -1;
+    final double ticksPerSecond = window.getRatePerSecond(CPU_TICKS, PID, System.currentTimeMillis() - windowMillis);
+    return ticksPerSecond < 0 ? -1 : ticksPerSecond / HostTelemetry.TICKS_PER_SECOND;
+  }
+  
+  /** Writes each host's and daemon's latest sample, and each daemon's CPU use over the window. */
+  public void writeMetrics(final PrometheusWriter out) {
+    out.header("daemon_host_load1", "gauge", "One minute load average, as last reported by the host's DaemonManager.");
+    for (final Map.Entry<String, RollingWindow> host : hosts.entrySet()) {
+      final long load = host.getValue().getLatest(LOAD_HUNDREDTHS);
+      if (load >= 0) {
+        out.sample("daemon_host_load1", "host", host.getKey(), load / 100.0);
+      }
+    }
+    writeLatest(out, hosts, "host", "daemon_host_memory_available_bytes", "Memory the host can hand out without swapping.", MEMORY_AVAILABLE_KB, 1024);
+    writeLatest(out, hosts, "host", "daemon_host_memory_total_bytes", "Memory the host has in all.", MEMORY_TOTAL_KB, 1024);
+    out.header("daemon_process_cpu_cores", "gauge", "Cores the daemon's process kept busy on average over the telemetry window.");
+    for (final String daemonName : daemons.keySet()) {
+      final double cores = getCpuCores(daemonName);
+      if (cores >= 0) {
+        out.sample("daemon_process_cpu_cores", "daemon", daemonName, cores);
+      }
+    }
+    writeLatest(out, daemons, "daemon", "daemon_process_resident_bytes", "Resident set of the daemon's process.", RSS_KB, 1024);
+    writeLatest(out, daemons, "daemon", "daemon_process_threads", "Threads in the daemon's process.", THREADS, 1);
+    writeLatest(out, daemons, "daemon", "daemon_process_open_files", "Open file descriptors of the daemon's process.", OPEN_FILES, 1);
+  }
+  
+  private static void writeLatest(final PrometheusWriter out, final Map<String, RollingWindow> windows, final String label, final String name, final String help, final int column, final long scale) {
+    out.header(name, "gauge", help);
+    for (final Map.Entry<String, RollingWindow> entry : windows.entrySet()) {
+      final long value = entry.getValue().getLatest(column);
+      if (value >= 0) {
+        out.sample(name, label, entry.getKey(), value * scale);
+      }
+    }
+  }
+  
+  private RollingWindow getWindow(final ConcurrentMap<String, RollingWindow> windows, final String key, final int columns) {
+    RollingWindow window = windows.get(key);
+    if (window == null) {
+      final RollingWindow newWindow = new RollingWindow(columns, windowSamples);
+      window = windows.putIfAbsent(key, newWindow);
+      if (window == null) {
+        window = newWindow;
+      }
+    }
+    return window;
+  }
+  
+  private void cull(final Map<String, RollingWindow> windows, final long now) {
+    for (final Iterator<RollingWindow> i = windows.values().iterator(); i.hasNext();) {
+      if (now - i.next().getLatestTime() > windowMillis) {
+        i.remove();
+      }
+    }
+  }
+}
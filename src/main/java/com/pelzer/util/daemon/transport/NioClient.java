@@ -0,0 +1,223 @@
+package com.pelzer.util.daemon.transport;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.pelzer.util.Logging;
+
+/**
+ * Client end of {@link NioServer}: an implementation of a remote interface
+ * whose calls all share one persistent socket. Any number of threads can have
+ * calls in flight at once; each request is tagged with an id and its response
+ * is matched back up by a reader thread, so a long poll doesn't hold up a
+ * lease renewal behind it. If the socket drops, every call in flight fails
+ * with a {@link ConnectException} and the next call reconnects.
+ */
+public class NioClient implements InvocationHandler {
+  private static Logging.Logger      log           = Logging.getLogger(NioClient.class);
+  private final String               host;
+  private final int                  port;
+  /** Stores <method, index into the shared method table> */
+  private final Map<Method, Integer> methodIndexes = new HashMap<Method, Integer>();
+  private final AtomicInteger        nextRequestId = new AtomicInteger();
+  private Connection                 connection    = null;
+  
+  private NioClient(final Class<?> iface, final String host, final int port) {
+    this.host = host;
+    this.port = port;
+    final Method methods[] = Protocol.methodsOf(iface);
+    for (int i = 0; i < methods.length; i++) {
+      methodIndexes.put(methods[i], i);
+    }
+  }
+  
+  /**
+   * @return an implementation of the interface that calls a {@link NioServer}
+   *         at the given address. Doesn't connect until the first call.
+   */
+  public static <T> T connect(final Class<T> iface, final String host, final int port) {
+    return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] { iface }, new NioClient(iface, host, port)));
+  }
+  
+  public Object invoke(final Object proxy, final Method method, final Object args[]) throws Throwable {
+    if (method.getDeclaringClass() == Object.class) {
+      if (method.getName().equals("equals"))
+        return proxy == args[0];
+      if (method.getName().equals("hashCode"))
+        return System.identityHashCode(proxy);
+      return "NioClient[" + host + ":" + port + "]";
+    }
+    final Integer methodIndex = methodIndexes.get(method);
+    if (methodIndex == null)
+      throw new IllegalArgumentException("Not a remote method: " + method);
+    final byte body[] = Protocol.serialize(args);
+    final ByteBuffer frame = ByteBuffer.allocate(4 + 4 + 2 + body.length);
+    frame.putInt(4 + 2 + body.length);
+    frame.putInt(nextRequestId.incrementAndGet());
+    frame.putShort(methodIndex.shortValue());
+    frame.put(body);
+    frame.flip();
+    
+    final Connection connection = getConnection();
+    final PendingCall call = connection.send(frame);
+    final Object result;
+    try {
+      result = call.await();
+    } catch (final InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted waiting on " + method.getName());
+    }
+    if (call.status == Protocol.OK)
+      return result;
+    final Throwable thrown = (Throwable) result;
+    if (thrown instanceof RuntimeException || thrown instanceof Error)
+      throw thrown;
+    for (final Class<?> declared : method.getExceptionTypes()) {
+      if (declared.isInstance(thrown))
+        throw thrown;
+    }
+    throw new UndeclaredThrowableException(thrown);
+  }
+  
+  private synchronized Connection getConnection() throws ConnectException {
+    if (connection == null || connection.closed) {
+      try {
+        final SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        connection = new Connection(channel);
+        connection.start();
+        log.debug("Connected to " + host + ":" + port);
+      } catch (final IOException ex) {
+        throw new ConnectException("Couldn't connect to " + host + ":" + port, ex);
+      }
+    }
+    return connection;
+  }
+  
+  /** One socket, with the reader thread that matches responses to calls. */
+  private class Connection extends Thread {
+    private final SocketChannel                       channel;
+    /** Stores <requestId, call> for calls waiting on a response. */
+    private final ConcurrentMap<Integer, PendingCall> pending   = new ConcurrentHashMap<Integer, PendingCall>();
+    private final Object                              writeLock = new Object();
+    private volatile boolean                          closed    = false;
+    
+    public Connection(final SocketChannel channel) {
+      super("NioClientReader-" + host + ":" + port);
+      this.channel = channel;
+      setDaemon(true);
+    }
+    
+    public PendingCall send(final ByteBuffer frame) throws ConnectException {
+      final int requestId = frame.getInt(4);
+      final PendingCall call = new PendingCall();
+      pending.put(requestId, call);
+      // close() might have swept the map just before we got in
+      if (closed) {
+        pending.remove(requestId);
+        throw new ConnectException("Connection to " + host + ":" + port + " is closed");
+      }
+      try {
+        synchronized (writeLock) {
+          while (frame.hasRemaining()) {
+            channel.write(frame);
+          }
+        }
+      } catch (final IOException ex) {
+        close(ex);
+        throw new ConnectException("Lost connection to " + host + ":" + port, ex);
+      }
+      return call;
+    }
+    
+    @Override
+    public void run() {
+      final ByteBuffer header = ByteBuffer.allocate(4);
+      try {
+        while (true) {
+          header.clear();
+          readFully(header);
+          final int length = Protocol.checkLength(header.getInt(0));
+          // Hanging up fails every call still waiting, rather than leaving them parked
+          if (length < Protocol.RESPONSE_HEADER_BYTES)
+            throw new IOException("Response frame of " + length + " bytes is too short");
+          final ByteBuffer body = ByteBuffer.allocate(length);
+          readFully(body);
+          final int requestId = body.getInt(0);
+          final byte status = body.get(4);
+          final PendingCall call = pending.remove(requestId);
+          if (call == null) {
+            log.warn("Response for unknown request " + requestId + " from " + host + ":" + port);
+            continue;
+          }
+          try {
+            call.complete(status, Protocol.deserialize(body.array(), Protocol.RESPONSE_HEADER_BYTES));
+          } catch (final IOException ex) {
+            call.complete(Protocol.THREW, new RemoteException("Couldn't read the response", ex));
+          }
+        }
+      } catch (final IOException ex) {
+        close(ex);
+      }
+    }
+    
+    private void readFully(final ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0)
+          throw new IOException("Closed by server");
+      }
+    }
+    
+    /** Closes the socket and fails every call still waiting on it. */
+    private void close(final IOException cause) {
+      if (closed)
+        return;
+      closed = true;
+      log.debug("Lost connection to " + host + ":" + port + ": " + cause.getMessage());
+      try {
+        channel.close();
+      } catch (final IOException ignored) {
+      }
+      for (final Integer requestId : pending.keySet()) {
+        final PendingCall call = pending.remove(requestId);
+        if (call != null) {
+          call.complete(Protocol.THREW, new ConnectException("Lost connection to " + host + ":" + port, cause));
+        }
+      }
+    }
+  }
+  
+  /** A call waiting for its response. */
+  private static class PendingCall {
+    private boolean done   = false;
+    private byte    status;
+    private Object  result;
+    
+    public synchronized void complete(final byte status, final Object result) {
+      this.status = status;
+      this.result = result;
+      done = true;
+      notifyAll();
+    }
+    
+    public synchronized Object await() throws InterruptedException {
+      while (!done) {
+        wait();
+      }
+      return result;
+    }
+  }
+}
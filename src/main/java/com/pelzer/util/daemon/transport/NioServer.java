@@ -0,0 +1,278 @@
+package com.pelzer.util.daemon.transport;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.pelzer.util.Logging;
+
+/**
+ * Serves calls on an interface to a local object, over the binary protocol in
+ * {@link Protocol}. One selector thread does all of the socket I/O for every
+ * client; the calls themselves run on a pool of worker threads, since some of
+ * them (long polls, blocking lease waits) park for a long time. Responses go
+ * back as soon as they're ready, in whatever order that is.
+ */
+public class NioServer {
+  private static Logging.Logger     log           = Logging.getLogger(NioServer.class);
+  private final Object              target;
+  private final Method              methods[];
+  private final ServerSocketChannel serverChannel;
+  private final Selector            selector;
+  private final ExecutorService     workers;
+  private final Thread              selectorThread;
+  /** Connections with responses queued that the selector needs to start writing. */
+  private final Queue<Connection>   pendingWrites = new ConcurrentLinkedQueue<Connection>();
+  private volatile boolean          running       = true;
+  
+  /**
+   * Starts listening on the given port, or on any free port if it's 0.
+   * 
+   * @param iface
+   *          the interface clients call, which target must implement
+   */
+  public NioServer(final Class<?> iface, final Object target, final int port) throws IOException {
+    if (!iface.isInstance(target))
+      throw new IllegalArgumentException(target.getClass().getName() + " doesn't implement " + iface.getName());
+    this.target = target;
+    methods = Protocol.methodsOf(iface);
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.socket().setReuseAddress(true);
+    serverChannel.socket().bind(new InetSocketAddress(port));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    workers = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "NioServerWorker-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    selectorThread = new Thread("NioServerSelector-" + getPort()) {
+      @Override
+      public void run() {
+        select();
+      }
+    };
+    selectorThread.setDaemon(true);
+    selectorThread.start();
+    log.info("Serving " + iface.getName() + " on port " + getPort());
+  }
+  
+  /** @return the port actually listened on. */
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+  
+  /**
+   * Stops listening and drops every connection. Calls in flight are abandoned.
+   * Returns once the port has been let go of.
+   */
+  public void close() {
+    running = false;
+    selector.wakeup();
+    if (Thread.currentThread() != selectorThread) {
+      try {
+        selectorThread.join();
+      } catch (final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+  
+  private void select() {
+    while (running) {
+      try {
+        selector.select();
+        if (!running) {
+          break;
+        }
+        Connection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+          connection.enableWrites();
+        }
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          final SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          connection = (Connection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.write();
+            }
+          } catch (final IOException ex) {
+            log.debug("Dropping connection from " + connection.channel.socket().getRemoteSocketAddress() + ": " + ex.getMessage());
+            connection.close();
+          }
+        }
+      } catch (final IOException ex) {
+        log.error("IOException in selector loop", ex);
+      }
+    }
+    for (final SelectionKey key : selector.keys()) {
+      try {
+        key.channel().close();
+      } catch (final IOException ignored) {
+      }
+    }
+    try {
+      selector.close();
+      serverChannel.close();
+    } catch (final IOException ignored) {
+    }
+    workers.shutdownNow();
+  }
+  
+  private void accept() throws IOException {
+    final SocketChannel channel = serverChannel.accept();
+    if (channel == null)
+      return;
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    final Connection connection = new Connection(channel);
+    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+  }
+  
+  /** Runs one call on a worker thread and queues the response. */
+  private void call(final Connection connection, final byte frame[]) {
+    // Connection.read() only hands over frames long enough for the header
+    final int requestId = ByteBuffer.wrap(frame).getInt();
+    String methodName = "an unknown method";
+    byte status = Protocol.OK;
+    Object result;
+    try {
+      final ByteBuffer request = ByteBuffer.wrap(frame);
+      request.position(4);
+      final int methodIndex = request.getShort() & 0xffff;
+      if (methodIndex >= methods.length)
+        throw new IOException("Unknown method index " + methodIndex + ", is the client running a different version?");
+      methodName = methods[methodIndex].getName();
+      final Object args[] = (Object[]) Protocol.deserialize(frame, Protocol.REQUEST_HEADER_BYTES);
+      result = methods[methodIndex].invoke(target, args);
+    } catch (final InvocationTargetException ex) {
+      status = Protocol.THREW;
+      result = ex.getCause();
+    } catch (final Exception ex) {
+      status = Protocol.THREW;
+      result = ex;
+    }
+    byte body[];
+    try {
+      body = Protocol.serialize(result);
+    } catch (final IOException ex) {
+      log.error("Couldn't serialize the result of " + methodName, ex);
+      status = Protocol.THREW;
+      try {
+        body = Protocol.serialize(new IOException("Couldn't serialize the result: " + ex));
+      } catch (final IOException impossible) {
+        connection.close();
+        return;
+      }
+    }
+    final ByteBuffer response = ByteBuffer.allocate(4 + 4 + 1 + body.length);
+    response.putInt(4 + 1 + body.length);
+    response.putInt(requestId);
+    response.put(status);
+    response.put(body);
+    response.flip();
+    connection.output.add(response);
+    pendingWrites.add(connection);
+    selector.wakeup();
+  }
+  
+  /** One client socket. Only ever read and written on the selector thread. */
+  private class Connection {
+    private final SocketChannel     channel;
+    private SelectionKey            key;
+    private final ByteBuffer        header = ByteBuffer.allocate(4);
+    private ByteBuffer              body   = null;
+    private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<ByteBuffer>();
+    
+    public Connection(final SocketChannel channel) {
+      this.channel = channel;
+    }
+    
+    /** Reads as many whole frames as are available, handing each to a worker. */
+    public void read() throws IOException {
+      while (true) {
+        if (body == null) {
+          if (channel.read(header) < 0)
+            throw new IOException("Closed by client");
+          if (header.hasRemaining())
+            return;
+          header.flip();
+          final int length = Protocol.checkLength(header.getInt());
+          // Too short to carry a request id to answer, so the only way to tell
+          // the client is to hang up, which fails its calls
+          if (length < Protocol.REQUEST_HEADER_BYTES)
+            throw new IOException("Request frame of " + length + " bytes is too short");
+          body = ByteBuffer.allocate(length);
+          header.clear();
+        }
+        if (channel.read(body) < 0)
+          throw new IOException("Closed by client");
+        if (body.hasRemaining())
+          return;
+        final byte frame[] = body.array();
+        body = null;
+        workers.execute(new Runnable() {
+          public void run() {
+            call(Connection.this, frame);
+          }
+        });
+      }
+    }
+    
+    public void enableWrites() {
+      if (key.isValid()) {
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+    
+    /** Writes queued responses until they're gone or the socket is full. */
+    public void write() throws IOException {
+      ByteBuffer buffer;
+      while ((buffer = output.peek()) != null) {
+        channel.write(buffer);
+        if (buffer.hasRemaining())
+          return;
+        output.poll();
+      }
+      key.interestOps(SelectionKey.OP_READ);
+    }
+    
+    public void close() {
+      key.cancel();
+      try {
+        channel.close();
+      } catch (final IOException ignored) {
+      }
+    }
+  }
+}
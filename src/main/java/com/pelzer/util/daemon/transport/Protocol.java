@@ -0,0 +1,76 @@
+package com.pelzer.util.daemon.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The wire format shared by {@link NioClient} and {@link NioServer}. Every
+ * message is a frame: a 4 byte length, then that many bytes starting with a 4
+ * byte request id, which is what lets many calls share one connection. After
+ * the id, a request carries a 2 byte method index and the serialized argument
+ * array. A response carries a status byte and the serialized result, or the
+ * exception the method threw.
+ */
+final class Protocol {
+  /** Frames bigger than this are a broken or hostile peer, not a real call. */
+  static final int  MAX_FRAME_BYTES       = 64 * 1024 * 1024;
+  /** A request's id and method index. Anything shorter isn't a request. */
+  static final int  REQUEST_HEADER_BYTES  = 6;
+  /** A response's id and status byte. */
+  static final int  RESPONSE_HEADER_BYTES = 5;
+  
+  static final byte OK                    = 0;
+  static final byte THREW                 = 1;
+  
+  private Protocol() {
+  }
+  
+  /**
+   * @return every method of the interface, in an order both ends agree on as
+   *         long as they were built from the same interface.
+   */
+  static Method[] methodsOf(final Class<?> iface) {
+    final Method methods[] = iface.getMethods();
+    Arrays.sort(methods, new Comparator<Method>() {
+      public int compare(final Method a, final Method b) {
+        final int byName = a.getName().compareTo(b.getName());
+        if (byName != 0)
+          return byName;
+        return Arrays.toString(a.getParameterTypes()).compareTo(Arrays.toString(b.getParameterTypes()));
+      }
+    });
+    return methods;
+  }
+  
+  static byte[] serialize(final Object object) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    final ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(object);
+    out.close();
+    return bytes.toByteArray();
+  }
+  
+  static Object deserialize(final byte bytes[], final int offset) throws IOException {
+    final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, bytes.length - offset));
+    try {
+      return in.readObject();
+    } catch (final ClassNotFoundException ex) {
+      throw new IOException("Can't deserialize message", ex);
+    } finally {
+      in.close();
+    }
+  }
+  
+  /** @return the frame length read from a header, after checking it's sane. */
+  static int checkLength(final int length) throws IOException {
+    if (length < 4 || length > MAX_FRAME_BYTES)
+      throw new IOException("Bad frame length " + length);
+    return length;
+  }
+}
@@ -0,0 +1,87 @@
+package com.pelzer.util.daemon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.pelzer.util.daemon.beans.DaemonBean;
+
+public class AdmissionControlTest extends TestCase {
+  public AdmissionControlTest(final String name) {
+    super(name);
+  }
+  
+  public void testPerHostLimit() {
+    final AdmissionControl admission = new AdmissionControl(2, 0, 0, 60000);
+    final List<DaemonBean> starts = Arrays.asList(newDaemon("a", null), newDaemon("b", null), newDaemon("c", null));
+    assertEquals(Arrays.asList("a", "b"), names(admission.admit("host1", starts)));
+    assertEquals(1, admission.getQueuedCount());
+    // Another host has room of its own
+    assertEquals(Arrays.asList("d"), names(admission.admit("host2", Arrays.asList(newDaemon("d", null)))));
+    
+    admission.release("host1", "a");
+    assertEquals(Arrays.asList("b", "c"), names(admission.admit("host1", starts.subList(1, 3))));
+    assertEquals(0, admission.getQueuedCount());
+    // Asking again for a start already let through doesn't count it twice
+    assertEquals(Arrays.asList("b", "c"), names(admission.admit("host1", starts.subList(1, 3))));
+    assertEquals(3, admission.getAdmittedCount());
+  }
+  
+  public void testClusterAndGroupLimitsWakeWaitingHosts() {
+    final AdmissionControl admission = new AdmissionControl(0, 3, 1, 60000);
+    final List<String> woken = new ArrayList<String>();
+    admission.setListener(new AdmissionControl.Listener() {
+      public void startAdmitted(final String hostname) {
+        woken.add(hostname);
+      }
+    });
+    assertEquals(Arrays.asList("a", "x"), names(admission.admit("host1", Arrays.asList(newDaemon("a", "db"), newDaemon("b", "db"), newDaemon("x", null)))));
+    // The second of the group waits, the cluster has room for one more
+    assertEquals(Arrays.asList("c"), names(admission.admit("host2", Arrays.asList(newDaemon("c", null), newDaemon("d", null)))));
+    assertEquals(2, admission.getQueuedCount());
+    assertTrue(woken.isEmpty());
+    
+    // Finishing 'a' frees the group and the cluster, and b was waiting longest
+    admission.release("host1", "a");
+    assertEquals(Arrays.asList("host1"), woken);
+    assertEquals(Arrays.asList("b"), names(admission.admit("host1", Arrays.asList(newDaemon("b", "db")))));
+    
+    // Seeing 'x' running frees room for host2's 'd'
+    admission.releaseRunning("host1", Arrays.asList("x"));
+    assertEquals(Arrays.asList("host1", "host2"), woken);
+    assertEquals(Arrays.asList("d"), names(admission.admit("host2", Arrays.asList(newDaemon("d", null)))));
+  }
+  
+  public void testUnwantedAndExpiredStartsAreDropped() throws InterruptedException {
+    final AdmissionControl admission = new AdmissionControl(1, 0, 0, 50);
+    assertEquals(Arrays.asList("a"), names(admission.admit("host1", Arrays.asList(newDaemon("a", null), newDaemon("b", null)))));
+    // The host no longer needs 'b', so it stops waiting
+    admission.admit("host1", Arrays.asList(newDaemon("a", null)));
+    assertEquals(0, admission.getQueuedCount());
+    
+    // 'a' never completes, so it stops counting after the timeout
+    Thread.sleep(100);
+    assertEquals(Arrays.asList("c"), names(admission.admit("host1", Arrays.asList(newDaemon("c", null)))));
+    assertEquals(1, admission.getAdmittedCount());
+    assertEquals(0, names(admission.admit("host1", Collections.<DaemonBean> emptyList())).size());
+    assertEquals(1, admission.getAdmittedCount());
+  }
+  
+  private static DaemonBean newDaemon(final String name, final String group) {
+    final DaemonBean daemon = new DaemonBean();
+    daemon.setName(name);
+    daemon.setGroup(group);
+    return daemon;
+  }
+  
+  private static List<String> names(final List<DaemonBean> daemons) {
+    final List<String> names = new ArrayList<String>();
+    for (final DaemonBean daemon : daemons) {
+      names.add(daemon.getName());
+    }
+    return names;
+  }
+}
@@ -1,8 +1,16 @@
 package com.pelzer.util.daemon;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
 import junit.framework.TestCase;
 import com.pelzer.util.PropertyManager;
+import com.pelzer.util.daemon.DaemonManager.LivenessWatcher;
 import com.pelzer.util.daemon.DaemonManager.ManagerThread;
+import com.pelzer.util.daemon.beans.DaemonBean;
+import com.pelzer.util.daemon.telemetry.ProcessTable;
 
 public class DaemonManagerTest extends TestCase {
   public DaemonManagerTest(final String name) {
@@ -19,4 +27,88 @@ public class DaemonManagerTest extends TestCase {
     assertEquals(PropertyManager.getEnvironment().toLowerCase(), endTokens[1]);
     assertEquals(PropertyManager.getHostname(), endTokens[2]);
   }
+  
+  public void testLivenessFollowsPidFile() throws IOException {
+    final File pidFile = File.createTempFile("liveness", ".pid");
+    try {
+      final DaemonBean daemon = new DaemonBean();
+      daemon.setName("watched");
+      daemon.setPidFile(pidFile.getPath());
+      final LivenessWatcher watcher = new LivenessWatcher();
+      watcher.watch(Arrays.asList(daemon));
+      
+      final int ownPid = Integer.parseInt(new File("/proc/self").getCanonicalFile().getName());
+      final long now = System.currentTimeMillis();
+      writePid(pidFile, ownPid, now);
+      assertEquals(Integer.valueOf(ownPid), watcher.check(true).get("watched"));
+      
+      // Only a new modification time gets the file read again
+      writePid(pidFile, Integer.MAX_VALUE, now);
+      assertEquals(Integer.valueOf(ownPid), watcher.check(false).get("watched"));
+      writePid(pidFile, Integer.MAX_VALUE, now + 2000);
+      assertTrue(watcher.check(false).isEmpty());
+      
+      // A pid file written well before its process started names a reused pid
+      writePid(pidFile, ownPid, 1000);
+      assertTrue(watcher.check(true).isEmpty());
+      
+      pidFile.delete();
+      assertTrue(watcher.check(true).isEmpty());
+    } finally {
+      pidFile.delete();
+    }
+  }
+  
+  public void testPidFileWrittenAfterListing() throws IOException {
+    final File proc = File.createTempFile("liveness", "");
+    final File pidFile = File.createTempFile("liveness", ".pid");
+    try {
+      proc.delete();
+      proc.mkdirs();
+      writeText(new File(proc, "stat"), "btime " + System.currentTimeMillis() / 1000 + "\n");
+      final DaemonBean daemon = new DaemonBean();
+      daemon.setName("watched");
+      daemon.setPidFile(pidFile.getPath());
+      final LivenessWatcher watcher = new LivenessWatcher();
+      watcher.watch(Arrays.asList(daemon));
+      
+      // The daemon forks and writes its pid file just after the listing
+      final ProcessTable processes = ProcessTable.scan(proc);
+      writeText(new File(proc, "4242/stat"), "4242 (daemon) S 1 4242 4242 0 -1 0 0 0 0 0 0 0 0 0 20 0 1 0 0 1000 100\n");
+      writePid(pidFile, 4242, System.currentTimeMillis());
+      assertEquals(Integer.valueOf(4242), watcher.check(processes, true).get("watched"));
+      // Nor is it taken for dead from then on
+      assertEquals(Integer.valueOf(4242), watcher.check(ProcessTable.scan(proc), true).get("watched"));
+      
+      new File(proc, "4242/stat").delete();
+      new File(proc, "4242").delete();
+      assertTrue(watcher.check(ProcessTable.scan(proc), true).isEmpty());
+    } finally {
+      pidFile.delete();
+      new File(proc, "4242/stat").delete();
+      new File(proc, "4242").delete();
+      new File(proc, "stat").delete();
+      proc.delete();
+    }
+  }
+  
+  private static void writeText(final File file, final String text) throws IOException {
+    file.getParentFile().mkdirs();
+    final FileWriter out = new FileWriter(file);
+    try {
+      out.write(text);
+    } finally {
+      out.close();
+    }
+  }
+  
+  private static void writePid(final File file, final int pid, final long modifiedMillis) throws IOException {
+    final FileWriter out = new FileWriter(file);
+    try {
+      out.write(pid + "\n");
+    } finally {
+      out.close();
+    }
+    file.setLastModified(modifiedMillis);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,141 @@
+package com.pelzer.util.daemon;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.google.code.morphia.Key;
+import com.pelzer.util.daemon.beans.DaemonBean;
+import com.pelzer.util.daemon.beans.KnownDaemonsDelta;
+import com.pelzer.util.daemon.beans.ServerBean;
+import com.pelzer.util.daemon.dao.DaemonDAO;
+
+public class DaemonRegistryTest extends TestCase {
+  public DaemonRegistryTest(final String name) {
+    super(name);
+  }
+  
+  public void testKnownDaemonsSince() {
+    final FakeDaemonDAO dao = new FakeDaemonDAO();
+    dao.daemons.add(newDaemon("a", "host1"));
+    dao.daemons.add(newDaemon("b", "host1"));
+    final DaemonRegistry registry = new DaemonRegistry(dao);
+    registry.refresh();
+    
+    final KnownDaemonsDelta first = registry.getKnownDaemonsSince(0, 0);
+    assertTrue(first.isFull());
+    assertEquals(2, first.getChanged().length);
+    
+    // Nothing has changed, so nothing comes back
+    final KnownDaemonsDelta unchanged = registry.getKnownDaemonsSince(first.getEpoch(), first.getVersion());
+    assertFalse(unchanged.isFull());
+    assertEquals(0, unchanged.getChanged().length);
+    assertEquals(first.getVersion(), unchanged.getVersion());
+    
+    registry.setTargetDaemonStatus("b", DaemonStatus.RUNNING);
+    final KnownDaemonsDelta changed = registry.getKnownDaemonsSince(first.getEpoch(), first.getVersion());
+    assertEquals(1, changed.getChanged().length);
+    assertEquals("b", changed.getChanged()[0].getName());
+    assertEquals(0, changed.getRemoved().length);
+    
+    // Status alone isn't part of the definition
+    registry.setDaemonStatuses(Collections.singletonList("a"), DaemonStatus.RUNNING);
+    assertEquals(0, registry.getKnownDaemonsSince(changed.getEpoch(), changed.getVersion()).getChanged().length);
+  }
+  
+  public void testRemovedDaemons() {
+    final FakeDaemonDAO dao = new FakeDaemonDAO();
+    dao.daemons.add(newDaemon("a", "host1"));
+    dao.daemons.add(newDaemon("b", "host1"));
+    final DaemonRegistry registry = new DaemonRegistry(dao);
+    registry.refresh();
+    final KnownDaemonsDelta first = registry.getKnownDaemonsSince(0, 0);
+    
+    dao.daemons.remove(0);
+    final long cacheTime = DaemonConstants.KNOWN_DAEMONS_CACHE_TIME_MILLIS;
+    final long refreshTime = DaemonConstants.DAEMON_REGISTRY_REFRESH_MILLIS;
+    DaemonConstants.KNOWN_DAEMONS_CACHE_TIME_MILLIS = -1;
+    DaemonConstants.DAEMON_REGISTRY_REFRESH_MILLIS = -1;
+    try {
+      registry.refresh();
+    } finally {
+      DaemonConstants.KNOWN_DAEMONS_CACHE_TIME_MILLIS = cacheTime;
+      DaemonConstants.DAEMON_REGISTRY_REFRESH_MILLIS = refreshTime;
+    }
+    final KnownDaemonsDelta delta = registry.getKnownDaemonsSince(first.getEpoch(), first.getVersion());
+    assertEquals(0, delta.getChanged().length);
+    assertEquals(1, delta.getRemoved().length);
+    assertEquals("a", delta.getRemoved()[0]);
+    assertTrue(registry.getExpectedServiceNames("host1").isEmpty());
+  }
+  
+  public void testOtherEpochGetsFullRefresh() {
+    final FakeDaemonDAO dao = new FakeDaemonDAO();
+    dao.daemons.add(newDaemon("a", "host1"));
+    final DaemonRegistry registry = new DaemonRegistry(dao);
+    registry.refresh();
+    final KnownDaemonsDelta first = registry.getKnownDaemonsSince(0, 0);
+    
+    // A version that's in range, but from another registry, can't be trusted
+    final KnownDaemonsDelta other = registry.getKnownDaemonsSince(first.getEpoch() + 1, first.getVersion());
+    assertTrue(other.isFull());
+    assertEquals(1, other.getChanged().length);
+    assertEquals(first.getEpoch(), other.getEpoch());
+    assertFalse(registry.getKnownDaemonsSince(other.getEpoch(), other.getVersion()).isFull());
+  }
+  
+  private static DaemonBean newDaemon(final String name, final String hostname) {
+    final DaemonBean daemon = new DaemonBean();
+    daemon.setName(name);
+    daemon.setServer(new ServerBean(null, hostname));
+    daemon.setPidFile("/tmp/" + name + ".pid");
+    return daemon;
+  }
+  
+  /** Serves a fixed list of daemons, handing out copies like a real database would. */
+  private static class FakeDaemonDAO implements DaemonDAO {
+    private final List<DaemonBean> daemons = new ArrayList<DaemonBean>();
+    
+    public List<DaemonBean> getAllKnownDaemons() {
+      final List<DaemonBean> copies = new ArrayList<DaemonBean>();
+      for (final DaemonBean daemon : daemons) {
+        copies.add(newDaemon(daemon.getName(), daemon.getServer().getName()));
+      }
+      return copies;
+    }
+    
+    public List<DaemonBean> getDaemonsUpdatedSince(final Date since) {
+      return getAllKnownDaemons();
+    }
+    
+    public DaemonBean getDaemonBean(final String daemonName) {
+      return null;
+    }
+    
+    public void expireMissingDaemons() {
+    }
+    
+    public void setDaemonStatus(final DaemonBean daemonBean, final DaemonStatus status) {
+    }
+    
+    public void reconcileDaemonStatuses(final Collection<String> runningDaemonNames, final Collection<String> stoppedDaemonNames) {
+    }
+    
+    public void setTargetDaemonStatus(final DaemonBean daemonBean, final DaemonStatus status) {
+    }
+    
+    public void setServer(final DaemonBean daemonBean, final ServerBean serverBean) {
+    }
+    
+    public void createOrUpdate(final DaemonBean daemonBean) {
+    }
+    
+    public Key<DaemonBean> save(final DaemonBean entity) {
+      return null;
+    }
+  }
+}
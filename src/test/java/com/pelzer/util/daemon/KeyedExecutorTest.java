@@ -0,0 +1,80 @@
+package com.pelzer.util.daemon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class KeyedExecutorTest extends TestCase {
+  public KeyedExecutorTest(final String name) {
+    super(name);
+  }
+  
+  public void testSameKeyRunsInOrder() throws InterruptedException {
+    final KeyedExecutor executor = new KeyedExecutor("test", 4);
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch done = new CountDownLatch(5);
+    for (int i = 0; i < 5; i++) {
+      final int task = i;
+      executor.execute("daemon", new Runnable() {
+        public void run() {
+          try {
+            // Later tasks finish faster, so they'd overtake if allowed to
+            Thread.sleep(25 - task * 5);
+          } catch (final InterruptedException ignored) {
+          }
+          order.add(task);
+          done.countDown();
+        }
+      });
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+    executor.shutdown();
+  }
+  
+  public void testHungKeyDoesNotHoldUpOthers() throws InterruptedException {
+    final KeyedExecutor executor = new KeyedExecutor("test", 2);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch othersDone = new CountDownLatch(3);
+    executor.execute("hung", new Runnable() {
+      public void run() {
+        try {
+          release.await();
+        } catch (final InterruptedException ignored) {
+        }
+      }
+    });
+    executor.execute("hung", new Runnable() {
+      public void run() {
+      }
+    });
+    for (final String key : new String[] { "a", "b", "c" }) {
+      executor.execute(key, new Runnable() {
+        public void run() {
+          othersDone.countDown();
+        }
+      });
+    }
+    assertTrue(othersDone.await(5, TimeUnit.SECONDS));
+    // The hung task and the one queued behind it
+    assertEquals(2, awaitPendingCount(executor, 2));
+    
+    release.countDown();
+    assertEquals(0, awaitPendingCount(executor, 0));
+    executor.shutdown();
+  }
+  
+  /** Gives finishing tasks a moment to be counted off. */
+  private static int awaitPendingCount(final KeyedExecutor executor, final int expected) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (executor.getPendingCount() != expected && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    return executor.getPendingCount();
+  }
+}
@@ -0,0 +1,107 @@
+package com.pelzer.util.daemon;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.pelzer.util.daemon.lease.Lease;
+
+public class StateJournalTest extends TestCase {
+  private File file;
+  
+  public StateJournalTest(final String name) {
+    super(name);
+  }
+  
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile("StateJournalTest", ".journal");
+    file.delete();
+  }
+  
+  @Override
+  protected void tearDown() {
+    file.delete();
+  }
+  
+  public void testReplayAfterCompaction() throws IOException {
+    final StateJournal journal = new StateJournal(file);
+    journal.compact(new StateJournal.Snapshot() {
+      public void writeTo(final StateJournal journal) {
+        journal.leaseGranted(new Lease("foo", "hostA", 1000, 7));
+      }
+    });
+    journal.startTimeSet("daemonA", 42);
+    journal.actionIssued("hostA", 3, StateJournal.START, "daemonA");
+    journal.leaseRemoved("foo", 7);
+    journal.leaseGranted(new Lease("bar", "hostB", 2000, 8));
+    journal.flush();
+    
+    final RecordingHandler handler = new RecordingHandler();
+    new StateJournal(file).replay(handler);
+    assertEquals("[lease foo hostA 1000 7, start daemonA 42, action hostA 3 1 daemonA, removed foo 7, lease bar hostB 2000 8]", handler.records.toString());
+  }
+  
+  public void testTornRecordEndsReplay() throws IOException {
+    final StateJournal journal = new StateJournal(file);
+    journal.compact(new StateJournal.Snapshot() {
+      public void writeTo(final StateJournal journal) {
+        journal.startTimeSet("daemonA", 42);
+      }
+    });
+    journal.flush();
+    // Half of a lease record, as if the server died mid-write
+    final FileOutputStream out = new FileOutputStream(file, true);
+    out.write(new byte[] { 1, 0, 3, 'f' });
+    out.close();
+    
+    final RecordingHandler handler = new RecordingHandler();
+    new StateJournal(file).replay(handler);
+    assertEquals("[start daemonA 42]", handler.records.toString());
+  }
+  
+  public void testDisabledJournal() throws IOException {
+    final StateJournal journal = new StateJournal(null);
+    journal.leaseRemoved("foo", 7);
+    journal.compact(null);
+    final RecordingHandler handler = new RecordingHandler();
+    journal.replay(handler);
+    assertTrue(handler.records.isEmpty());
+  }
+  
+  private static class RecordingHandler implements StateJournal.Handler {
+    private final List<String> records = new ArrayList<String>();
+    
+    public void leaseGranted(final Lease lease) {
+      records.add("lease " + lease.getName() + " " + lease.getHostname() + " " + lease.getExpirationTimeMillis() + " " + lease.getFence());
+    }
+    
+    public void leaseRemoved(final String name, final long fence) {
+      records.add("removed " + name + " " + fence);
+    }
+    
+    public void startTimeSet(final String daemonName, final long startTimeMillis) {
+      records.add("start " + daemonName + " " + startTimeMillis);
+    }
+    
+    public void startTimeRemoved(final String daemonName) {
+      records.add("unstart " + daemonName);
+    }
+    
+    public void actionIssued(final String hostname, final int actionId, final byte kind, final String daemonName) {
+      records.add("action " + hostname + " " + actionId + " " + kind + " " + daemonName);
+    }
+    
+    public void actionRemoved(final String hostname, final int actionId) {
+      records.add("done " + hostname + " " + actionId);
+    }
+    
+    public void planCleared(final String hostname) {
+      records.add("cleared " + hostname);
+    }
+  }
+}
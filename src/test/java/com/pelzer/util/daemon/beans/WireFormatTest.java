@@ -0,0 +1,149 @@
+package com.pelzer.util.daemon.beans;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.bson.types.ObjectId;
+
+import com.pelzer.util.daemon.DaemonStatus;
+import com.pelzer.util.daemon.actions.IAction;
+import com.pelzer.util.daemon.actions.StartDaemon;
+import com.pelzer.util.daemon.actions.StopDaemon;
+
+public class WireFormatTest extends TestCase {
+  public WireFormatTest(final String name) {
+    super(name);
+  }
+  
+  public void testDaemonBeanRoundTrip() throws Exception {
+    final DaemonBean daemon = newDaemon(7, 3);
+    daemon.setLastUpdate(new Date(1234567890L));
+    daemon.setStatus(DaemonStatus.RUNNING);
+    daemon.setPinned(false);
+    daemon.setCpuSlots(2);
+    daemon.setMemoryMegabytes(512);
+    daemon.setGroup("db-clients");
+    daemon.getServer().setCpuSlots(16);
+    daemon.getServer().setMemoryMegabytes(65536);
+    daemon.getServer().setLastSeen(new Date(1234567000L));
+    final DaemonBean copy = (DaemonBean) roundTrip(daemon);
+    assertEquals(daemon.getId(), copy.getId());
+    assertEquals(daemon.getName(), copy.getName());
+    assertTrue(Arrays.equals(daemon.getStartCommandLine(), copy.getStartCommandLine()));
+    assertTrue(Arrays.equals(daemon.getStopCommandLine(), copy.getStopCommandLine()));
+    assertEquals(daemon.getPidFile(), copy.getPidFile());
+    assertEquals(daemon.getMaxContinuousRuntimeMillis(), copy.getMaxContinuousRuntimeMillis());
+    assertEquals(daemon.getServer().getId(), copy.getServer().getId());
+    assertEquals(daemon.getServer().getName(), copy.getServer().getName());
+    assertEquals(daemon.getLastUpdate(), copy.getLastUpdate());
+    assertEquals(DaemonStatus.RUNNING, copy.getStatus());
+    assertEquals(DaemonStatus.RUNNING, copy.getTargetStatus());
+    assertFalse(copy.isPinned());
+    assertEquals(2, copy.getCpuSlots());
+    assertEquals(512, copy.getMemoryMegabytes());
+    assertEquals("db-clients", copy.getGroup());
+    assertEquals(16, copy.getServer().getCpuSlots());
+    assertEquals(65536, copy.getServer().getMemoryMegabytes());
+    assertEquals(new Date(1234567000L), copy.getServer().getLastSeen());
+    // Names come back interned
+    assertSame("host3", copy.getServer().getName());
+  }
+  
+  public void testNullsRoundTrip() throws Exception {
+    final DaemonBean copy = (DaemonBean) roundTrip(new DaemonBean());
+    assertNull(copy.getId());
+    assertNull(copy.getName());
+    assertNull(copy.getStartCommandLine());
+    assertNull(copy.getPidFile());
+    assertNull(copy.getServer());
+    assertTrue(copy.isPinned());
+    assertEquals(DaemonStatus.STOPPED, copy.getStatus());
+  }
+  
+  public void testActionsRoundTrip() throws Exception {
+    final StartDaemon start = new StartDaemon();
+    start.setId(12);
+    start.setDaemonBean(newDaemon(1, 1));
+    final StopDaemon stop = new StopDaemon();
+    stop.setId(13);
+    stop.setTimeoutSeconds(42);
+    stop.setDaemonBean(newDaemon(2, 1));
+    final IAction copies[] = (IAction[]) roundTrip(new IAction[] { start, stop });
+    assertEquals(12, copies[0].getId());
+    assertEquals("daemon1", copies[0].getDaemonBean().getName());
+    assertEquals(13, copies[1].getId());
+    assertEquals(42, ((StopDaemon) copies[1]).getTimeoutSeconds());
+    assertEquals("daemon2", copies[1].getDaemonBean().getName());
+  }
+  
+  public void testHostTelemetryRoundTrip() throws Exception {
+    final HostTelemetry telemetry = new HostTelemetry();
+    telemetry.setLoadHundredths(125);
+    telemetry.setMemoryTotalKilobytes(16000000);
+    for (int i = 0; i < 20; i++) {
+      telemetry.addProcess("daemon" + i, 1000 + i, i * 100, i * 1024, i, -1);
+    }
+    final HostTelemetry copy = (HostTelemetry) roundTrip(telemetry);
+    assertEquals(125, copy.getLoadHundredths());
+    assertEquals(16000000, copy.getMemoryTotalKilobytes());
+    assertEquals(-1, copy.getMemoryAvailableKilobytes());
+    assertEquals(20, copy.getProcessCount());
+    assertEquals("daemon19", copy.getDaemonName(19));
+    assertEquals(1019, copy.getPid(19));
+    assertEquals(1900, copy.getCpuTicks(19));
+    assertEquals(19 * 1024, copy.getRssKilobytes(19));
+    assertEquals(19, copy.getThreads(19));
+    assertEquals(-1, copy.getOpenFiles(19));
+    copy.addProcess("more", 1, 1, 1, 1, 1);
+    assertEquals(21, copy.getProcessCount());
+  }
+  
+  /** The full known-daemons list of a 2,000 daemon, 300 host fleet. */
+  public void testSize() throws Exception {
+    final DaemonBean daemons[] = new DaemonBean[2000];
+    for (int i = 0; i < daemons.length; i++) {
+      daemons[i] = newDaemon(i, i % 300);
+    }
+    final int bytes = serialize(daemons).length;
+    // Two ObjectIds, two short command lines and a pid file come to about 150
+    // bytes of content per daemon.
+    assertTrue("Took " + bytes + " bytes", bytes < daemons.length * 200);
+  }
+  
+  private static DaemonBean newDaemon(final int index, final int host) {
+    final DaemonBean daemon = new DaemonBean();
+    daemon.setId(new ObjectId());
+    daemon.setName("daemon" + index);
+    daemon.setStartCommandLine("/opt/daemons/bin/start.sh", "daemon" + index);
+    daemon.setStopCommandLine("/opt/daemons/bin/stop.sh", "daemon" + index);
+    daemon.setPidFile("/var/run/daemon" + index + ".pid");
+    daemon.setTargetStatus(DaemonStatus.RUNNING);
+    // A fresh String per bean, like a database driver would hand back
+    daemon.setServer(new ServerBean(new ObjectId(), new String("host" + host)));
+    return daemon;
+  }
+  
+  private static byte[] serialize(final Object object) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(object);
+    out.close();
+    return bytes.toByteArray();
+  }
+  
+  private static Object roundTrip(final Object object) throws IOException, ClassNotFoundException {
+    final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize(object)));
+    try {
+      return in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+}
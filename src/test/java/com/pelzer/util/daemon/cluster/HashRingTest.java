@@ -0,0 +1,59 @@
+package com.pelzer.util.daemon.cluster;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.pelzer.util.daemon.lease.LeaseTable;
+
+public class HashRingTest extends TestCase {
+  public HashRingTest(final String name) {
+    super(name);
+  }
+  
+  public void testParse() {
+    final HashRing ring = HashRing.parse(" rmi://a/DaemonServer, nio://b:4000 ,,", 16);
+    assertEquals(Arrays.asList("rmi://a/DaemonServer", "nio://b:4000"), ring.getNodes());
+    assertEquals("only", HashRing.parse("only", 16).getOwner("anything"));
+  }
+  
+  public void testSpread() {
+    final HashRing ring = new HashRing(Arrays.asList("a", "b", "c", "d"), 128);
+    final Map<String, Integer> owned = new HashMap<String, Integer>();
+    for (int i = 0; i < 20000; i++) {
+      final String owner = ring.getOwner("host" + i + ".example.com");
+      owned.put(owner, owned.containsKey(owner) ? owned.get(owner) + 1 : 1);
+    }
+    assertEquals(4, owned.size());
+    for (final int count : owned.values()) {
+      // Within 25% of an even share
+      assertTrue(owned.toString(), count > 3750 && count < 6250);
+    }
+  }
+  
+  /** Adding a shard only takes keys for itself, and about its fair share. */
+  public void testAddingAShard() {
+    final HashRing before = new HashRing(Arrays.asList("a", "b", "c"), 128);
+    final HashRing after = new HashRing(Arrays.asList("a", "b", "c", "d"), 128);
+    int moved = 0;
+    for (int i = 0; i < 20000; i++) {
+      final String key = "host" + i;
+      if (!before.getOwner(key).equals(after.getOwner(key))) {
+        assertEquals("d", after.getOwner(key));
+        moved++;
+      }
+    }
+    assertTrue("" + moved, moved > 3750 && moved < 6250);
+    // And every ring built from the same nodes agrees
+    assertEquals(after.getOwner("host42"), new HashRing(Arrays.asList("a", "b", "c", "d"), 128).getOwner("host42"));
+  }
+  
+  public void testPoolName() {
+    assertEquals("pool", LeaseTable.poolName(LeaseTable.slotName("pool", 12)));
+    assertEquals("name", LeaseTable.poolName("name"));
+    assertEquals("name#", LeaseTable.poolName("name#"));
+    assertEquals("name#x1", LeaseTable.poolName("name#x1"));
+  }
+}
@@ -0,0 +1,117 @@
+package com.pelzer.util.daemon.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.pelzer.util.daemon.DaemonStatus;
+import com.pelzer.util.daemon.beans.DaemonBean;
+import com.pelzer.util.daemon.beans.ServerBean;
+
+public class PlacementTest extends TestCase {
+  public PlacementTest(final String name) {
+    super(name);
+  }
+  
+  /** Best fit decreasing fills one server before starting on the next. */
+  public void testPacksOntoFewestServers() {
+    final List<ServerBean> servers = Arrays.asList(newServer("a", 4, 0), newServer("b", 4, 0), newServer("c", 4, 0));
+    final List<DaemonBean> daemons = new ArrayList<DaemonBean>();
+    daemons.add(newDaemon("big", null, 3, 0));
+    daemons.add(newDaemon("small1", null, 1, 0));
+    daemons.add(newDaemon("small2", null, 1, 0));
+    daemons.add(newDaemon("small3", null, 1, 0));
+    final Map<String, ServerBean> moves = new Placement(servers).place(daemons);
+    assertEquals(4, moves.size());
+    assertEquals(moves.get("big").getName(), moves.get("small1").getName());
+    assertEquals(moves.get("small2").getName(), moves.get("small3").getName());
+    assertFalse(moves.get("big").getName().equals(moves.get("small2").getName()));
+  }
+  
+  /** Daemons that are already somewhere with room stay put, pinned daemons take their room first. */
+  public void testOnlyMovesWhatHasTo() {
+    final ServerBean a = newServer("a", 4, 1000);
+    final ServerBean b = newServer("b", 4, 1000);
+    final List<DaemonBean> daemons = new ArrayList<DaemonBean>();
+    daemons.add(newDaemon("placed", b, 2, 0));
+    final DaemonBean pinned = newDaemon("pinned", a, 3, 0);
+    pinned.setPinned(true);
+    daemons.add(pinned);
+    daemons.add(newDaemon("squeezed", a, 2, 0));
+    final DaemonBean stopped = newDaemon("stopped", a, 4, 0);
+    stopped.setTargetStatus(DaemonStatus.STOPPED);
+    daemons.add(stopped);
+    daemons.add(newDaemon("hungry", null, 1, 1100));
+    
+    final Placement placement = new Placement(Arrays.asList(a, b));
+    final Map<String, ServerBean> moves = placement.place(daemons);
+    assertEquals(1, moves.size());
+    assertSame(b, moves.get("squeezed"));
+    assertEquals(Arrays.asList("hungry"), placement.getUnplaced());
+  }
+  
+  /** Daemons on a server that has gone away are spread over the ones left, servers without capacity are skipped. */
+  public void testServerLeaves() {
+    final ServerBean gone = newServer("gone", 4, 0);
+    final ServerBean unmanaged = newServer("unmanaged", 0, 0);
+    final ServerBean left = newServer("left", 2, 0);
+    final List<DaemonBean> daemons = new ArrayList<DaemonBean>();
+    for (int i = 0; i < 3; i++) {
+      daemons.add(newDaemon("daemon" + i, gone, 1, 0));
+    }
+    final Placement placement = new Placement(Arrays.asList(unmanaged, left));
+    final Map<String, ServerBean> moves = placement.place(daemons);
+    assertEquals(2, moves.size());
+    assertSame(left, moves.get("daemon0"));
+    assertSame(left, moves.get("daemon1"));
+    assertEquals(Arrays.asList("daemon2"), placement.getUnplaced());
+  }
+  
+  /** A server that joins is given a few daemons a round off the busiest one, until the load is even. */
+  public void testServerJoins() {
+    final ServerBean full = newServer("full", 4, 0);
+    final ServerBean joined = newServer("joined", 4, 0);
+    final List<DaemonBean> daemons = new ArrayList<DaemonBean>();
+    daemons.add(newDaemon("big", full, 2, 0));
+    daemons.add(newDaemon("small1", full, 1, 0));
+    daemons.add(newDaemon("small2", full, 1, 0));
+    
+    // Without rebalancing nothing has to move
+    assertTrue(new Placement(Arrays.asList(full, joined)).place(daemons).isEmpty());
+    
+    // One move a round, smallest first
+    Map<String, ServerBean> moves = new Placement(Arrays.asList(full, joined), 1).place(daemons);
+    assertEquals(1, moves.size());
+    assertSame(joined, moves.get("small2"));
+    daemons.get(2).setServer(joined);
+    
+    moves = new Placement(Arrays.asList(full, joined), 1).place(daemons);
+    assertEquals(1, moves.size());
+    assertSame(joined, moves.get("small1"));
+    daemons.get(1).setServer(joined);
+    
+    // Even now, so nothing moves back
+    assertTrue(new Placement(Arrays.asList(full, joined), 1).place(daemons).isEmpty());
+  }
+  
+  private static ServerBean newServer(final String name, final int cpuSlots, final long memoryMegabytes) {
+    final ServerBean server = new ServerBean(null, name);
+    server.setCpuSlots(cpuSlots);
+    server.setMemoryMegabytes(memoryMegabytes);
+    return server;
+  }
+  
+  private static DaemonBean newDaemon(final String name, final ServerBean server, final int cpuSlots, final long memoryMegabytes) {
+    final DaemonBean daemon = new DaemonBean();
+    daemon.setName(name);
+    daemon.setServer(server);
+    daemon.setPinned(false);
+    daemon.setCpuSlots(cpuSlots);
+    daemon.setMemoryMegabytes(memoryMegabytes);
+    daemon.setTargetStatus(DaemonStatus.RUNNING);
+    return daemon;
+  }
+}
@@ -0,0 +1,234 @@
+package com.pelzer.util.daemon.cluster;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.pelzer.util.daemon.DaemonServerRemoteInt;
+import com.pelzer.util.daemon.StateJournal;
+import com.pelzer.util.daemon.lease.Lease;
+import com.pelzer.util.daemon.lease.LeaseTable;
+
+public class ReplicaTest extends TestCase {
+  /** Stores <daemonName, startTimeMillis> as the leader sees it. */
+  private final Map<String, Long>     startTimes = new LinkedHashMap<String, Long>();
+  private final StateJournal.Snapshot snapshot   = new StartTimesSnapshot();
+  
+  public ReplicaTest(final String name) {
+    super(name);
+  }
+  
+  public void testSnapshotThenLog() throws Exception {
+    final StateJournal journal = newLeaderJournal(4096);
+    setStartTime(journal, "daemonA", 1);
+    final RecordingState state = new RecordingState();
+    final Replica replica = new Replica(state);
+    assertFalse(replica.hasState());
+    
+    replica.follow("leader1", newFakeLeader(journal), 0);
+    assertTrue(replica.hasState());
+    assertEquals("[start daemonA 1]", state.records.toString());
+    
+    setStartTime(journal, "daemonB", 2);
+    journal.leaseRemoved("foo", 7);
+    replica.follow("leader1", newFakeLeader(journal), 0);
+    assertEquals("[start daemonA 1, start daemonB 2, removed foo 7]", state.records.toString());
+    
+    // Nothing new, the wait just runs out
+    replica.follow("leader1", newFakeLeader(journal), 10);
+    assertEquals(3, state.records.size());
+  }
+  
+  public void testPartialRecords() throws Exception {
+    final StateJournal journal = newLeaderJournal(4096);
+    final byte empty[] = journal.snapshot(snapshot);
+    journal.leaseGranted(new Lease("foo", "hostA", 1000, 7));
+    journal.startTimeSet("daemonA", 42);
+    final byte records[] = journal.readReplicationLog(logIdOf(empty), 0, 4096, 0).getData();
+    
+    final RecordingState state = new RecordingState();
+    final int used = StateJournal.readRecords(records, 0, records.length - 3, state);
+    assertEquals("[lease foo hostA 1000 7]", state.records.toString());
+    assertEquals(records.length - used, StateJournal.readRecords(records, used, records.length - used, state));
+    assertEquals("[lease foo hostA 1000 7, start daemonA 42]", state.records.toString());
+  }
+  
+  public void testFallingBehindTakesNewSnapshot() throws Exception {
+    final StateJournal journal = newLeaderJournal(64);
+    final RecordingState state = new RecordingState();
+    final Replica replica = new Replica(state);
+    replica.follow("leader1", newFakeLeader(journal), 0);
+    for (int i = 0; i < 20; i++) {
+      setStartTime(journal, "daemon" + i, i);
+    }
+    // Finds the start of the log has been overwritten...
+    replica.follow("leader1", newFakeLeader(journal), 0);
+    assertTrue(state.records.isEmpty());
+    // ...so starts again from a snapshot
+    replica.follow("leader1", newFakeLeader(journal), 0);
+    assertEquals(2, state.clears);
+    assertEquals(20, state.records.size());
+    assertEquals("start daemon19 19", state.records.get(19));
+  }
+  
+  public void testNewLeaderTakesNewSnapshot() throws Exception {
+    final StateJournal journal1 = newLeaderJournal(4096);
+    setStartTime(journal1, "daemonA", 1);
+    final RecordingState state = new RecordingState();
+    final Replica replica = new Replica(state);
+    replica.follow("leader1", newFakeLeader(journal1), 0);
+    
+    startTimes.clear();
+    final StateJournal journal2 = newLeaderJournal(4096);
+    setStartTime(journal2, "daemonB", 2);
+    replica.follow("leader2", newFakeLeader(journal2), 0);
+    assertEquals(2, state.clears);
+    assertEquals("[start daemonB 2]", state.records.toString());
+    
+    // A restarted leader has a new log id, which forces a snapshot too
+    final StateJournal journal3 = newLeaderJournal(4096);
+    try {
+      replica.follow("leader2", newFakeLeader(journal3), 0);
+      fail();
+    } catch (final Exception expected) {
+    }
+    replica.follow("leader2", newFakeLeader(journal3), 0);
+    assertEquals(3, state.clears);
+  }
+  
+  public void testTakeOverDropsLeasesOnlyInOwnJournal() throws Exception {
+    final long expiration = System.currentTimeMillis() + 60000;
+    final StateJournal journal = newLeaderJournal(4096);
+    final LeaseState state = new LeaseState();
+    final Replica replica = new Replica(state);
+    replica.follow("leader1", newFakeLeader(journal), 0);
+    journal.leaseGranted(new Lease("foo", "hostA", expiration, 7));
+    replica.follow("leader1", newFakeLeader(journal), 0);
+    
+    // The standby's own journal still has a lease the leader has since freed
+    final LeaseTable table = new LeaseTable(60000);
+    final long staleFence = System.currentTimeMillis() * 2000;
+    table.restore(new Lease("stale", "hostB", expiration, staleFence));
+    
+    // Taking over, the way DaemonServer does
+    table.clear();
+    for (final Lease lease : state.leases.values()) {
+      table.restore(lease);
+    }
+    assertNull(table.getLease("stale"));
+    assertEquals("hostA", table.getLease("foo").getHostname());
+    assertEquals(1, table.size());
+    // Fences still move on from the highest one ever seen
+    assertTrue(table.acquire("stale", "hostC").getFence() > staleFence);
+  }
+  
+  private StateJournal newLeaderJournal(final int capacity) {
+    final StateJournal journal = new StateJournal(null);
+    journal.startReplicating(capacity);
+    return journal;
+  }
+  
+  private void setStartTime(final StateJournal journal, final String daemonName, final long startTimeMillis) {
+    startTimes.put(daemonName, startTimeMillis);
+    journal.startTimeSet(daemonName, startTimeMillis);
+  }
+  
+  private static long logIdOf(final byte snapshot[]) {
+    long logId = 0;
+    for (int i = 0; i < 8; i++) {
+      logId = (logId << 8) | (snapshot[i] & 0xff);
+    }
+    return logId;
+  }
+  
+  /** @return a leader that only answers the replication calls, straight from the journal. */
+  private DaemonServerRemoteInt newFakeLeader(final StateJournal journal) {
+    return (DaemonServerRemoteInt) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DaemonServerRemoteInt.class }, new InvocationHandler() {
+      public Object invoke(final Object proxy, final Method method, final Object args[]) throws Throwable {
+        if (method.getName().equals("getReplicationSnapshot"))
+          return journal.snapshot(snapshot);
+        if (method.getName().equals("readReplicationLog"))
+          return journal.readReplicationLog((Long) args[0], (Long) args[1], (Integer) args[2], (Long) args[3]);
+        throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+  
+  private class StartTimesSnapshot implements StateJournal.Snapshot {
+    public void writeTo(final StateJournal journal) {
+      for (final Map.Entry<String, Long> entry : startTimes.entrySet()) {
+        journal.startTimeSet(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+  
+  /** Also keeps the leases themselves, as a standby taking over would. */
+  private static class LeaseState extends RecordingState {
+    /** Stores <name, lease> */
+    private final Map<String, Lease> leases = new LinkedHashMap<String, Lease>();
+    
+    @Override
+    public void clear() {
+      super.clear();
+      leases.clear();
+    }
+    
+    @Override
+    public void leaseGranted(final Lease lease) {
+      super.leaseGranted(lease);
+      leases.put(lease.getName(), lease);
+    }
+    
+    @Override
+    public void leaseRemoved(final String name, final long fence) {
+      super.leaseRemoved(name, fence);
+      if (leases.containsKey(name) && leases.get(name).getFence() == fence) {
+        leases.remove(name);
+      }
+    }
+  }
+  
+  private static class RecordingState implements Replica.State {
+    private final List<String> records = new ArrayList<String>();
+    private int                clears  = 0;
+    
+    public void clear() {
+      records.clear();
+      clears++;
+    }
+    
+    public void leaseGranted(final Lease lease) {
+      records.add("lease " + lease.getName() + " " + lease.getHostname() + " " + lease.getExpirationTimeMillis() + " " + lease.getFence());
+    }
+    
+    public void leaseRemoved(final String name, final long fence) {
+      records.add("removed " + name + " " + fence);
+    }
+    
+    public void startTimeSet(final String daemonName, final long startTimeMillis) {
+      records.add("start " + daemonName + " " + startTimeMillis);
+    }
+    
+    public void startTimeRemoved(final String daemonName) {
+      records.add("unstart " + daemonName);
+    }
+    
+    public void actionIssued(final String hostname, final int actionId, final byte kind, final String daemonName) {
+      records.add("action " + hostname + " " + actionId + " " + kind + " " + daemonName);
+    }
+    
+    public void actionRemoved(final String hostname, final int actionId) {
+      records.add("done " + hostname + " " + actionId);
+    }
+    
+    public void planCleared(final String hostname) {
+      records.add("cleared " + hostname);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package com.pelzer.util.daemon.lease;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class LeaseTableTest extends TestCase {
+  public LeaseTableTest(final String name) {
+    super(name);
+  }
+  
+  public void testAcquireRenewFree() {
+    final LeaseTable table = new LeaseTable(60000);
+    assertNotNull(table.acquire("foo", "hostA"));
+    assertNull(table.acquire("foo", "hostA"));
+    assertNull(table.acquire("foo", "hostB"));
+    assertNotNull(table.renew("foo", "HOSTA"));
+    assertNull(table.renew("foo", "hostB"));
+    assertFalse(table.free("foo", "hostB"));
+    assertEquals("hostA", table.getLease("foo").getHostname());
+    assertTrue(table.free("foo", "hostA"));
+    assertNull(table.getLease("foo"));
+    assertNotNull(table.renew("foo", "hostB"));
+    assertEquals("hostB", table.getLease("foo").getHostname());
+  }
+  
+  public void testFences() {
+    final LeaseTable table = new LeaseTable(60000);
+    final long first = table.acquire("foo", "hostA").getFence();
+    assertEquals(first, table.renew("foo", "hostA").getFence());
+    assertTrue(table.free("foo", "hostA"));
+    assertTrue(table.acquire("foo", "hostB").getFence() > first);
+    assertTrue(table.acquire("bar", "hostB").getFence() > first);
+  }
+  
+  public void testRestore() {
+    final LeaseTable table = new LeaseTable(60000);
+    final long fence = table.acquire("foo", "hostA").getFence() + 1000;
+    table.restore(new Lease("bar", "hostB", System.currentTimeMillis() + 60000, fence));
+    table.restore(new Lease("baz", "hostB", System.currentTimeMillis() - 1, fence));
+    assertEquals("hostB", table.getLease("bar").getHostname());
+    assertNull(table.getLease("baz"));
+    assertEquals(2, table.getLeases().size());
+    assertTrue(table.acquire("qux", "hostA").getFence() > fence);
+  }
+  
+  public void testExpiry() throws InterruptedException {
+    final LeaseTable table = new LeaseTable(50, 10);
+    assertNotNull(table.acquire("foo", "hostA"));
+    assertNotNull(table.acquire("bar", "hostA"));
+    Thread.sleep(100);
+    assertNull(table.getLease("foo"));
+    assertNotNull(table.acquire("foo", "hostB"));
+    // Acquiring advanced the wheel, so the expired 'bar' is gone
+    assertEquals(1, table.size());
+  }
+  
+  public void testBlockingAcquireIsFifo() throws InterruptedException {
+    final LeaseTable table = new LeaseTable(60000, 10);
+    assertNotNull(table.acquire("foo", "owner"));
+    final List<String> grantOrder = Collections.synchronizedList(new ArrayList<String>());
+    final Thread waiters[] = new Thread[3];
+    for (int i = 0; i < waiters.length; i++) {
+      final String hostname = "waiter" + i;
+      waiters[i] = new Thread() {
+        @Override
+        public void run() {
+          if (table.acquire("foo", hostname, 5000) != null) {
+            grantOrder.add(hostname);
+            table.free("foo", hostname);
+          }
+        }
+      };
+      waiters[i].start();
+      // Let each waiter get in line before starting the next
+      Thread.sleep(50);
+    }
+    assertTrue(table.free("foo", "owner"));
+    for (final Thread waiter : waiters) {
+      waiter.join();
+    }
+    assertEquals(Arrays.asList("waiter0", "waiter1", "waiter2"), grantOrder);
+  }
+  
+  public void testBlockingAcquireAfterExpiry() {
+    final LeaseTable table = new LeaseTable(50, 10);
+    assertNotNull(table.acquire("foo", "owner"));
+    final Lease lease = table.acquire("foo", "waiter", 5000);
+    assertNotNull(lease);
+    assertEquals("waiter", lease.getHostname());
+  }
+  
+  public void testBlockingAcquireTimesOut() {
+    final LeaseTable table = new LeaseTable(60000, 10);
+    assertNotNull(table.acquire("foo", "owner"));
+    assertNull(table.acquire("foo", "waiter", 50));
+    assertEquals("owner", table.getLease("foo").getHostname());
+  }
+  
+  public void testCountedLeases() {
+    final LeaseTable table = new LeaseTable(60000);
+    assertEquals(0, table.acquireSlot("pool", 2, "hostA"));
+    assertEquals(1, table.acquireSlot("pool", 2, "hostA"));
+    assertEquals(-1, table.acquireSlot("pool", 2, "hostB"));
+    assertNotNull(table.renew(LeaseTable.slotName("pool", 1), "hostA"));
+    assertTrue(table.free(LeaseTable.slotName("pool", 0), "hostA"));
+    assertEquals(0, table.acquireSlot("pool", 2, "hostB"));
+  }
+  
+  public void testConcurrentAcquire() throws InterruptedException {
+    final LeaseTable table = new LeaseTable(60000);
+    final int winners[] = new int[1];
+    final Thread threads[] = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      final String hostname = "host" + i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          if (table.acquire("contended", hostname) != null) {
+            synchronized (winners) {
+              winners[0]++;
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(1, winners[0]);
+  }
+}
@@ -0,0 +1,84 @@
+package com.pelzer.util.daemon.metrics;
+
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+  public LatencyHistogramTest(final String name) {
+    super(name);
+  }
+  
+  public void testBuckets() {
+    for (long value = 0; value < 100000; value += 7) {
+      final int bucket = LatencyHistogram.bucketOf(value);
+      assertTrue(value <= LatencyHistogram.upperBoundOf(bucket));
+      if (bucket > 0) {
+        assertTrue(value > LatencyHistogram.upperBoundOf(bucket - 1));
+      }
+    }
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(Long.MAX_VALUE)));
+  }
+  
+  public void testQuantiles() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getValueAtQuantile(0.5));
+    for (long micros = 1; micros <= 1000; micros++) {
+      histogram.record(micros * 1000);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000000, histogram.getMaxNanos());
+    assertWithin(500000, histogram.getValueAtQuantile(0.5));
+    assertWithin(990000, histogram.getValueAtQuantile(0.99));
+    assertWithin(999000, histogram.getValueAtQuantile(0.999));
+    assertEquals(1000000, histogram.getValueAtQuantile(1));
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getValueAtQuantile(0.99));
+  }
+  
+  public void testConcurrentRecording() throws Exception {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    final Thread threads[] = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            histogram.record(j);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(80000, histogram.getCount());
+    assertEquals(9999, histogram.getMaxNanos());
+    assertEquals(8L * 9999 * 10000 / 2, histogram.getTotalNanos());
+  }
+  
+  @SuppressWarnings("unchecked")
+  public void testTimedProxy() throws Exception {
+    final Callable<String> target = new Callable<String>() {
+      public String call() throws Exception {
+        throw new IllegalStateException("boom");
+      }
+    };
+    final Callable<String> timed = Metrics.timed(Callable.class, target, "LatencyHistogramTest");
+    try {
+      timed.call();
+      fail();
+    } catch (final IllegalStateException expected) {
+    }
+    final LatencyStats stats = Metrics.getLatencyStats("LatencyHistogramTest", "call");
+    assertEquals(1, stats.getCount());
+    assertTrue(stats.getMaxMillis() > 0);
+  }
+  
+  /** Buckets are a sixteenth of a power of two wide. */
+  private void assertWithin(final long expected, final long actual) {
+    assertTrue(expected + " vs " + actual, actual >= expected && actual <= expected + expected / 8);
+  }
+}
@@ -0,0 +1,66 @@
+package com.pelzer.util.daemon.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+public class MetricsHttpServerTest extends TestCase {
+  private MetricsHttpServer server;
+  private int               scrapes = 0;
+  
+  public MetricsHttpServerTest(final String name) {
+    super(name);
+  }
+  
+  @Override
+  protected void setUp() throws Exception {
+    server = new MetricsHttpServer(0, new MetricsHttpServer.Source() {
+      public void writeMetrics(final PrometheusWriter out) {
+        scrapes++;
+        out.counter("test_scrapes_total", "Scrapes so far.", scrapes);
+        out.header("test_pending", "gauge", "Pending by host.");
+        out.sample("test_pending", "host", "a\"b\\c", 3);
+        out.gauge("test_ratio", "A ratio.", 0.25);
+      }
+    });
+  }
+  
+  @Override
+  protected void tearDown() {
+    server.close();
+  }
+  
+  public void testScrape() throws Exception {
+    final String page = scrape();
+    assertEquals("# HELP test_scrapes_total Scrapes so far.\n" + "# TYPE test_scrapes_total counter\n" + "test_scrapes_total 1\n" + "# HELP test_pending Pending by host.\n" + "# TYPE test_pending gauge\n" + "test_pending{host=\"a\\\"b\\\\c\"} 3\n" + "# HELP test_ratio A ratio.\n" + "# TYPE test_ratio gauge\n" + "test_ratio 0.25\n", page);
+    // The writer is reused, not appended to
+    assertTrue(scrape().startsWith("# HELP test_scrapes_total Scrapes so far.\n# TYPE test_scrapes_total counter\ntest_scrapes_total 2\n"));
+  }
+  
+  public void testLatencySummary() {
+    final LatencyStats stats = new LatencyStats("Group", "method");
+    stats.record(2000000);
+    final PrometheusWriter out = new PrometheusWriter();
+    out.latency("latency_seconds", stats);
+    final String text = out.getText().toString();
+    assertTrue(text, text.contains("latency_seconds{group=\"Group\",method=\"method\",quantile=\"0.99\"} 0.002\n"));
+    assertTrue(text, text.contains("latency_seconds_count{group=\"Group\",method=\"method\"} 1\n"));
+  }
+  
+  private String scrape() throws Exception {
+    final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/metrics").openConnection();
+    assertEquals(200, connection.getResponseCode());
+    final InputStream in = connection.getInputStream();
+    final ByteArrayOutputStream page = new ByteArrayOutputStream();
+    final byte buffer[] = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) > 0) {
+      page.write(buffer, 0, read);
+    }
+    in.close();
+    return page.toString("US-ASCII");
+  }
+}
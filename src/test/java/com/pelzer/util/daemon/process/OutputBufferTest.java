@@ -0,0 +1,64 @@
+package com.pelzer.util.daemon.process;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+public class OutputBufferTest extends TestCase {
+  public OutputBufferTest(final String name) {
+    super(name);
+  }
+  
+  public void testWrapAround() throws InterruptedException {
+    final OutputBuffer buffer = new OutputBuffer(8);
+    buffer.write("abcdef".getBytes(), 0, 6);
+    ProcessOutput output = buffer.read(0, 4, 0);
+    assertEquals("abcd", new String(output.getData()));
+    buffer.write("ghij".getBytes(), 0, 4);
+    output = buffer.read(output.getNextOffset(), 100, 0);
+    assertEquals(4, output.getOffset());
+    assertEquals("efghij", new String(output.getData()));
+    assertEquals(10, output.getNextOffset());
+    assertFalse(output.isEnd());
+  }
+  
+  public void testSlowReaderSkipsAhead() throws InterruptedException {
+    final OutputBuffer buffer = new OutputBuffer(4);
+    buffer.write("abcdefghij".getBytes(), 0, 10);
+    final ProcessOutput output = buffer.read(0, 100, 0);
+    assertEquals(6, output.getOffset());
+    assertEquals("ghij", new String(output.getData()));
+  }
+  
+  public void testBlockingRead() throws InterruptedException {
+    final OutputBuffer buffer = new OutputBuffer(16);
+    assertEquals(0, buffer.read(0, 100, 10).getData().length);
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (final InterruptedException ignored) {
+        }
+        buffer.write("hello".getBytes(), 0, 5);
+      }
+    }.start();
+    final long start = System.currentTimeMillis();
+    final ProcessOutput output = buffer.read(0, 100, 10000);
+    assertEquals("hello", new String(output.getData()));
+    assertTrue(System.currentTimeMillis() - start < 5000);
+  }
+  
+  public void testPumpToEnd() throws InterruptedException {
+    final OutputBuffer buffer = OutputBuffer.pump(new ByteArrayInputStream("all of it".getBytes()), 1024, "test");
+    final StringBuilder read = new StringBuilder();
+    long offset = 0;
+    ProcessOutput output;
+    do {
+      output = buffer.read(offset, 3, 10000);
+      read.append(new String(output.getData()));
+      offset = output.getNextOffset();
+    } while (!output.isEnd());
+    assertEquals("all of it", read.toString());
+  }
+}
@@ -0,0 +1,86 @@
+package com.pelzer.util.daemon.process;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.pelzer.util.daemon.DaemonConstants;
+
+public class ProcessSessionsTest extends TestCase {
+  private final ProcessSessions sessions = new ProcessSessions();
+  private int                   limit;
+  
+  public ProcessSessionsTest(final String name) {
+    super(name);
+  }
+  
+  @Override
+  protected void setUp() {
+    limit = DaemonConstants.PROCESS_SESSION_LIMIT;
+    DaemonConstants.PROCESS_SESSION_LIMIT = 2;
+  }
+  
+  @Override
+  protected void tearDown() {
+    DaemonConstants.PROCESS_SESSION_LIMIT = limit;
+  }
+  
+  public void testSessionsAreIndependent() throws Exception {
+    final long first = sessions.start(new String[] { "cat" });
+    final long second = sessions.start(new String[] { "cat" });
+    assertTrue(first != second);
+    sessions.get(first).write("one\n".getBytes());
+    sessions.get(second).write("two\n".getBytes());
+    assertEquals("one\n", new String(sessions.get(first).read(ProcessChannel.STDOUT, 0, 100, 10000).getData()));
+    assertEquals("two\n", new String(sessions.get(second).read(ProcessChannel.STDOUT, 0, 100, 10000).getData()));
+    
+    sessions.destroy(first);
+    sessions.destroy(second);
+    assertEquals(0, sessions.size());
+    try {
+      sessions.get(first);
+      fail();
+    } catch (final IOException expected) {
+    }
+  }
+  
+  public void testLimit() throws Exception {
+    final long first = sessions.start(new String[] { "cat" });
+    sessions.start(new String[] { "cat" });
+    try {
+      sessions.start(new String[] { "cat" });
+      fail();
+    } catch (final IOException expected) {
+    }
+    sessions.destroy(first);
+    sessions.destroy(sessions.start(new String[] { "cat" }));
+  }
+  
+  public void testFailedStartFreesItsSlot() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      try {
+        sessions.start(new String[] { "/no/such/command" });
+        fail();
+      } catch (final IOException expected) {
+      }
+    }
+    sessions.destroy(sessions.start(new String[] { "cat" }));
+    sessions.destroy(sessions.start(new String[] { "cat" }));
+    assertEquals(0, sessions.size());
+  }
+  
+  public void testReadToEnd() throws Exception {
+    final long id = sessions.start(new String[] { "echo", "hello" });
+    final ProcessSession session = sessions.get(id);
+    final StringBuilder read = new StringBuilder();
+    long offset = 0;
+    ProcessOutput output;
+    do {
+      output = session.read(ProcessChannel.STDOUT, offset, 100, 10000);
+      read.append(new String(output.getData()));
+      offset = output.getNextOffset();
+    } while (!output.isEnd());
+    assertEquals("hello\n", read.toString());
+    sessions.destroy(id);
+  }
+}
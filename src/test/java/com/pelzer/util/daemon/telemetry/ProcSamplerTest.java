@@ -0,0 +1,88 @@
+package com.pelzer.util.daemon.telemetry;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.pelzer.util.daemon.beans.HostTelemetry;
+
+public class ProcSamplerTest extends TestCase {
+  private File proc;
+  
+  public ProcSamplerTest(final String name) {
+    super(name);
+  }
+  
+  @Override
+  protected void setUp() throws IOException {
+    proc = File.createTempFile("ProcSamplerTest", "");
+    proc.delete();
+    proc.mkdirs();
+    write("loadavg", "1.25 0.80 0.50 2/467 12345\n");
+    write("meminfo", "MemTotal:       16316412 kB\nMemFree:         1000000 kB\nMemAvailable:    8000000 kB\nBuffers:          200000 kB\n");
+    // A command name with a space and a bracket in it
+    write("42/stat", "42 (my daemon) x) S 1 42 42 0 -1 4194304 1000 0 0 0 1500 250 0 0 20 0 17 0 100 1000000 5000 18446744073709551615\n");
+    write("42/status", "Name:\tmy daemon\nState:\tS (sleeping)\nVmRSS:\t   20000 kB\nThreads:\t17\n");
+    write("42/fd/0", "");
+    write("42/fd/1", "");
+    write("42/fd/2", "");
+  }
+  
+  @Override
+  protected void tearDown() {
+    delete(proc);
+  }
+  
+  public void testSample() {
+    final Map<String, Integer> pids = new LinkedHashMap<String, Integer>();
+    pids.put("daemonA", 42);
+    pids.put("gone", 43);
+    final HostTelemetry telemetry = new ProcSampler(proc).sample(pids);
+    assertEquals(125, telemetry.getLoadHundredths());
+    assertEquals(16316412, telemetry.getMemoryTotalKilobytes());
+    assertEquals(8000000, telemetry.getMemoryAvailableKilobytes());
+    assertEquals(2, telemetry.getProcessCount());
+    assertEquals("daemonA", telemetry.getDaemonName(0));
+    assertEquals(42, telemetry.getPid(0));
+    assertEquals(1750, telemetry.getCpuTicks(0));
+    assertEquals(20000, telemetry.getRssKilobytes(0));
+    assertEquals(17, telemetry.getThreads(0));
+    assertEquals(3, telemetry.getOpenFiles(0));
+    // Exited between the liveness check and the sample
+    assertEquals(-1, telemetry.getCpuTicks(1));
+    assertEquals(-1, telemetry.getRssKilobytes(1));
+    assertEquals(-1, telemetry.getOpenFiles(1));
+  }
+  
+  public void testOldKernelMemory() throws IOException {
+    write("meminfo", "MemTotal:       16316412 kB\nMemFree:         1000000 kB\nBuffers:          200000 kB\nCached:          3000000 kB\n");
+    final HostTelemetry telemetry = new ProcSampler(proc).sample(new LinkedHashMap<String, Integer>());
+    assertEquals(4200000, telemetry.getMemoryAvailableKilobytes());
+  }
+  
+  public void testNoProc() {
+    assertNull(new ProcSampler(new File(proc, "missing")).sample(new LinkedHashMap<String, Integer>()));
+  }
+  
+  private void write(final String path, final String text) throws IOException {
+    final File file = new File(proc, path);
+    file.getParentFile().mkdirs();
+    final FileWriter out = new FileWriter(file);
+    out.write(text);
+    out.close();
+  }
+  
+  private static void delete(final File file) {
+    final File children[] = file.listFiles();
+    if (children != null) {
+      for (final File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
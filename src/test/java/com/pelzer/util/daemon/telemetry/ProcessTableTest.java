@@ -0,0 +1,101 @@
+package com.pelzer.util.daemon.telemetry;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class ProcessTableTest extends TestCase {
+  private File proc;
+  
+  public ProcessTableTest(final String name) {
+    super(name);
+  }
+  
+  @Override
+  protected void setUp() throws IOException {
+    proc = File.createTempFile("ProcessTableTest", "");
+    proc.delete();
+    proc.mkdirs();
+    // Booted at 1,000,000 seconds past the epoch
+    write("stat", "cpu  1 2 3 4\nbtime 1000000\nprocesses 5000\n");
+    write("self", "");
+    write("sys/kernel", "");
+    // Started 100 seconds after boot, with a bracket in its command name
+    write("42/stat", "42 (my daemon) x) S 1 42 42 0 -1 4194304 1000 0 0 0 1500 250 0 0 20 0 17 0 10000 1000000 5000\n");
+    write("7/stat", "7 (init) S 0 7 7 0 -1 4194304 1000 0 0 0 1 1 0 0 20 0 1 0 garbled\n");
+  }
+  
+  @Override
+  protected void tearDown() {
+    delete(proc);
+  }
+  
+  public void testLiveness() {
+    final ProcessTable processes = ProcessTable.scan(proc);
+    assertEquals(2, processes.size());
+    assertTrue(processes.isAlive(42));
+    assertTrue(processes.isAlive(7));
+    assertFalse(processes.isAlive(43));
+    assertFalse(processes.isAlive(0));
+    assertFalse(processes.isAlive(-42));
+    assertNull(ProcessTable.scan(new File(proc, "missing")));
+  }
+  
+  public void testPidStartedAfterListing() throws IOException {
+    final ProcessTable processes = ProcessTable.scan(proc);
+    write("43/stat", "43 (late) S 1 43 43 0 -1 0 0 0 0 0 0 0 0 0 20 0 1 0 20000 1000 100\n");
+    assertFalse(processes.isAlive(43));
+    assertTrue(processes.isAliveNow(43));
+    assertFalse(processes.isAliveNow(44));
+    assertEquals(20000, processes.getStartTicks(43));
+    assertTrue(processes.isAlive(43, 1000201000L));
+    assertTrue(processes.getScanMillis() <= System.currentTimeMillis());
+  }
+  
+  public void testManyPids() throws IOException {
+    for (int pid = 1000; pid < 1500; pid += 3) {
+      write(Integer.toString(pid) + "/stat", "");
+    }
+    final ProcessTable processes = ProcessTable.scan(proc);
+    assertEquals(2 + 167, processes.size());
+    for (int pid = 1000; pid < 1500; pid++) {
+      assertEquals((pid - 1000) % 3 == 0, processes.isAlive(pid));
+    }
+  }
+  
+  public void testStartTimes() {
+    final ProcessTable processes = ProcessTable.scan(proc);
+    assertEquals(10000, processes.getStartTicks(42));
+    assertEquals(1000100000L, processes.getStartMillis(42));
+    assertEquals(-1, processes.getStartTicks(43));
+    assertEquals(-1, processes.getStartTicks(7));
+    
+    // Written by the process, a moment after it started
+    assertTrue(processes.isAlive(42, 1000101000L));
+    // Written before the process started, so the pid has been reused
+    assertFalse(processes.isAlive(42, 1000000000L));
+    // No start time to go on, so it's taken as alive
+    assertTrue(processes.isAlive(7, 0));
+    assertFalse(processes.isAlive(43, 1000101000L));
+  }
+  
+  private void write(final String path, final String text) throws IOException {
+    final File file = new File(proc, path);
+    file.getParentFile().mkdirs();
+    final FileWriter out = new FileWriter(file);
+    out.write(text);
+    out.close();
+  }
+  
+  private static void delete(final File file) {
+    final File children[] = file.listFiles();
+    if (children != null) {
+      for (final File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
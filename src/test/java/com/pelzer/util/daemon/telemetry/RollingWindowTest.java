@@ -0,0 +1,46 @@
+package com.pelzer.util.daemon.telemetry;
+
+import junit.framework.TestCase;
+
+public class RollingWindowTest extends TestCase {
+  public RollingWindowTest(final String name) {
+    super(name);
+  }
+  
+  public void testOldestSamplesAreOverwritten() {
+    final RollingWindow window = new RollingWindow(2, 3);
+    assertEquals(-1, window.getLatest(0));
+    for (int i = 1; i <= 5; i++) {
+      window.add(i * 1000, new long[] { i, i * 10 });
+    }
+    assertEquals(3, window.size());
+    assertEquals(5000, window.getLatestTime());
+    assertEquals(50, window.getLatest(1));
+    assertEquals(4.0, window.getMean(0, 0));
+    assertEquals(4.5, window.getMean(0, 4000));
+    assertEquals(50, window.getMax(1, 0));
+  }
+  
+  public void testUnknownValuesAreSkipped() {
+    final RollingWindow window = new RollingWindow(1, 4);
+    window.add(1000, new long[] { 10 });
+    window.add(2000, new long[] { -1 });
+    window.add(3000, new long[] { 20 });
+    assertEquals(15.0, window.getMean(0, 0));
+  }
+  
+  /** A counter from a new pid starts the rate again, rather than going backwards. */
+  public void testRateRestartsWithKey() {
+    final RollingWindow window = new RollingWindow(2, 8);
+    window.add(1000, new long[] { 42, 100 });
+    window.add(2000, new long[] { 42, 150 });
+    assertEquals(50.0, window.getRatePerSecond(1, 0, 0));
+    window.add(3000, new long[] { 43, 5 });
+    assertEquals(-1.0, window.getRatePerSecond(1, 0, 0));
+    window.add(5000, new long[] { 43, 205 });
+    assertEquals(100.0, window.getRatePerSecond(1, 0, 0));
+    // Only from the oldest sample inside the window
+    window.add(6000, new long[] { 43, 255 });
+    assertEquals(50.0, window.getRatePerSecond(1, 0, 5000));
+  }
+}
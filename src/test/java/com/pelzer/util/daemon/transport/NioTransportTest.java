@@ -0,0 +1,174 @@
+package com.pelzer.util.daemon.transport;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.Socket;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.pelzer.util.daemon.DaemonServerRemoteInt;
+import com.pelzer.util.daemon.actions.IAction;
+import com.pelzer.util.daemon.actions.StartDaemon;
+import com.pelzer.util.daemon.beans.DaemonBean;
+
+public class NioTransportTest extends TestCase {
+  private NioServer             server;
+  private DaemonServerRemoteInt client;
+  /** Released to let a parked awaitActionPlan return. */
+  private final CountDownLatch  release = new CountDownLatch(1);
+  
+  public NioTransportTest(final String name) {
+    super(name);
+  }
+  
+  @Override
+  protected void setUp() throws Exception {
+    server = new NioServer(DaemonServerRemoteInt.class, newFakeDaemonServer(), 0);
+    client = NioClient.connect(DaemonServerRemoteInt.class, "localhost", server.getPort());
+  }
+  
+  @Override
+  protected void tearDown() {
+    release.countDown();
+    server.close();
+  }
+  
+  public void testCalls() throws Exception {
+    client.noop();
+    assertEquals("42", client.getBuildNumber());
+    final boolean results[] = client.assertSingletonNames(new String[] { "a", "b", "c" }, "host1");
+    assertEquals(3, results.length);
+    assertTrue(results[0]);
+    assertFalse(results[1]);
+    assertTrue(results[2]);
+    final DaemonBean daemons[] = client.getAllKnownDaemons();
+    assertEquals(1, daemons.length);
+    assertEquals("daemon1", daemons[0].getName());
+  }
+  
+  public void testExceptions() throws Exception {
+    try {
+      client.setTargetDaemonStatus("missing", null);
+      fail();
+    } catch (final RemoteException ex) {
+      assertEquals("Unknown daemon 'missing'", ex.getMessage());
+    }
+    // The connection is still good afterwards
+    assertEquals("42", client.getBuildNumber());
+  }
+  
+  /** A frame too short to be a request gets the connection dropped, not ignored. */
+  public void testShortFrame() throws Exception {
+    final Socket socket = new Socket("localhost", server.getPort());
+    try {
+      socket.setSoTimeout(10000);
+      socket.getOutputStream().write(new byte[] { 0, 0, 0, 4, 0, 0, 0, 1 });
+      assertEquals(-1, socket.getInputStream().read());
+    } finally {
+      socket.close();
+    }
+    // Other connections are unaffected
+    assertEquals("42", client.getBuildNumber());
+  }
+  
+  /** A parked long poll mustn't hold up other calls on the same socket. */
+  public void testPipelining() throws Exception {
+    final List<IAction[]> plans = new ArrayList<IAction[]>();
+    final Thread poller = new Thread() {
+      @Override
+      public void run() {
+        try {
+          plans.add(client.awaitActionPlan("host1", new String[0], 60000));
+        } catch (final RemoteException ex) {
+          ex.printStackTrace();
+        }
+      }
+    };
+    poller.start();
+    
+    final AtomicInteger answered = new AtomicInteger();
+    final Thread callers[] = new Thread[8];
+    for (int i = 0; i < callers.length; i++) {
+      callers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < 50; j++) {
+              if ("42".equals(client.getBuildNumber())) {
+                answered.incrementAndGet();
+              }
+            }
+          } catch (final RemoteException ex) {
+            ex.printStackTrace();
+          }
+        }
+      };
+      callers[i].start();
+    }
+    for (final Thread caller : callers) {
+      caller.join(10000);
+    }
+    assertEquals(400, answered.get());
+    assertTrue(poller.isAlive());
+    
+    release.countDown();
+    poller.join(10000);
+    assertEquals(1, plans.size());
+    assertEquals(7, plans.get(0)[0].getId());
+  }
+  
+  public void testReconnect() throws Exception {
+    assertEquals("42", client.getBuildNumber());
+    final int port = server.getPort();
+    server.close();
+    try {
+      // The first call may still make it out before the socket is gone
+      client.getBuildNumber();
+      client.getBuildNumber();
+      fail();
+    } catch (final ConnectException expected) {
+    }
+    server = new NioServer(DaemonServerRemoteInt.class, newFakeDaemonServer(), port);
+    assertEquals("42", client.getBuildNumber());
+  }
+  
+  private DaemonServerRemoteInt newFakeDaemonServer() {
+    return (DaemonServerRemoteInt) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DaemonServerRemoteInt.class }, new InvocationHandler() {
+      public Object invoke(final Object proxy, final Method method, final Object args[]) throws Throwable {
+        final String name = method.getName();
+        if (name.equals("getBuildNumber"))
+          return "42";
+        if (name.equals("assertSingletonNames")) {
+          final String names[] = (String[]) args[0];
+          final boolean results[] = new boolean[names.length];
+          for (int i = 0; i < names.length; i++) {
+            results[i] = !names[i].equals("b");
+          }
+          return results;
+        }
+        if (name.equals("getAllKnownDaemons")) {
+          final DaemonBean daemon = new DaemonBean();
+          daemon.setName("daemon1");
+          return new DaemonBean[] { daemon };
+        }
+        if (name.equals("setTargetDaemonStatus"))
+          throw new RemoteException("Unknown daemon '" + args[0] + "'");
+        if (name.equals("awaitActionPlan")) {
+          release.await(30, TimeUnit.SECONDS);
+          final StartDaemon action = new StartDaemon();
+          action.setId(7);
+          return new IAction[] { action };
+        }
+        return null;
+      }
+    });
+  }
+}